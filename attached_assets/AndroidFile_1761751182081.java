@@ -1,12 +1,20 @@
 package com.moho.wood;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.util.Log;
 
@@ -20,6 +28,10 @@ public class AndroidFile extends File {
 	
 	private String __path = "";
 	private AssetManager __am = null;
+	
+	// Until set, the time this process started using assets
+	private static volatile AssetIndex __index = null;
+	private static volatile long __assetsLastModified = System.currentTimeMillis() / 1000 * 1000;
 
 	/*
 	 * constructors
@@ -63,12 +75,45 @@ public class AndroidFile extends File {
 		return (__am != null) && (! __path.startsWith("/"));
 	}
 	
+	/*
+	 * Once set, asset lookups under the index root are answered from it
+	 * instead of the AssetManager. Until then they go to the AssetManager.
+	 */
+	public static void setAssetIndex(AssetIndex index) {
+		__index = index;
+	}
+	
+	public static AssetIndex getAssetIndex() {
+		return __index;
+	}
+	
+	// The index that has the answers for this asset, or null
+	private AssetIndex indexed() {
+		AssetIndex index = __index;
+		return (index != null && index.covers(getPath())) ? index : null;
+	}
+	
+	/*
+	 * The index entry of this asset file, or null if it is not indexed
+	 */
+	public AssetIndex.Entry getIndexEntry() {
+		if(!isAsset()) {
+			return null;
+		}
+		AssetIndex index = indexed();
+		return index != null ? index.file(getPath()) : null;
+	}
+	
 	/*
 	 * override
 	 */
 	@Override
 	public boolean isDirectory() {
 		if(isAsset()) {
+			AssetIndex index = indexed();
+			if(index != null) {
+				return index.isDirectory(getPath());
+			}
 			try {
 				String[] files = __am.list(__path);
 				
@@ -90,6 +135,10 @@ public class AndroidFile extends File {
 	@Override
 	public boolean isFile() {
 		if(isAsset()) {
+			AssetIndex index = indexed();
+			if(index != null) {
+				return index.isFile(getPath());
+			}
 			try {
 				InputStream is = __am.open(__path);
 				is.close();
@@ -123,6 +172,10 @@ public class AndroidFile extends File {
 	@Override
 	public String[] list() {
 		if(isAsset()) {
+			AssetIndex index = indexed();
+			if(index != null) {
+				return index.list(getPath());
+			}
 			try {
 				return __am.list(__path);
 			} catch (IOException e) {
@@ -152,11 +205,20 @@ public class AndroidFile extends File {
 		return super.getAbsolutePath();
 	}
 	
+	/*
+	 * Assets have no time stamps of their own; they all change together
+	 * when the app is installed or updated. Set this to that time, e.g.
+	 * PackageInfo.lastUpdateTime, so that Last-Modified and ETags stay the
+	 * same until the next update.
+	 */
+	public static void setAssetsLastModified(long time) {
+		__assetsLastModified = time;
+	}
+	
 	@Override
 	public long lastModified() {
 		if(isAsset()) {
-			Date now = new Date();
-			return now.getTime() - 1000 * 3600 * 24; // 24 hour ago
+			return __assetsLastModified;
 		}
 		
 		return super.lastModified();
@@ -165,6 +227,10 @@ public class AndroidFile extends File {
 	@Override
 	public long length() {
 		if(isAsset()) {
+			AssetIndex index = indexed();
+			if(index != null) {
+				return index.length(getPath());
+			}
 			//Log.w(LOGTAG, __path);
 			long len = 0;
 			try {
@@ -187,4 +253,342 @@ public class AndroidFile extends File {
 		
 		return new FileInputStream( this );
 	}
-}
+	
+	/*
+	 * Reads at any offset, for range requests. Skipping on an asset stream
+	 * inflates and drops every byte before the offset; these reads cost
+	 * only what they return.
+	 */
+	public interface RandomAccess extends Closeable {
+		long size();
+		
+		// Reads into dst from position, returns the count, or -1 at the end
+		int read(ByteBuffer dst, long position) throws IOException;
+	}
+	
+	/*
+	 * Files on disk and assets stored uncompressed in the APK are read in
+	 * place through a FileChannel. Compressed assets are inflated into a
+	 * file once, see InflatedAsset.
+	 */
+	public RandomAccess openRandomAccess() throws IOException {
+		if(!isAsset()) {
+			FileInputStream in = new FileInputStream(this);
+			return new Region(in.getChannel(), 0, in.getChannel().size(), in);
+		}
+		AssetFileDescriptor afd;
+		try {
+			afd = __am.openFd(__path);
+		} catch (FileNotFoundException e) {
+			// openFd() only takes assets that are stored, not compressed
+			return InflatedAsset.open(this);
+		}
+		// The descriptor is the APK's; the channel does not own it
+		FileChannel apk = new FileInputStream(afd.getFileDescriptor()).getChannel();
+		return new Region(apk, afd.getStartOffset(), afd.getLength(), afd);
+	}
+	
+	/*
+	 * length bytes of a file, from start on
+	 */
+	private static class Region implements RandomAccess {
+		private final FileChannel __channel;
+		private final long __start;
+		private final long __length;
+		private final Closeable __owner;
+		
+		Region(FileChannel channel, long start, long length, Closeable owner) {
+			__channel = channel;
+			__start = start;
+			__length = length;
+			__owner = owner;
+		}
+		
+		public long size() {
+			return __length;
+		}
+		
+		public int read(ByteBuffer dst, long position) throws IOException {
+			if(position >= __length) {
+				return -1;
+			}
+			if(dst.remaining() > __length - position) {
+				ByteBuffer slice = dst.duplicate();
+				slice.limit(slice.position() + (int)(__length - position));
+				int n = __channel.read(slice, __start + position);
+				if(n > 0) {
+					dst.position(dst.position() + n);
+				}
+				return n;
+			}
+			return __channel.read(dst, __start + position);
+		}
+		
+		public void close() throws IOException {
+			__owner.close();
+		}
+	}
+	
+	/*
+	 * A compressed asset, inflated into a file below java.io.tmpdir as far
+	 * as it has been read. Reads before that point come from the file,
+	 * later ones go on with the same asset stream, so each byte is
+	 * inflated once per process rather than once per seek. The last few
+	 * assets are kept; their files are deleted once they drop out and
+	 * nobody reads them any more.
+	 */
+	static class InflatedAsset implements RandomAccess {
+		private static final int KEEP = 4;
+		private static final LinkedHashMap<String, InflatedAsset> __assets =
+				new LinkedHashMap<String, InflatedAsset>(16, 0.75f, true);
+		private static File __tmp = null;
+		
+		private final AssetManager __am;
+		private final String __path;
+		private final File __dir;
+		private long __size;
+		private File __file = null;
+		private FileChannel __channel = null;
+		private InputStream __in = null;
+		private volatile long __inflated = 0;
+		// Guarded by the class, like __assets
+		private int __users = 0;
+		private boolean __dropped = false;
+		
+		private InflatedAsset(AssetManager am, String path, long size, File dir) {
+			__am = am;
+			__path = path;
+			__size = size;
+			__dir = dir;
+		}
+		
+		static InflatedAsset open(AndroidFile f) {
+			synchronized(InflatedAsset.class) {
+				InflatedAsset asset = __assets.get(f.__path);
+				if(asset == null) {
+					asset = new InflatedAsset(f.__am, f.__path, f.length(), tmp());
+					__assets.put(f.__path, asset);
+					Iterator<InflatedAsset> it = __assets.values().iterator();
+					while(__assets.size() > KEEP && it.hasNext()) {
+						InflatedAsset old = it.next();
+						it.remove();
+						old.__dropped = true;
+						if(old.__users == 0) {
+							old.dispose();
+						}
+					}
+				}
+				asset.__users++;
+				return asset;
+			}
+		}
+		
+		public long size() {
+			return __size;
+		}
+		
+		public int read(ByteBuffer dst, long position) throws IOException {
+			long end = Math.min(__size, position + dst.remaining());
+			if(position >= end) {
+				return dst.hasRemaining() ? -1 : 0;
+			}
+			if(__inflated < end) {
+				inflateTo(end);
+				end = Math.min(end, __inflated);
+				if(position >= end) {
+					return -1;	// The asset is shorter than it claimed
+				}
+			}
+			ByteBuffer slice = dst.duplicate();
+			slice.limit(slice.position() + (int)(end - position));
+			int n = __channel.read(slice, position);
+			if(n > 0) {
+				dst.position(dst.position() + n);
+			}
+			return n;
+		}
+		
+		private synchronized void inflateTo(long end) throws IOException {
+			if(__in == null) {
+				if(__channel != null) {
+					return;	// Already at the end of the asset
+				}
+				__file = File.createTempFile("asset", ".raw", __dir);
+				__channel = new RandomAccessFile(__file, "rw").getChannel();
+				__in = __am.open(__path, AssetManager.ACCESS_STREAMING);
+			}
+			byte[] buf = new byte[64 * 1024];
+			while(__inflated < end) {
+				int n = __in.read(buf);
+				if(n < 0) {
+					__in.close();
+					__in = null;
+					__size = __inflated;
+					return;
+				}
+				ByteBuffer src = ByteBuffer.wrap(buf, 0, n);
+				while(src.hasRemaining()) {
+					__channel.write(src, __inflated + src.position());
+				}
+				__inflated += n;
+			}
+		}
+		
+		public void close() throws IOException {
+			synchronized(InflatedAsset.class) {
+				if(--__users == 0 && __dropped) {
+					dispose();
+				}
+			}
+		}
+		
+		private synchronized void dispose() {
+			try {
+				if(__in != null) {
+					__in.close();
+				}
+				if(__channel != null) {
+					__channel.close();
+				}
+			} catch (IOException e) {
+			}
+			if(__file != null) {
+				__file.delete();
+			}
+		}
+		
+		// Files left over by an earlier process are removed on first use
+		private static File tmp() {
+			if(__tmp == null) {
+				File dir = new File(System.getProperty("java.io.tmpdir"), "inflated-assets");
+				File[] stale = dir.listFiles();
+				if(stale != null) {
+					for(File f : stale) {
+						f.delete();
+					}
+				}
+				dir.mkdirs();
+				__tmp = dir;
+			}
+			return __tmp;
+		}
+	}
+	
+	/*
+	 * The asset tree below a root directory, walked once.
+	 * 
+	 * Every AssetManager.list() or open() is a lookup in the APK's zip
+	 * directory, and serving one file takes several of them. Assets cannot
+	 * change while the app runs, so the answers are kept: the entries of
+	 * each directory and, for each file, what serving it needs. Build it
+	 * off the main thread, after setAssetsLastModified(); it opens every
+	 * file once.
+	 */
+	public static class AssetIndex {
+		private final String __root;
+		private final long __lastModified = __assetsLastModified;
+		private final HashMap<String, String[]> __dirs = new HashMap<String, String[]>();
+		private final HashMap<String, Entry> __files = new HashMap<String, Entry>();
+		
+		/*
+		 * A file: its size, the quoted strong ETag and the MIME type
+		 * NanoHTTPD sends it with
+		 */
+		public static class Entry {
+			public final long length;
+			public final String etag;
+			public final String mimeType;
+			
+			Entry(String path, long length, long lastModified) {
+				this.length = length;
+				this.etag = NanoHTTPD.entityTag(path, lastModified, length);
+				this.mimeType = NanoHTTPD.mimeTypeFor(path);
+			}
+		}
+		
+		private AssetIndex(String root) {
+			__root = new File(root).getPath();
+		}
+		
+		public static AssetIndex build(AssetManager am, String root) throws IOException {
+			AssetIndex index = new AssetIndex(root);
+			index.add(am, index.__root);
+			return index;
+		}
+		
+		private void add(AssetManager am, String path) throws IOException {
+			String[] names = am.list(path);
+			if(names != null && names.length > 0) {
+				__dirs.put(path, names);
+				for(String name : names) {
+					add(am, path + "/" + name);
+				}
+				return;
+			}
+			// The APK keeps no empty directories, so this is a file
+			try {
+				InputStream is = am.open(path);
+				try {
+					__files.put(path, new Entry(path, is.available(), __lastModified));
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				Log.w("AndroidFile", String.format("Not indexed: %s, %s", path, e.getMessage()));
+			}
+		}
+		
+		/*
+		 * True if path is the root or below it, so the index has the answer
+		 */
+		public boolean covers(String path) {
+			return path.startsWith(__root) &&
+					(path.length() == __root.length() || path.charAt(__root.length()) == '/');
+		}
+		
+		public boolean isDirectory(String path) {
+			return __dirs.containsKey(key(path));
+		}
+		
+		public boolean isFile(String path) {
+			return __files.containsKey(key(path));
+		}
+		
+		public String[] list(String path) {
+			String[] names = __dirs.get(key(path));
+			return names != null ? names.clone() : new String[0];
+		}
+		
+		public long length(String path) {
+			Entry entry = __files.get(key(path));
+			return entry != null ? entry.length : 0;
+		}
+		
+		public Entry file(String path) {
+			return __files.get(key(path));
+		}
+		
+		// new File(dir, "/") keeps a trailing slash, and files made
+		// with such a dir get a double one
+		private static String key(String path) {
+			if(!path.endsWith("/") && path.indexOf("//") < 0) {
+				return path;
+			}
+			StringBuilder sb = new StringBuilder(path.length());
+			for(int i = 0; i < path.length(); i++) {
+				char c = path.charAt(i);
+				if(c != '/' || (sb.length() > 0 && sb.charAt(sb.length() - 1) != '/')) {
+					sb.append(c);
+				}
+			}
+			if(sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+				sb.setLength(sb.length() - 1);
+			}
+			return sb.toString();
+		}
+		
+		public int size() {
+			return __dirs.size() + __files.size();
+		}
+	}
+}
\ No newline at end of file
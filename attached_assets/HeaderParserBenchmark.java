@@ -0,0 +1,120 @@
+package com.moho.wood;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-request cost of decoding the request line and headers of a typical
+ * WebView asset request: the former BufferedReader / StringTokenizer /
+ * Properties decoder against the byte-level one in NanoHTTPD.<p>
+ *
+ * Part of the benchmarks.jar the pom.xml next to this file builds. Run
+ * with the GC profiler; gc.alloc.rate.norm is the bytes allocated per
+ * request, legacy() giving the before and byteLevel() the after figure:
+ * <pre>
+ * cd attached_assets
+ * mvn -B package
+ * java -jar target/benchmarks.jar HeaderParserBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParserBenchmark
+{
+	static final byte[] REQUEST = (
+			"GET /game/js/engine.min.js?v=1.4.2 HTTP/1.1\r\n" +
+			"Host: localhost:8490\r\n" +
+			"Connection: keep-alive\r\n" +
+			"User-Agent: Mozilla/5.0 (Linux; Android 13; Pixel 6 Build/TQ3A.230805.001; wv) " +
+					"AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/116.0.5845.163 Mobile Safari/537.36\r\n" +
+			"Accept: */*\r\n" +
+			"X-Requested-With: com.moho.wood\r\n" +
+			"Sec-Fetch-Site: same-origin\r\n" +
+			"Sec-Fetch-Mode: no-cors\r\n" +
+			"Sec-Fetch-Dest: script\r\n" +
+			"Referer: http://localhost:8490/index.html\r\n" +
+			"Accept-Encoding: gzip, deflate\r\n" +
+			"Accept-Language: en-US,en;q=0.9\r\n" +
+			"\r\n" ).getBytes();
+
+	private final String[] requestLine = new String[3];
+	private final NanoHTTPD.Headers headers = new NanoHTTPD.Headers();
+
+	/**
+	 * The decoder NanoHTTPD used before: a reader over a copy of the
+	 * header, a String per line, and a Properties entry per header.
+	 */
+	@Benchmark
+	public Object legacy() throws IOException
+	{
+		int rlen = NanoHTTPD.findHeaderEnd( REQUEST, REQUEST.length );
+		BufferedReader in = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( REQUEST, 0, rlen )));
+		Properties pre = new Properties();
+		Properties header = new Properties();
+		StringTokenizer st = new StringTokenizer( in.readLine());
+		pre.put( "method", st.nextToken());
+		pre.put( "uri", st.nextToken());
+		pre.put( "protocol", st.nextToken());
+		String line = in.readLine();
+		while ( line != null && line.trim().length() > 0 )
+		{
+			int p = line.indexOf( ':' );
+			if ( p >= 0 )
+				header.put( line.substring( 0, p ).trim().toLowerCase(), line.substring( p + 1 ).trim());
+			line = in.readLine();
+		}
+		// What the server looks up for every request
+		header.getProperty( "connection" );
+		header.getProperty( "content-length" );
+		header.getProperty( "accept-encoding" );
+		header.getProperty( "range" );
+		return header;
+	}
+
+	/**
+	 * The byte-level decoder, with the same lookups.
+	 */
+	@Benchmark
+	public Object byteLevel()
+	{
+		int rlen = NanoHTTPD.findHeaderEnd( REQUEST, REQUEST.length );
+		headers.clear();
+		int next = NanoHTTPD.parseRequestLine( REQUEST, rlen, requestLine );
+		headers.parse( REQUEST, next, rlen );
+		headers.get( "connection" );
+		headers.get( "content-length" );
+		headers.get( "accept-encoding" );
+		headers.get( "range" );
+		return headers;
+	}
+
+	/**
+	 * The byte-level decoder plus the Properties copy made for
+	 * subclasses that override the classic serve().
+	 */
+	@Benchmark
+	public Object byteLevelToProperties()
+	{
+		byteLevel();
+		return headers.toProperties();
+	}
+}
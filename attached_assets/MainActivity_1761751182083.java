@@ -26,6 +26,7 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.messaging.FirebaseMessaging;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener {
     private static boolean isStarted = false;
@@ -41,6 +42,12 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
     private NotificationManager notificationManager;
 
     private static final String BASE_URL = "https://your-replit-app.replit.app";
+
+    // The game's own origin. Its requests are answered in-process by the
+    // WebView; set SERVE_IN_PROCESS to false to send them all through the
+    // socket instead, e.g. to watch them with a proxy.
+    private static final String LOCAL_ORIGIN = "http://localhost:8490";
+    private static final boolean SERVE_IN_PROCESS = true;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -63,6 +70,9 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
         manager = new UtilsManager(this);
         manager.init();
         mwebView.setManager(manager);
+        if (SERVE_IN_PROCESS && androidWebServer != null) {
+            mwebView.setLocalServer(androidWebServer, LOCAL_ORIGIN);
+        }
 
         relativeLayout = findViewById(R.id.relativeLayout);
         btnNoInternetConnection = findViewById(R.id.btnNoConnection);
@@ -259,6 +269,18 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
         }
     }
 
+    /**
+     * Time the bundled assets last changed: when the app was installed or updated
+     */
+    private long getAssetsLastModified() {
+        try {
+            PackageInfo pInfo = getPackageManager().getPackageInfo(getPackageName(), 0);
+            return pInfo.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
     @SuppressWarnings( "deprecation" )
     private void init_screen(){
         getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN,
@@ -290,7 +312,7 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
     public void checkConnection(Bundle savedInstanceState){
         boolean needConnection = getResources().getBoolean(R.bool.need_connection);
         boolean isConnected;
-        String url = "http://localhost:8490/index.html";
+        String url = LOCAL_ORIGIN + "/index.html";
 
         if (needConnection) {
             isConnected = isConnectionAvailable();
@@ -323,12 +345,28 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
         if (!isStarted) {
             try {
                 int port = 8490;
-                AssetManager am = getAssets();
-                String localPath = "game";
+                final AssetManager am = getAssets();
+                final String localPath = "game";
                 AndroidFile f = new AndroidFile(localPath);
                 f.setAssetManager( am );
+                AndroidFile.setAssetsLastModified(getAssetsLastModified());
                 Log.d("Gradle start 8490", f.getPath());
                 androidWebServer = new WebServer(port, f);
+                if (AndroidFile.getAssetIndex() == null) {
+                    // Requests are served from the AssetManager until it is done
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                AndroidFile.AssetIndex index = AndroidFile.AssetIndex.build(am, localPath);
+                                AndroidFile.setAssetIndex(index);
+                                Log.d("Gradle index 8490", index.size() + " assets");
+                            } catch (IOException e) {
+                                Log.w("Gradle index 8490", "Assets not indexed: " + e);
+                            }
+                        }
+                    }, "asset-index").start();
+                }
                 return true;
             }
             catch (Exception e) {
@@ -341,7 +379,11 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
 
     private boolean stopAndroidWebServer() {
         if (isStarted && androidWebServer != null) {
-            androidWebServer.stop();
+            // Let the WebView's last requests finish before the port is released
+            int cutOff = androidWebServer.stop(500);
+            if (cutOff > 0) {
+                Log.w("Gradle stop 8490", cutOff + " requests cut off");
+            }
             return true;
         }
         return false;
@@ -350,7 +392,15 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
     public class WebServer extends NanoHTTPD
     {
         public WebServer(int port, AndroidFile wwwroot ) throws IOException {
-            super(port, wwwroot);
+            // The WebView keeps its connections open between requests. With
+            // the NIO engine an idle one costs no thread, so the pool only
+            // runs serve(): the game page fires its asset requests in one
+            // burst, and a small pool with a queue absorbs it. The selector
+            // hands requests to the pool, so a full queue must answer 503
+            // rather than block it; a WebView has a request or so per
+            // connection in flight and never gets near 256.
+            super(new InetSocketAddress(port), wwwroot,
+                    newBoundedSessionExecutor(8, 256, RejectionPolicy.RESPOND_503), Engine.NIO);
         }
     }
 
@@ -358,6 +408,13 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
     @Override
     protected void onResume() {
         super.onResume();
+        if (androidWebServer != null) {
+            try {
+                androidWebServer.resume();
+            } catch (IOException e) {
+                Log.w("Gradle resume 8490", "The server could not listen again." + e);
+            }
+        }
         mwebView.onResume();
         manager.on_resume();
     }
@@ -367,6 +424,9 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
     protected void onPause() {
         mwebView.onPause();
         manager.on_pause();
+        if (androidWebServer != null) {
+            androidWebServer.pause();
+        }
         super.onPause();
     }
 
@@ -443,6 +503,9 @@ public class MainActivity extends AppCompatActivity implements UtilsAwv.Listener
     @Override
     public void onLowMemory() {
         Log.d("TAG_MEMORY", "Memory is Low");
+        if (androidWebServer != null) {
+            androidWebServer.onLowMemory();
+        }
         super.onLowMemory();
     }
 }
\ No newline at end of file
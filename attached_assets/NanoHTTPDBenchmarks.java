@@ -0,0 +1,395 @@
+package com.moho.wood;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The request pipeline of NanoHTTPD, stage by stage and end to end:
+ * <ul>
+ * <li>findHeaderEnd, requestLine, headers, decodeHeader (what a session
+ * does with a request header), decodePercent and decodeParms;
+ * <li>multipart, a form with two fields and a 64 KB file through
+ * MultipartReader;
+ * <li>serveFile, for files on disk and assets, of the sizes the game
+ * has: 2 KB JSON, 32 KB script, 320 KB image and 3 MB audio;
+ * <li>loopback, a GET of such a file over a persistent connection, with
+ * either engine.
+ * </ul>
+ * Runs on a plain JVM. The pom.xml next to this file compiles the latest
+ * NanoHTTPD and AndroidFile snapshots with the android.* stand-ins in
+ * stubs/ and the JMH annotation processor into target/benchmarks.jar.
+ * Throughput and allocation per operation (gc.alloc.rate.norm) come from
+ * <pre>
+ * cd attached_assets
+ * mvn -B package
+ * java -jar target/benchmarks.jar NanoHTTPDBenchmarks -prof gc
+ * </pre>
+ * Narrow it down with JMH's options, e.g. "NanoHTTPDBenchmarks.loopback
+ * -p engine=NIO -p size=32768".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NanoHTTPDBenchmarks
+{
+	/**
+	 * A request as the WebView sends it for a game asset.
+	 */
+	static final byte[] REQUEST = (
+			"GET /game/audio/level%201/theme%20song.ogg?v=1.4.2&lang=en&name=J%C3%BCrgen+M HTTP/1.1\r\n" +
+			"Host: localhost:8490\r\n" +
+			"Connection: keep-alive\r\n" +
+			"User-Agent: Mozilla/5.0 (Linux; Android 13; Pixel 6 Build/TQ3A.230805.001; wv) " +
+					"AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/116.0.5845.163 Mobile Safari/537.36\r\n" +
+			"Accept: */*\r\n" +
+			"X-Requested-With: com.moho.wood\r\n" +
+			"Sec-Fetch-Site: same-origin\r\n" +
+			"Sec-Fetch-Mode: no-cors\r\n" +
+			"Sec-Fetch-Dest: audio\r\n" +
+			"Referer: http://localhost:8490/index.html\r\n" +
+			"Accept-Encoding: identity;q=1, *;q=0\r\n" +
+			"Accept-Language: en-US,en;q=0.9\r\n" +
+			"Range: bytes=0-\r\n" +
+			"\r\n" ).getBytes();
+
+	@State(Scope.Thread)
+	public static class Parsing
+	{
+		final int headerEnd = NanoHTTPD.findHeaderEnd( REQUEST, REQUEST.length );
+		final String[] requestLine = new String[3];
+		final NanoHTTPD.Headers headers = new NanoHTTPD.Headers();
+		final Properties parms = new Properties();
+		final String path = "/game/audio/level%201/theme%20song.ogg";
+		final String query = "v=1.4.2&lang=en&name=J%C3%BCrgen+M";
+	}
+
+	@Benchmark
+	public int findHeaderEnd()
+	{
+		return NanoHTTPD.findHeaderEnd( REQUEST, REQUEST.length );
+	}
+
+	@Benchmark
+	public Object requestLine( Parsing p )
+	{
+		NanoHTTPD.parseRequestLine( REQUEST, p.headerEnd, p.requestLine );
+		return p.requestLine;
+	}
+
+	@Benchmark
+	public Object headers( Parsing p )
+	{
+		p.headers.clear();
+		int next = NanoHTTPD.parseRequestLine( REQUEST, p.headerEnd, p.requestLine );
+		p.headers.parse( REQUEST, next, p.headerEnd );
+		return p.headers;
+	}
+
+	@Benchmark
+	public String decodePercent( Parsing p ) throws NanoHTTPD.ResponseException
+	{
+		return NanoHTTPD.decodePercent( p.path );
+	}
+
+	@Benchmark
+	public Object decodeParms( Parsing p ) throws NanoHTTPD.ResponseException
+	{
+		p.parms.clear();
+		NanoHTTPD.decodeParms( p.query, p.parms );
+		return p.parms;
+	}
+
+	/**
+	 * What a session does with each request header: the request line,
+	 * the URI and its parameters, the header lines, and the lookups
+	 * the server makes for every request.
+	 */
+	@Benchmark
+	public Object decodeHeader( Parsing p ) throws NanoHTTPD.ResponseException
+	{
+		int rlen = NanoHTTPD.findHeaderEnd( REQUEST, REQUEST.length );
+		p.headers.clear();
+		p.parms.clear();
+		int next = NanoHTTPD.parseRequestLine( REQUEST, rlen, p.requestLine );
+		String uri = p.requestLine[1];
+		int qmi = uri.indexOf( '?' );
+		NanoHTTPD.decodeParms( uri.substring( qmi + 1 ), p.parms );
+		uri = NanoHTTPD.decodePercent( uri.substring( 0, qmi ));
+		p.headers.parse( REQUEST, next, rlen );
+		p.headers.get( "connection" );
+		p.headers.get( "content-length" );
+		p.headers.get( "accept-encoding" );
+		p.headers.get( "range" );
+		return uri;
+	}
+
+	@State(Scope.Thread)
+	public static class Multipart
+	{
+		static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+		byte[] body;
+		final byte[] buf = new byte[8192];
+
+		@Setup
+		public void setup() throws IOException
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append( "--" ).append( BOUNDARY ).append( "\r\n" );
+			sb.append( "Content-Disposition: form-data; name=\"slot\"\r\n\r\n3\r\n" );
+			sb.append( "--" ).append( BOUNDARY ).append( "\r\n" );
+			sb.append( "Content-Disposition: form-data; name=\"title\"\r\n\r\nForest, level 12\r\n" );
+			sb.append( "--" ).append( BOUNDARY ).append( "\r\n" );
+			sb.append( "Content-Disposition: form-data; name=\"save\"; filename=\"save.bin\"\r\n" );
+			sb.append( "Content-Type: application/octet-stream\r\n\r\n" );
+			byte[] head = sb.toString().getBytes( "UTF-8" );
+			byte[] tail = ( "\r\n--" + BOUNDARY + "--\r\n" ).getBytes( "UTF-8" );
+			body = new byte[head.length + 64 * 1024 + tail.length];
+			System.arraycopy( head, 0, body, 0, head.length );
+			for ( int i = 0; i < 64 * 1024; i++ )
+				body[head.length + i] = (byte)( i * 31 );	// Has '\r', '\n' and '-' in it
+			System.arraycopy( tail, 0, body, head.length + 64 * 1024, tail.length );
+		}
+	}
+
+	@Benchmark
+	public long multipart( Multipart m ) throws Exception
+	{
+		NanoHTTPD.MultipartReader reader = new NanoHTTPD.MultipartReader(
+				new ByteArrayInputStream( m.body ), Multipart.BOUNDARY, Long.MAX_VALUE, Long.MAX_VALUE );
+		long total = 0;
+		while ( reader.hasNext())
+		{
+			InputStream in = reader.next().getInputStream();
+			int read;
+			while (( read = in.read( m.buf, 0, m.buf.length )) > 0 )
+				total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * A server with one file of the given size, on disk or as an asset.
+	 */
+	@State(Scope.Benchmark)
+	public static class Files
+	{
+		@Param({ "2048", "32768", "327680", "3145728" })
+		int size;
+
+		@Param({ "file", "asset" })
+		String source;
+
+		File dir;
+		AndroidFile root;
+		NanoHTTPD server;
+		final NanoHTTPD.Headers headers = new NanoHTTPD.Headers();
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException
+		{
+			dir = createAssetDir( size );
+			if ( source.equals( "asset" ))
+			{
+				System.setProperty( "assets.root", dir.getParent());
+				root = new AndroidFile( dir.getName());
+				root.setAssetManager( new android.content.res.AssetManager());
+			}
+			else
+				root = new AndroidFile( dir.getPath());
+			server = new NanoHTTPD( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), root );
+			headers.add( "accept-encoding", "gzip, deflate" );
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			server.stop();
+			deleteAssetDir( dir );
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Buffer
+	{
+		final byte[] buf = new byte[16 * 1024];
+	}
+
+	/**
+	 * serveFile() and reading the body of its response.
+	 */
+	@Benchmark
+	public long serveFile( Files f, Buffer b ) throws IOException
+	{
+		NanoHTTPD.Response res = f.server.serveFile( "/asset.bin", f.headers, f.root, false );
+		long total = 0;
+		InputStream in = res.data;
+		try
+		{
+			int read;
+			while (( read = in.read( b.buf, 0, b.buf.length )) > 0 )
+				total += read;
+		}
+		finally
+		{
+			in.close();
+		}
+		return total;
+	}
+
+	/**
+	 * A client of a server with one file, over a persistent connection.
+	 */
+	@State(Scope.Thread)
+	public static class Loopback
+	{
+		@Param({ "2048", "32768", "327680", "3145728" })
+		int size;
+
+		@Param({ "BLOCKING", "NIO" })
+		String engine;
+
+		File dir;
+		NanoHTTPD server;
+		Socket socket;
+		InputStream in;
+		OutputStream out;
+		final byte[] request = ( "GET /asset.bin HTTP/1.1\r\nHost: localhost\r\n" +
+				"Accept-Encoding: gzip, deflate\r\n\r\n" ).getBytes();
+		final byte[] buf = new byte[64 * 1024];
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException
+		{
+			dir = createAssetDir( size );
+			server = new NanoHTTPD( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ),
+					new AndroidFile( dir.getPath()), null, NanoHTTPD.Engine.valueOf( engine ));
+			server.setKeepAlive( true, 60000, Integer.MAX_VALUE );
+			connect();
+		}
+
+		void connect() throws IOException
+		{
+			socket = new Socket( InetAddress.getLoopbackAddress(), server.getListeningPort());
+			socket.setTcpNoDelay( true );
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException
+		{
+			socket.close();
+			server.stop();
+			deleteAssetDir( dir );
+		}
+	}
+
+	/**
+	 * One request and its whole response: the status line and
+	 * headers up to the empty line, then content-length bytes.
+	 */
+	@Benchmark
+	public long loopback( Loopback l ) throws IOException
+	{
+		l.out.write( l.request );
+		l.out.flush();
+
+		byte[] buf = l.buf;
+		int rlen = 0;
+		int headerEnd;
+		while (( headerEnd = NanoHTTPD.findHeaderEnd( buf, rlen )) == 0 )
+		{
+			int read = l.in.read( buf, rlen, buf.length - rlen );
+			if ( read < 0 )
+				throw new IOException( "Connection closed in the response header" );
+			rlen += read;
+		}
+		if ( buf[9] != '2' )
+			throw new IOException( "Unexpected status " + new String( buf, 9, 3 ));
+		long length = contentLength( buf, headerEnd );
+		long remaining = length - ( rlen - headerEnd );
+		while ( remaining > 0 )
+		{
+			int read = l.in.read( buf, 0, (int)Math.min( buf.length, remaining ));
+			if ( read < 0 )
+				throw new IOException( "Connection closed in the response body" );
+			remaining -= read;
+		}
+		return length;
+	}
+
+	private static long contentLength( byte[] buf, int headerEnd ) throws IOException
+	{
+		String header = new String( buf, 0, headerEnd, "ISO-8859-1" );
+		int p = header.toLowerCase().indexOf( "\r\ncontent-length:" );
+		if ( p < 0 )
+			throw new IOException( "No content-length in response" );
+		int start = p + "\r\ncontent-length:".length();
+		return Long.parseLong( header.substring( start, header.indexOf( '\r', start )).trim());
+	}
+
+	/**
+	 * A new directory holding asset.bin of the given size, and an
+	 * index.html so that it is never listed.
+	 */
+	static File createAssetDir( int size ) throws IOException
+	{
+		File dir = File.createTempFile( "nanohttpd-bench", "" );
+		dir.delete();
+		dir.mkdirs();
+		byte[] body = new byte[size];
+		for ( int i = 0; i < size; i++ )
+			body[i] = (byte)( i * 31 );
+		write( new File( dir, "asset.bin" ), body );
+		write( new File( dir, "index.html" ), "<html></html>".getBytes());
+		return dir;
+	}
+
+	private static void write( File f, byte[] content ) throws IOException
+	{
+		OutputStream out = new FileOutputStream( f );
+		try
+		{
+			out.write( content );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	static void deleteAssetDir( File dir )
+	{
+		File[] files = dir.listFiles();
+		if ( files != null )
+			for ( File f : files )
+				f.delete();
+		dir.delete();
+	}
+}
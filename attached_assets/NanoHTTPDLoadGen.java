@@ -0,0 +1,459 @@
+package com.moho.wood;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays an asset-fetch trace against a running server, e.g. NanoHTTPD.main,
+ * both from the jar the pom.xml next to this file builds with "mvn -B package":
+ * <pre>
+ * java -cp target/benchmarks.jar com.moho.wood.NanoHTTPD -p 8490 -d game --engine nio --workers 8
+ * java -cp target/benchmarks.jar com.moho.wood.NanoHTTPDLoadGen --port 8490 --trace launch.trace --clients 6 --repeat 50
+ * </pre>
+ * A trace has one request per line: the milliseconds since the page
+ * started loading and the path, e.g. "12 /js/engine.min.js". Blank lines
+ * and lines starting with '#' are skipped. Without a trace, --dir builds
+ * the burst the game page produces on launch from an asset directory:
+ * index.html first, then every other file at once.<p>
+ *
+ * Clients take the requests in trace order, each waiting for its time,
+ * the way a WebView's connections do. Latency is measured from that
+ * time to the end of the response, so it includes waiting for a free
+ * client; service time is from sending the request. Each repetition
+ * starts once the previous one is done; the first is a warm-up unless
+ * --warmup 0 is given.<p>
+ *
+ * Options: --host (127.0.0.1), --port (8490), --trace file | --dir dir,
+ * --clients (6), --repeat (10), --warmup (1), --speed (1.0, higher
+ * replays faster), --close (new connection per request instead of
+ * keep-alive), --header "Name: value" (may be repeated).
+ */
+public class NanoHTTPDLoadGen
+{
+	public static void main( String[] args ) throws Exception
+	{
+		String host = "127.0.0.1";
+		int port = 8490;
+		String trace = null;
+		String dir = null;
+		int clients = 6;
+		int repeat = 10;
+		int warmup = 1;
+		double speed = 1.0;
+		boolean keepAlive = true;
+		StringBuilder headers = new StringBuilder();
+		for ( int i = 0; i < args.length; i++ )
+		{
+			String a = args[i];
+			if ( a.equals( "--host" )) host = args[++i];
+			else if ( a.equals( "--port" )) port = Integer.parseInt( args[++i] );
+			else if ( a.equals( "--trace" )) trace = args[++i];
+			else if ( a.equals( "--dir" )) dir = args[++i];
+			else if ( a.equals( "--clients" )) clients = Integer.parseInt( args[++i] );
+			else if ( a.equals( "--repeat" )) repeat = Integer.parseInt( args[++i] );
+			else if ( a.equals( "--warmup" )) warmup = Integer.parseInt( args[++i] );
+			else if ( a.equals( "--speed" )) speed = Double.parseDouble( args[++i] );
+			else if ( a.equals( "--close" )) keepAlive = false;
+			else if ( a.equals( "--header" )) headers.append( args[++i] ).append( "\r\n" );
+			else
+			{
+				System.err.println( "Unknown option " + a );
+				System.exit( 2 );
+			}
+		}
+		if (( trace == null ) == ( dir == null ))
+		{
+			System.err.println( "Give either --trace file or --dir asset-directory" );
+			System.exit( 2 );
+		}
+
+		List<Request> requests = trace != null ? readTrace( new File( trace )) : launchBurst( new File( dir ));
+		if ( speed != 1.0 )
+			for ( Request r : requests )
+				r.offsetNanos = (long)( r.offsetNanos / speed );
+		System.out.println( String.format( "%d requests per run, %d %s clients, %d runs after %d warm-up",
+				requests.size(), clients, keepAlive ? "keep-alive" : "non-keep-alive", repeat, warmup ));
+
+		LoadGen gen = new LoadGen( new InetSocketAddress( host, port ), requests, keepAlive, headers.toString());
+		for ( int i = 0; i < warmup; i++ )
+			gen.run( clients, null );
+		Stats stats = new Stats( requests.size() * repeat );
+		long start = System.nanoTime();
+		for ( int i = 0; i < repeat; i++ )
+			gen.run( clients, stats );
+		stats.report( System.nanoTime() - start );
+	}
+
+	static class Request
+	{
+		Request( long offsetNanos, String path )
+		{
+			this.offsetNanos = offsetNanos;
+			this.path = path;
+		}
+
+		long offsetNanos;
+		final String path;
+	}
+
+	static List<Request> readTrace( File f ) throws IOException
+	{
+		List<Request> requests = new ArrayList<Request>();
+		BufferedReader in = new BufferedReader( new FileReader( f ));
+		try
+		{
+			String line;
+			int n = 0;
+			while (( line = in.readLine()) != null )
+			{
+				n++;
+				line = line.trim();
+				if ( line.length() == 0 || line.startsWith( "#" ))
+					continue;
+				String[] parts = line.split( "\\s+" );
+				if ( parts.length < 2 || !parts[1].startsWith( "/" ))
+					throw new IOException( f + ":" + n + ": expected \"<millis> <path>\"" );
+				requests.add( new Request( (long)( Double.parseDouble( parts[0] ) * 1000000 ), parts[1] ));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		// Clients take requests in this order
+		java.util.Collections.sort( requests, new java.util.Comparator<Request>()
+		{
+			public int compare( Request a, Request b )
+			{
+				return a.offsetNanos < b.offsetNanos ? -1 : a.offsetNanos > b.offsetNanos ? 1 : 0;
+			}
+		});
+		return requests;
+	}
+
+	/**
+	 * index.html at 0, the rest of the files 5 ms later, when the page
+	 * has been parsed enough to request them.
+	 */
+	static List<Request> launchBurst( File dir ) throws IOException
+	{
+		List<Request> requests = new ArrayList<Request>();
+		if ( new File( dir, "index.html" ).isFile())
+			requests.add( new Request( 0, "/index.html" ));
+		addFiles( dir, "/", requests );
+		if ( requests.isEmpty())
+			throw new IOException( "No files in " + dir );
+		return requests;
+	}
+
+	private static void addFiles( File dir, String path, List<Request> requests )
+	{
+		String[] names = dir.list();
+		if ( names == null )
+			return;
+		Arrays.sort( names );
+		for ( String name : names )
+		{
+			File f = new File( dir, name );
+			if ( f.isDirectory())
+				addFiles( f, path + name + "/", requests );
+			else if ( !( path + name ).equals( "/index.html" ) && !name.endsWith( ".gz" ) && !name.endsWith( ".br" ))
+				requests.add( new Request( 5000000, path + name ));
+		}
+	}
+
+	/**
+	 * Latencies and service times of completed requests, and errors.
+	 */
+	static class Stats
+	{
+		Stats( int capacity )
+		{
+			myLatencies = new long[capacity];
+			myServiceTimes = new long[capacity];
+		}
+
+		synchronized void add( long latency, long serviceTime, long bytes )
+		{
+			if ( myCount == myLatencies.length )
+			{
+				myLatencies = Arrays.copyOf( myLatencies, myCount * 2 );
+				myServiceTimes = Arrays.copyOf( myServiceTimes, myCount * 2 );
+			}
+			myLatencies[myCount] = latency;
+			myServiceTimes[myCount] = serviceTime;
+			myCount++;
+			myBytes += bytes;
+		}
+
+		synchronized void error( String kind )
+		{
+			myErrors++;
+			if ( myFirstErrors.size() < 5 )
+				myFirstErrors.add( kind );
+		}
+
+		synchronized void report( long elapsed )
+		{
+			double seconds = elapsed / 1e9;
+			System.out.println( String.format( "%d requests, %d errors in %.2f s: %.0f req/s, %.1f MB/s",
+					myCount, myErrors, seconds, myCount / seconds, myBytes / seconds / ( 1024 * 1024 )));
+			print( "latency     ", Arrays.copyOf( myLatencies, myCount ));
+			print( "service time", Arrays.copyOf( myServiceTimes, myCount ));
+			for ( String e : myFirstErrors )
+				System.out.println( "error: " + e );
+		}
+
+		private static void print( String name, long[] nanos )
+		{
+			if ( nanos.length == 0 )
+				return;
+			Arrays.sort( nanos );
+			System.out.println( String.format( "%s p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms",
+					name, percentile( nanos, 0.5 ), percentile( nanos, 0.99 ),
+					percentile( nanos, 0.999 ), nanos[nanos.length - 1] / 1e6 ));
+		}
+
+		private static double percentile( long[] sorted, double q )
+		{
+			int i = (int)Math.ceil( q * sorted.length ) - 1;
+			return sorted[Math.max( 0, Math.min( i, sorted.length - 1 ))] / 1e6;
+		}
+
+		private long[] myLatencies;
+		private long[] myServiceTimes;
+		private int myCount;
+		private long myBytes;
+		private long myErrors;
+		private final List<String> myFirstErrors = new ArrayList<String>();
+	}
+
+	static class LoadGen
+	{
+		LoadGen( InetSocketAddress address, List<Request> requests, boolean keepAlive, String headers )
+		{
+			myAddress = address;
+			myRequests = requests;
+			myKeepAlive = keepAlive;
+			myHeaders = headers;
+		}
+
+		/**
+		 * Replays the trace once with the given number of clients;
+		 * records into stats unless it is null.
+		 */
+		void run( int clients, final Stats stats ) throws InterruptedException
+		{
+			final AtomicInteger next = new AtomicInteger();
+			final CountDownLatch done = new CountDownLatch( clients );
+			final long start = System.nanoTime();
+			for ( int c = 0; c < clients; c++ )
+			{
+				Thread t = new Thread( new Runnable()
+				{
+					public void run()
+					{
+						Client client = new Client();
+						try
+						{
+							int i;
+							while (( i = next.getAndIncrement()) < myRequests.size())
+							{
+								Request r = myRequests.get( i );
+								long due = start + r.offsetNanos;
+								long wait = due - System.nanoTime();
+								if ( wait > 0 )
+									Thread.sleep( wait / 1000000, (int)( wait % 1000000 ));
+								client.fetch( r.path, due, stats );
+							}
+						}
+						catch ( InterruptedException ie ) {}
+						finally
+						{
+							client.close();
+							done.countDown();
+						}
+					}
+				}, "loadgen-" + c );
+				t.setDaemon( true );
+				t.start();
+			}
+			done.await();
+		}
+
+		/**
+		 * One connection, reopened after errors and, without keep-alive,
+		 * for every request.
+		 */
+		class Client
+		{
+			void fetch( String path, long due, Stats stats )
+			{
+				long sent = System.nanoTime();
+				try
+				{
+					if ( mySocket == null )
+						connect();
+					OutputStream out = mySocket.getOutputStream();
+					out.write(( "GET " + path + " HTTP/1.1\r\nHost: " + myAddress.getHostString() + ":" + myAddress.getPort() +
+							( myKeepAlive ? "\r\n" : "\r\nConnection: close\r\n" ) + myHeaders + "\r\n" ).getBytes( "ISO-8859-1" ));
+					out.flush();
+					long bytes = readResponse();
+					long end = System.nanoTime();
+					if ( myStatus >= 400 )
+					{
+						if ( stats != null )
+							stats.error( "HTTP " + myStatus + " for " + path );
+					}
+					else if ( stats != null )
+						stats.add( end - due, end - sent, bytes );
+					if ( !myKeepAlive || myCloses )
+						close();
+				}
+				catch ( IOException ioe )
+				{
+					if ( stats != null )
+						stats.error( ioe + " for " + path );
+					close();
+				}
+			}
+
+			private void connect() throws IOException
+			{
+				mySocket = new Socket();
+				mySocket.setTcpNoDelay( true );
+				mySocket.connect( myAddress, 10000 );
+				mySocket.setSoTimeout( 30000 );
+				myIn = mySocket.getInputStream();
+				myLim = myPos = 0;
+			}
+
+			/**
+			 * Reads the status line, headers and body; returns the body length.
+			 */
+			private long readResponse() throws IOException
+			{
+				String status = readLine();
+				if ( !status.startsWith( "HTTP/1." ) || status.length() < 12 )
+					throw new IOException( "Bad status line \"" + status + "\"" );
+				myStatus = Integer.parseInt( status.substring( 9, 12 ));
+				long length = -1;
+				boolean chunked = false;
+				myCloses = status.startsWith( "HTTP/1.0" );
+				String line;
+				while (( line = readLine()).length() > 0 )
+				{
+					int colon = line.indexOf( ':' );
+					if ( colon < 0 )
+						continue;
+					String name = line.substring( 0, colon ).trim();
+					String value = line.substring( colon + 1 ).trim();
+					if ( name.equalsIgnoreCase( "Content-Length" ))
+						length = Long.parseLong( value );
+					else if ( name.equalsIgnoreCase( "Transfer-Encoding" ))
+						chunked = value.equalsIgnoreCase( "chunked" );
+					else if ( name.equalsIgnoreCase( "Connection" ))
+						myCloses = value.equalsIgnoreCase( "close" );
+				}
+				if ( myStatus == 304 || myStatus == 204 )
+					return 0;
+				if ( chunked )
+				{
+					long total = 0;
+					long size;
+					while (( size = Long.parseLong( readLine().split( ";" )[0].trim(), 16 )) > 0 )
+					{
+						skip( size );
+						readLine();
+						total += size;
+					}
+					while ( readLine().length() > 0 ) {}	// Trailers
+					return total;
+				}
+				if ( length >= 0 )
+				{
+					skip( length );
+					return length;
+				}
+				// Delimited by the end of the connection
+				myCloses = true;
+				long total = 0;
+				while ( fill())
+				{
+					total += myLim - myPos;
+					myPos = myLim;
+				}
+				return total;
+			}
+
+			private String readLine() throws IOException
+			{
+				StringBuilder sb = new StringBuilder();
+				while ( true )
+				{
+					if ( myPos == myLim && !fill())
+						throw new IOException( "Connection closed" );
+					byte b = myBuf[myPos++];
+					if ( b == '\n' )
+						break;
+					if ( b != '\r' )
+						sb.append( (char)( b & 0xff ));
+				}
+				return sb.toString();
+			}
+
+			private void skip( long n ) throws IOException
+			{
+				while ( n > 0 )
+				{
+					if ( myPos == myLim && !fill())
+						throw new IOException( "Connection closed with " + n + " bytes of the body missing" );
+					int step = (int)Math.min( n, myLim - myPos );
+					myPos += step;
+					n -= step;
+				}
+			}
+
+			private boolean fill() throws IOException
+			{
+				int read = myIn.read( myBuf, 0, myBuf.length );
+				if ( read <= 0 )
+					return false;
+				myPos = 0;
+				myLim = read;
+				return true;
+			}
+
+			void close()
+			{
+				if ( mySocket != null )
+					try { mySocket.close(); } catch ( IOException ioe ) {}
+				mySocket = null;
+			}
+
+			private Socket mySocket;
+			private InputStream myIn;
+			private final byte[] myBuf = new byte[64 * 1024];
+			private int myPos;
+			private int myLim;
+			private int myStatus;
+			private boolean myCloses;
+		}
+
+		private final InetSocketAddress myAddress;
+		private final List<Request> myRequests;
+		private final boolean myKeepAlive;
+		private final String myHeaders;
+	}
+}
@@ -0,0 +1,272 @@
+package com.moho.wood;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks how MultipartReader splits a body into parts:
+ * <pre>
+ * java com.moho.wood.NanoHTTPDMultipartTest
+ * </pre>
+ * "mvn -B test" with the pom.xml next to this file runs it. Bodies are
+ * fed a few bytes per read, so delimiters arrive split across fill()
+ * calls at every offset, and in full reads with a delimiter at each
+ * position around the end of the reader's buffer. Exits with status 1
+ * if any check fails.
+ */
+public class NanoHTTPDMultipartTest
+{
+	private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static int theFailures;
+
+	public static void main( String[] args ) throws Exception
+	{
+		splitDelimiters();
+		bufferEnd();
+		delimiterPrefixes();
+		closeDelimiter();
+		skipping();
+		limits();
+		System.out.println( theFailures == 0 ? "OK" : theFailures + " failed" );
+		System.exit( theFailures == 0 ? 0 : 1 );
+	}
+
+	/**
+	 * A form with two fields and a file, read 1 to 64 bytes at a time.
+	 */
+	private static void splitDelimiters() throws Exception
+	{
+		byte[] file = new byte[ 3000 ];
+		for ( int i = 0; i < file.length; i++ )
+			file[i] = (byte)( i * 7 );
+		byte[][] contents = { bytes( "first value" ), file, bytes( "" ) };
+		byte[] body = body( "preamble\r\n", contents, "" );
+		for ( int chunk = 1; chunk <= 64; chunk++ )
+			expect( "chunks of " + chunk, read( body, chunk, Long.MAX_VALUE, Long.MAX_VALUE ), contents );
+	}
+
+	/**
+	 * One part, its length putting the delimiter at each position
+	 * around the end of the buffer, so it is split between two fills.
+	 */
+	private static void bufferEnd() throws Exception
+	{
+		int m = BOUNDARY.length() + 4;
+		for ( int length = BUFFER_SIZE - 200 - 2 * m; length <= BUFFER_SIZE; length++ )
+		{
+			byte[] content = new byte[ length ];
+			Arrays.fill( content, (byte)'x' );
+			byte[][] contents = { content };
+			expect( "part of " + length + " bytes", read( body( "", contents, "" ), Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE ), contents );
+		}
+	}
+
+	/**
+	 * Content holding every proper prefix of a delimiter, the last one
+	 * right before the real delimiter: none of them may end the part.
+	 */
+	private static void delimiterPrefixes() throws Exception
+	{
+		String delimiter = "\r\n--" + BOUNDARY;
+		StringBuilder sb = new StringBuilder( "\r" );
+		for ( int k = 1; k < delimiter.length(); k++ )
+			sb.append( delimiter, 0, k ).append( 'x' );
+		sb.append( delimiter, 0, delimiter.length() - 1 );
+		byte[][] contents = { bytes( sb.toString()), bytes( delimiter.substring( 0, 5 )) };
+		byte[] body = body( "", contents, "" );
+		for ( int chunk : new int[] { 1, 3, 17, Integer.MAX_VALUE })
+			expect( "delimiter prefixes, chunks of " + chunk, read( body, chunk, Long.MAX_VALUE, Long.MAX_VALUE ), contents );
+	}
+
+	/**
+	 * The close delimiter ends the body, whatever follows it. A body
+	 * without one is malformed: reading the last part fails, and so does
+	 * skipping it.
+	 */
+	private static void closeDelimiter() throws Exception
+	{
+		byte[][] contents = { bytes( "a" ), bytes( "b" ) };
+		byte[] body = body( "", contents, "epilogue\r\n--" + BOUNDARY + "\r\n\r\nnot a part" );
+		for ( int chunk : new int[] { 1, 2, Integer.MAX_VALUE })
+			expect( "epilogue, chunks of " + chunk, read( body, chunk, Long.MAX_VALUE, Long.MAX_VALUE ), contents );
+
+		byte[] full = body( "", contents, "" );
+		byte[] open = Arrays.copyOf( full, full.length - ( BOUNDARY.length() + 6 ));
+		try
+		{
+			read( open, 5, Long.MAX_VALUE, Long.MAX_VALUE );
+			check( false, "no close delimiter, read: accepted" );
+		}
+		catch ( IOException ioe )
+		{
+			// Expected, from the part's stream
+		}
+		NanoHTTPD.MultipartReader reader = new NanoHTTPD.MultipartReader(
+				new ChunkedInput( open, 5 ), BOUNDARY, Long.MAX_VALUE, Long.MAX_VALUE );
+		try
+		{
+			while ( reader.hasNext())
+				reader.next();
+			check( false, "no close delimiter, skipped: accepted" );
+		}
+		catch ( NanoHTTPD.ResponseException re )
+		{
+			check( re.getStatus().startsWith( "400 " ), "no close delimiter, skipped: status " + re.getStatus());
+		}
+	}
+
+	/**
+	 * Parts left unread, or read only in part, are skipped by next().
+	 */
+	private static void skipping() throws Exception
+	{
+		byte[] big = new byte[ 3 * BUFFER_SIZE ];
+		Arrays.fill( big, (byte)'-' );
+		byte[][] contents = { big, bytes( "second" ), big, bytes( "fourth" ) };
+		for ( int chunk : new int[] { 1000, Integer.MAX_VALUE })
+		{
+			NanoHTTPD.MultipartReader reader = new NanoHTTPD.MultipartReader(
+					new ChunkedInput( body( "", contents, "" ), chunk ), BOUNDARY, Long.MAX_VALUE, Long.MAX_VALUE );
+			List<String> got = new ArrayList<String>();
+			while ( reader.hasNext())
+			{
+				NanoHTTPD.MultipartReader.Part part = reader.next();
+				if ( part.getName().equals( "field1" ) || part.getName().equals( "field3" ))
+					got.add( part.getString());
+				else if ( part.getName().equals( "field2" ))
+					part.getInputStream().read( new byte[ 10 ], 0, 10 );
+			}
+			check( got.equals( Arrays.asList( "second", "fourth" )), "skipping, chunks of " + chunk + ": " + got );
+		}
+	}
+
+	/**
+	 * A part may be as large as the part limit and no larger; the whole
+	 * body is held to the total limit.
+	 */
+	private static void limits() throws Exception
+	{
+		byte[][] contents = { new byte[ 100 ], new byte[ 1000 ] };
+		byte[] body = body( "", contents, "" );
+		expect( "part at the limit", read( body, 64, 1000, Long.MAX_VALUE ), contents );
+		try
+		{
+			read( body, 64, 999, Long.MAX_VALUE );
+			check( false, "part over the limit: accepted" );
+		}
+		catch ( NanoHTTPD.MultipartReader.SizeLimitException sle )
+		{
+			check( sle.getMessage().indexOf( "field1" ) >= 0, "part over the limit: " + sle.getMessage());
+		}
+
+		expect( "body at the limit", read( body, 64, Long.MAX_VALUE, body.length ), contents );
+		try
+		{
+			read( body, 64, Long.MAX_VALUE, body.length - 1 );
+			check( false, "body over the limit: accepted" );
+		}
+		catch ( NanoHTTPD.MultipartReader.SizeLimitException sle )
+		{
+			// Expected
+		}
+	}
+
+	/**
+	 * A multipart/form-data body with a field per content, named field0,
+	 * field1 and so on.
+	 */
+	private static byte[] body( String preamble, byte[][] contents, String epilogue ) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write( bytes( preamble ));
+		for ( int i = 0; i < contents.length; i++ )
+		{
+			out.write( bytes(( i == 0 && preamble.length() == 0 ? "" : "\r\n" ) + "--" + BOUNDARY + "\r\n" +
+					"Content-Disposition: form-data; name=\"field" + i + "\"\r\n\r\n" ));
+			out.write( contents[i] );
+		}
+		out.write( bytes( "\r\n--" + BOUNDARY + "--" + epilogue ));
+		return out.toByteArray();
+	}
+
+	/**
+	 * The contents of the parts of body, fed chunk bytes per read.
+	 */
+	private static List<byte[]> read( byte[] body, int chunk, long maxPartBytes, long maxTotalBytes ) throws Exception
+	{
+		NanoHTTPD.MultipartReader reader = new NanoHTTPD.MultipartReader(
+				new ChunkedInput( body, chunk ), BOUNDARY, maxPartBytes, maxTotalBytes );
+		List<byte[]> parts = new ArrayList<byte[]>();
+		while ( reader.hasNext())
+		{
+			NanoHTTPD.MultipartReader.Part part = reader.next();
+			check( ( "field" + parts.size()).equals( part.getName()), "part name " + part.getName());
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			InputStream in = part.getInputStream();
+			byte[] buf = new byte[ 1000 ];
+			int read;
+			while (( read = in.read( buf, 0, buf.length )) > 0 )
+				content.write( buf, 0, read );
+			parts.add( content.toByteArray());
+		}
+		return parts;
+	}
+
+	private static void expect( String name, List<byte[]> parts, byte[][] contents )
+	{
+		check( parts.size() == contents.length, name + ": " + parts.size() + " parts" );
+		for ( int i = 0; i < Math.min( parts.size(), contents.length ); i++ )
+			check( Arrays.equals( parts.get( i ), contents[i] ), name + ": part " + i + " differs, " + parts.get( i ).length + " bytes" );
+	}
+
+	private static byte[] bytes( String s ) throws IOException
+	{
+		return s.getBytes( "ISO-8859-1" );
+	}
+
+	private static void check( boolean ok, String what )
+	{
+		if ( !ok )
+		{
+			theFailures++;
+			System.out.println( "FAIL " + what );
+		}
+	}
+
+	/**
+	 * A body handed out at most chunk bytes per read, the way it
+	 * arrives from a socket.
+	 */
+	private static class ChunkedInput extends InputStream
+	{
+		ChunkedInput( byte[] body, int chunk )
+		{
+			myBody = body;
+			myChunk = chunk;
+		}
+
+		public int read()
+		{
+			return myPos < myBody.length ? myBody[myPos++] & 0xff : -1;
+		}
+
+		public int read( byte[] b, int off, int len )
+		{
+			if ( myPos == myBody.length )
+				return -1;
+			int n = Math.min( Math.min( len, myChunk ), myBody.length - myPos );
+			System.arraycopy( myBody, myPos, b, off, n );
+			myPos += n;
+			return n;
+		}
+
+		private final byte[] myBody;
+		private final int myChunk;
+		private int myPos;
+	}
+}
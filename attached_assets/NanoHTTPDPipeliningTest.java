@@ -0,0 +1,294 @@
+package com.moho.wood;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Checks the framing of pipelined requests on one persistent connection,
+ * and how the request line and headers are decoded, on both engines:
+ * <pre>
+ * java com.moho.wood.NanoHTTPDPipeliningTest
+ * </pre>
+ * "mvn -B test" with the pom.xml next to this file runs it.
+ * Each case writes its requests at once, the last one with
+ * "Connection: close", reads until the server closes and then splits
+ * what came back by the response headers alone, the way a client does.
+ * A body where none belongs shows up as a garbled next response. Exits
+ * with status 1 if any check fails.
+ */
+public class NanoHTTPDPipeliningTest
+{
+	private static int theFailures;
+
+	public static void main( String[] args ) throws Exception
+	{
+		File root = new File( System.getProperty( "java.io.tmpdir" ), "nanohttpd-pipelining" );
+		root.mkdirs();
+		byte[] small = "hello, pipelining\n".getBytes( "US-ASCII" );
+		byte[] big = new byte[ 3 * 65536 + 17 ];
+		for ( int i = 0; i < big.length; i++ )
+			big[i] = (byte)( i * 31 );
+		write( new File( root, "small.txt" ), small );
+		write( new File( root, "big.bin" ), big );
+
+		for ( NanoHTTPD.Engine engine : NanoHTTPD.Engine.values())
+		{
+			NanoHTTPD server = new NanoHTTPD( new InetSocketAddress( "127.0.0.1", 0 ), new AndroidFile( root.getPath()), null, engine );
+			try
+			{
+				int port = server.getListeningPort();
+				headThenGet( engine + " small", port, "/small.txt", small );
+				headThenGet( engine + " big", port, "/big.bin", big );
+				refused( engine + " chunked", port, "Transfer-Encoding: chunked\r\n", "411 " );
+				refused( engine + " both lengths", port, "Transfer-Encoding: chunked\r\nContent-Length: 5\r\n", "400 " );
+				refused( engine + " bad length", port, "Content-Length: 5, 5\r\n", "400 " );
+			}
+			finally
+			{
+				server.stop();
+			}
+			staleHeaders( engine, root );
+			nonAscii( engine, root );
+		}
+		System.out.println( theFailures == 0 ? "OK" : theFailures + " failed" );
+		System.exit( theFailures == 0 ? 0 : 1 );
+	}
+
+	/**
+	 * HEAD, GET, HEAD, GET of the same file: both HEAD responses must
+	 * announce the GET's Content-Length and carry no body.
+	 */
+	private static void headThenGet( String name, int port, String path, byte[] content ) throws IOException
+	{
+		String req =
+			"HEAD " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+			"GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+			"HEAD " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+			"GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+		byte[] in = exchange( port, req );
+		int[] pos = { 0 };
+		for ( int i = 0; i < 4; i++ )
+		{
+			boolean head = i % 2 == 0;
+			String what = name + " #" + i + ( head ? " HEAD" : " GET" );
+			String header = readHeader( in, pos );
+			if ( header == null )
+			{
+				check( false, what + ": missing response" );
+				return;
+			}
+			check( header.startsWith( "HTTP/1.1 200 " ), what + ": status " + header.substring( 0, header.indexOf( '\r' )));
+			long length = contentLength( header );
+			check( length == content.length, what + ": Content-Length " + length );
+			if ( head )
+				continue;
+			if ( length < 0 || pos[0] + length > in.length )
+			{
+				check( false, what + ": short body" );
+				return;
+			}
+			check( Arrays.equals( Arrays.copyOfRange( in, pos[0], pos[0] + (int)length ), content ), what + ": body differs" );
+			pos[0] += length;
+		}
+		check( pos[0] == in.length, name + ": " + ( in.length - pos[0] ) + " bytes after the last response" );
+	}
+
+	/**
+	 * A POST with the given framing headers and a chunked body, then a
+	 * GET: the POST must be refused with the expected status and the
+	 * connection closed, so the chunks are never read as a request.
+	 */
+	private static void refused( String name, int port, String framing, String status ) throws IOException
+	{
+		String req =
+			"POST /small.txt HTTP/1.1\r\nHost: localhost\r\n" + framing + "\r\n" +
+			"5\r\nhello\r\n0\r\n\r\n" +
+			"GET /small.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+		byte[] in = exchange( port, req );
+		int[] pos = { 0 };
+		String header = readHeader( in, pos );
+		if ( header == null )
+		{
+			check( false, name + ": missing response" );
+			return;
+		}
+		check( header.startsWith( "HTTP/1.1 " + status ), name + ": status " + header.substring( 0, header.indexOf( '\r' )));
+		check( header.indexOf( "\r\nConnection: close\r\n" ) >= 0, name + ": connection not closed" );
+		long length = contentLength( header );
+		check( length >= 0 && pos[0] + length == in.length, name + ": more after the refusal" );
+	}
+
+	/**
+	 * Two requests, the second one looking up the headers the first one
+	 * kept: that must fail rather than yield the second request's bytes,
+	 * which are read to the same buffer.
+	 */
+	private static void staleHeaders( NanoHTTPD.Engine engine, File root ) throws IOException
+	{
+		final NanoHTTPD.Headers[] kept = new NanoHTTPD.Headers[1];
+		NanoHTTPD server = new NanoHTTPD( new InetSocketAddress( "127.0.0.1", 0 ), new AndroidFile( root.getPath()), null, engine )
+		{
+			public Response serve( Request request )
+			{
+				String seen = "none";
+				if ( kept[0] != null )
+				{
+					try
+					{
+						seen = "read " + kept[0].get( "x-id" );
+					}
+					catch ( IllegalStateException ise )
+					{
+						seen = "refused";
+					}
+				}
+				kept[0] = request.headers;
+				return new Response( HTTP_OK, MIME_PLAINTEXT, seen );
+			}
+		};
+		try
+		{
+			String req =
+				"GET /a HTTP/1.1\r\nHost: localhost\r\nX-Id: first\r\n\r\n" +
+				"GET /b HTTP/1.1\r\nHost: localhost\r\nX-Id: second\r\nConnection: close\r\n\r\n";
+			byte[] in = exchange( server.getListeningPort(), req );
+			int[] pos = { 0 };
+			String[] expected = { "none", "refused" };
+			for ( int i = 0; i < expected.length; i++ )
+			{
+				String what = engine + " stale headers #" + i;
+				String header = readHeader( in, pos );
+				long length = header != null ? contentLength( header ) : -1;
+				if ( length < 0 || pos[0] + length > in.length )
+				{
+					check( false, what + ": missing response" );
+					return;
+				}
+				String body = new String( in, pos[0], (int)length, "US-ASCII" );
+				check( body.equals( expected[i] ), what + ": " + body );
+				pos[0] += length;
+			}
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	/**
+	 * UTF-8 in the request line and a header value: bytes from 0x80 up
+	 * are part of the URI and the value, not white space ending them.
+	 */
+	private static void nonAscii( NanoHTTPD.Engine engine, File root ) throws IOException
+	{
+		NanoHTTPD server = new NanoHTTPD( new InetSocketAddress( "127.0.0.1", 0 ), new AndroidFile( root.getPath()), null, engine )
+		{
+			public Response serve( Request request )
+			{
+				return new Response( HTTP_OK, MIME_PLAINTEXT, request.uri + "|" + request.headers.get( "x-title" ));
+			}
+		};
+		try
+		{
+			String req =
+				"GET /caf\u00e9 HTTP/1.1\r\nHost: localhost\r\n" +
+				"X-Title: caf\u00e9 \u00e0 la carte\u00e9\r\nConnection: close\r\n\r\n";
+			byte[] in = exchange( server.getListeningPort(), req.getBytes( "UTF-8" ));
+			int[] pos = { 0 };
+			String header = readHeader( in, pos );
+			long length = header != null ? contentLength( header ) : -1;
+			if ( length < 0 || pos[0] + length > in.length )
+			{
+				check( false, engine + " non-ASCII: missing response" );
+				return;
+			}
+			String body = new String( in, pos[0], (int)length, "UTF-8" );
+			check( body.equals( "/caf\u00e9|caf\u00e9 \u00e0 la carte\u00e9" ), engine + " non-ASCII: " + body );
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	private static byte[] exchange( int port, String request ) throws IOException
+	{
+		return exchange( port, request.getBytes( "US-ASCII" ));
+	}
+
+	private static byte[] exchange( int port, byte[] request ) throws IOException
+	{
+		Socket s = new Socket( "127.0.0.1", port );
+		try
+		{
+			s.setSoTimeout( 10000 );
+			OutputStream out = s.getOutputStream();
+			out.write( request );
+			out.flush();
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] buf = new byte[ 8192 ];
+			int read;
+			while (( read = in.read( buf )) > 0 )
+				all.write( buf, 0, read );
+			return all.toByteArray();
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * The header block starting at pos[0], up to and including the blank
+	 * line, which pos[0] is moved past; null if there is none.
+	 */
+	private static String readHeader( byte[] in, int[] pos ) throws IOException
+	{
+		for ( int i = pos[0]; i + 3 < in.length; i++ )
+			if ( in[i] == '\r' && in[i + 1] == '\n' && in[i + 2] == '\r' && in[i + 3] == '\n' )
+			{
+				String header = new String( in, pos[0], i + 4 - pos[0], "ISO-8859-1" );
+				pos[0] = i + 4;
+				return header;
+			}
+		return null;
+	}
+
+	private static long contentLength( String header )
+	{
+		for ( String line : header.split( "\r\n" ))
+			if ( line.regionMatches( true, 0, "Content-Length:", 0, 15 ))
+				return Long.parseLong( line.substring( 15 ).trim());
+		return -1;
+	}
+
+	private static void write( File f, byte[] content ) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( f );
+		try
+		{
+			out.write( content );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void check( boolean ok, String what )
+	{
+		if ( !ok )
+		{
+			theFailures++;
+			System.out.println( "FAIL " + what );
+		}
+	}
+}
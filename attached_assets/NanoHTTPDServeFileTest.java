@@ -0,0 +1,270 @@
+package com.moho.wood;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Checks the conditional and range requests serveFile() answers, on
+ * both engines:
+ * <pre>
+ * java com.moho.wood.NanoHTTPDServeFileTest
+ * </pre>
+ * "mvn -B test" with the pom.xml next to this file runs it. Each case
+ * writes its requests at once on one connection, the last one with
+ * "Connection: close", and splits what comes back by the response
+ * headers, the way a client does. Exits with status 1 if any check fails.
+ */
+public class NanoHTTPDServeFileTest
+{
+	private static int theFailures;
+
+	public static void main( String[] args ) throws Exception
+	{
+		File root = new File( System.getProperty( "java.io.tmpdir" ), "nanohttpd-servefile" );
+		root.mkdirs();
+		byte[] content = new byte[ 1000 ];
+		for ( int i = 0; i < content.length; i++ )
+			content[i] = (byte)( 'a' + i % 26 );
+		write( new File( root, "file.txt" ), content );
+		parsing();
+
+		for ( NanoHTTPD.Engine engine : NanoHTTPD.Engine.values())
+		{
+			NanoHTTPD server = new NanoHTTPD( new InetSocketAddress( "127.0.0.1", 0 ), new AndroidFile( root.getPath()), null, engine );
+			try
+			{
+				int port = server.getListeningPort();
+				String[] full = exchange( port, "" );
+				String etag = headerValue( full[0], "ETag" );
+				String lastModified = headerValue( full[0], "Last-Modified" );
+				check( etag != null && lastModified != null, engine + ": validators missing" );
+				notModified( engine + " If-None-Match", port, "If-None-Match: " + etag + "\r\n", content );
+				notModified( engine + " If-Modified-Since", port, "If-Modified-Since: " + lastModified + "\r\n", content );
+
+				String e = engine + " ";
+				range( e + "suffix", port, "Range: bytes=-10\r\n", "206", "bytes 990-999/1000", slice( content, 990, 999 ));
+				range( e + "open", port, "Range: bytes=995-\r\n", "206", "bytes 995-999/1000", slice( content, 995, 999 ));
+				range( e + "overlapping", port, "Range: bytes=0-10,5-20\r\n", "206", "bytes 0-20/1000", slice( content, 0, 20 ));
+				range( e + "adjacent", port, "Range: bytes=0-9,10-19\r\n", "206", "bytes 0-19/1000", slice( content, 0, 19 ));
+				range( e + "unsatisfiable", port, "Range: bytes=1000-\r\n", "416", "bytes */1000", "" );
+				range( e + "If-Range ETag", port, "Range: bytes=0-4\r\nIf-Range: " + etag + "\r\n", "206", "bytes 0-4/1000", slice( content, 0, 4 ));
+				range( e + "If-Range date", port, "Range: bytes=0-4\r\nIf-Range: " + lastModified + "\r\n", "206", "bytes 0-4/1000", slice( content, 0, 4 ));
+				range( e + "If-Range stale", port, "Range: bytes=0-4\r\nIf-Range: \"stale\"\r\n", "200", null, slice( content, 0, 999 ));
+				multipart( e + "multipart", port, content );
+			}
+			finally
+			{
+				server.stop();
+			}
+		}
+		System.out.println( theFailures == 0 ? "OK" : theFailures + " failed" );
+		System.exit( theFailures == 0 ? 0 : 1 );
+	}
+
+	/**
+	 * A conditional GET that matches, then a plain GET on the same
+	 * connection: the 304 keeps the validators, but has no body and
+	 * neither Content-Length nor Content-Type, which would describe the
+	 * 200 it stands for.
+	 */
+	private static void notModified( String name, int port, String condition, byte[] content ) throws IOException
+	{
+		String[] r = exchange( port, condition, "" );
+		if ( r.length < 4 )
+		{
+			check( false, name + ": missing response" );
+			return;
+		}
+		check( r[0].startsWith( "HTTP/1.1 304 " ), name + ": status " + statusLine( r[0] ));
+		check( headerValue( r[0], "Content-Length" ) == null, name + ": Content-Length on the 304" );
+		check( headerValue( r[0], "Content-Type" ) == null, name + ": Content-Type on the 304" );
+		check( headerValue( r[0], "ETag" ) != null, name + ": no ETag on the 304" );
+		check( headerValue( r[0], "Last-Modified" ) != null, name + ": no Last-Modified on the 304" );
+		check( headerValue( r[0], "Date" ) != null, name + ": no Date on the 304" );
+		check( r[1].length() == 0, name + ": body on the 304" );
+		check( r[2].startsWith( "HTTP/1.1 200 " ), name + ": next status " + statusLine( r[2] ));
+		check( r[3].equals( new String( content, "ISO-8859-1" )), name + ": next body differs" );
+	}
+
+	/**
+	 * parseRanges() alone: the kinds of specs, merging, and the headers
+	 * that are ignored, for a file of 1000 bytes.
+	 */
+	private static void parsing()
+	{
+		ranges( "bytes=-100", 900, 999 );
+		ranges( "bytes=-2000", 0, 999 );
+		ranges( "bytes=990-", 990, 999 );
+		ranges( "bytes=0-10,5-20", 0, 20 );
+		ranges( "bytes=0-10,11-20", 0, 20 );
+		ranges( "bytes=500-600,0-10,5-20", 500, 600, 0, 20 );
+		ranges( "bytes=0-10,20-30,5-25", 0, 30 );
+		ranges( "bytes=900-999,-50", 900, 999 );
+		ranges( "bytes=1000-,2000-3000" );
+		check( NanoHTTPD.parseRanges( "bytes=5-1", 1000 ) == null, "parseRanges: last before first not ignored" );
+		check( NanoHTTPD.parseRanges( "items=0-1", 1000 ) == null, "parseRanges: other unit not ignored" );
+	}
+
+	private static void ranges( String range, long... expected )
+	{
+		long[] got = NanoHTTPD.parseRanges( range, 1000 );
+		check( Arrays.equals( got, expected ), "parseRanges " + range + ": " + Arrays.toString( got ));
+	}
+
+	/**
+	 * A GET with the given header lines, expecting a single body: the
+	 * status, the Content-Range (null for none) and the body.
+	 */
+	private static void range( String name, int port, String extra, String status, String contentRange, String body ) throws IOException
+	{
+		String[] r = exchange( port, extra );
+		if ( r.length < 2 )
+		{
+			check( false, name + ": missing response" );
+			return;
+		}
+		check( r[0].startsWith( "HTTP/1.1 " + status + " " ), name + ": status " + statusLine( r[0] ));
+		String got = headerValue( r[0], "Content-Range" );
+		check( contentRange == null ? got == null : contentRange.equals( got ), name + ": Content-Range " + got );
+		check( r[1].equals( body ), name + ": body differs" );
+	}
+
+	/**
+	 * Two ranges apart, one of them asked for twice: a multipart/byteranges
+	 * body with a part for each, in the order asked for.
+	 */
+	private static void multipart( String name, int port, byte[] content ) throws IOException
+	{
+		String[] r = exchange( port, "Range: bytes=500-509,0-1,500-505\r\n" );
+		if ( r.length < 2 )
+		{
+			check( false, name + ": missing response" );
+			return;
+		}
+		check( r[0].startsWith( "HTTP/1.1 206 " ), name + ": status " + statusLine( r[0] ));
+		String type = headerValue( r[0], "Content-Type" );
+		String marker = "boundary=";
+		if ( type == null || !type.startsWith( "multipart/byteranges" ) || type.indexOf( marker ) < 0 )
+		{
+			check( false, name + ": Content-Type " + type );
+			return;
+		}
+		String boundary = type.substring( type.indexOf( marker ) + marker.length());
+		String expected =
+				"\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 500-509/1000\r\n\r\n" +
+				slice( content, 500, 509 ) +
+				"\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/1000\r\n\r\n" +
+				slice( content, 0, 1 ) +
+				"\r\n--" + boundary + "--\r\n";
+		check( r[1].equals( expected ), name + ": body " + r[1] );
+	}
+
+	private static String slice( byte[] content, int first, int last ) throws IOException
+	{
+		return new String( content, first, last - first + 1, "ISO-8859-1" );
+	}
+
+	/**
+	 * GETs of /file.txt with the given extra header lines, on one
+	 * connection; returns header and body of each response, in turn.
+	 * A 304 has no body; the others are framed by Content-Length.
+	 */
+	private static String[] exchange( int port, String... extra ) throws IOException
+	{
+		StringBuilder req = new StringBuilder();
+		for ( int i = 0; i < extra.length; i++ )
+			req.append( "GET /file.txt HTTP/1.1\r\nHost: localhost\r\n" ).append( extra[i] )
+				.append( i == extra.length - 1 ? "Connection: close\r\n\r\n" : "\r\n" );
+		String in = new String( readAll( port, req.toString()), "ISO-8859-1" );
+		String[] responses = new String[ 2 * extra.length ];
+		int pos = 0;
+		int n = 0;
+		while ( n < responses.length )
+		{
+			int end = in.indexOf( "\r\n\r\n", pos );
+			if ( end < 0 )
+				break;
+			String header = in.substring( pos, end + 4 );
+			pos = end + 4;
+			String length = headerValue( header, "Content-Length" );
+			int bodyEnd = header.startsWith( "HTTP/1.1 304 " ) ? pos :
+					length != null ? Math.min( in.length(), pos + Integer.parseInt( length )) : in.length();
+			responses[n++] = header;
+			responses[n++] = in.substring( pos, bodyEnd );
+			pos = bodyEnd;
+		}
+		check( pos == in.length(), port + ": " + ( in.length() - pos ) + " bytes after the last response" );
+		String[] got = new String[ n ];
+		System.arraycopy( responses, 0, got, 0, n );
+		return got;
+	}
+
+	private static byte[] readAll( int port, String request ) throws IOException
+	{
+		Socket s = new Socket( "127.0.0.1", port );
+		try
+		{
+			s.setSoTimeout( 10000 );
+			OutputStream out = s.getOutputStream();
+			out.write( request.getBytes( "ISO-8859-1" ));
+			out.flush();
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] buf = new byte[ 8192 ];
+			int read;
+			while (( read = in.read( buf )) > 0 )
+				all.write( buf, 0, read );
+			return all.toByteArray();
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * The value of the named header line, or null.
+	 */
+	private static String headerValue( String header, String name )
+	{
+		for ( String line : header.split( "\r\n" ))
+			if ( line.regionMatches( true, 0, name + ":", 0, name.length() + 1 ))
+				return line.substring( name.length() + 1 ).trim();
+		return null;
+	}
+
+	private static String statusLine( String header )
+	{
+		int eol = header.indexOf( '\r' );
+		return eol >= 0 ? header.substring( 0, eol ) : header;
+	}
+
+	private static void write( File f, byte[] content ) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( f );
+		try
+		{
+			out.write( content );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void check( boolean ok, String what )
+	{
+		if ( !ok )
+		{
+			theFailures++;
+			System.out.println( "FAIL " + what );
+		}
+	}
+}
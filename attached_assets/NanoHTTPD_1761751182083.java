@@ -1,28 +1,65 @@
 package com.moho.wood;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.Enumeration;
-import java.util.Vector;
 import java.util.Hashtable;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.StringTokenizer;
-import java.util.TimeZone;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import android.util.Log;
 
@@ -76,1032 +113,6545 @@ public class NanoHTTPD
 		header.setProperty("Pragma", "no-cache");
 		header.setProperty("Expires", "0");
 
-		return serveFile( uri, header, myRootDir, true );
+		return serveFile( uri, Headers.of( header ), parms, myRootDir, true );
 	}
 
 	/**
-	 * HTTP response.
-	 * Return one of these from serve().
+	 * Override this instead of serve( uri, method, header, parms, files )
+	 * to read the request body as a stream.<p>
+	 *
+	 * (By default, this decodes the body into parms and files with
+	 * parseBody() and calls the classic serve().)
+	 *
+	 * @param request	The request line, headers and the not yet read body
+	 * @return HTTP response, see class Response for details
 	 */
-	public class Response
+	public Response serve( Request request )
 	{
-		/**
-		 * Default constructor: response = HTTP_OK, data = mime = 'null'
-		 */
-		public Response()
+		String metricsPath = myMetricsPath;
+		if ( metricsPath != null && metricsPath.equals( request.uri ))
+			return serveMetrics( request );
+
+		Router.Match route = myRouter.find( request.method, request.uri );
+		if ( route != null )
+			return serveRoute( request, route );
+
+		// Without an override of the classic serve() there is no need to
+		// decode the body, or copy the headers into Properties for it
+		if ( !myClassicServeOverridden )
 		{
-			this.status = HTTP_OK;
+			Log.i( LOGTAG, request.method + " '" + request.uri + "' " );
+			return serveFile( request.uri, request.headers, request.parms, myRootDir, true );
 		}
 
-		/**
-		 * Basic constructor.
-		 */
-		public Response( String status, String mimeType, InputStream data )
+		try
 		{
-			this.status = status;
-			this.mimeType = mimeType;
-			this.data = data;
+			request.parseBody();
 		}
-
-		/**
-		 * Convenience method that makes an InputStream out of
-		 * given text.
-		 */
-		public Response( String status, String mimeType, String txt )
+		catch ( ResponseException re )
 		{
-			this.status = status;
-			this.mimeType = mimeType;
-			try
-			{
-				this.data = new ByteArrayInputStream( txt.getBytes("UTF-8"));
-			}
-			catch ( java.io.UnsupportedEncodingException uee )
-			{
-				uee.printStackTrace();
-			}
+			return new Response( re.getStatus(), MIME_PLAINTEXT, re.getMessage());
 		}
-
-		/**
-		 * Adds given line to the header.
-		 */
-		public void addHeader( String name, String value )
+		catch ( IOException ioe )
 		{
-			header.put( name, value );
+			return new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
 		}
-
-		/**
-		 * HTTP status code after processing, e.g. "200 OK", HTTP_OK
-		 */
-		public String status;
-
-		/**
-		 * MIME type of content, e.g. "text/html"
-		 */
-		public String mimeType;
-
-		/**
-		 * Data of the response, may be null.
-		 */
-		public InputStream data;
-
-		/**
-		 * Headers for the HTTP response. Use addHeader()
-		 * to add lines.
-		 */
-		public Properties header = new Properties();
+		return serve( request.uri, request.method, request.headers.toProperties(), request.parms, request.files );
 	}
 
-	/**
-	 * Some HTTP response status codes
-	 */
-	public static final String
-	HTTP_OK = "200 OK",
-	HTTP_PARTIALCONTENT = "206 Partial Content",
-	HTTP_RANGE_NOT_SATISFIABLE = "416 Requested Range Not Satisfiable",
-	HTTP_REDIRECT = "301 Moved Permanently",
-	HTTP_NOTMODIFIED = "304 Not Modified",
-	HTTP_FORBIDDEN = "403 Forbidden",
-	HTTP_NOTFOUND = "404 Not Found",
-	HTTP_BADREQUEST = "400 Bad Request",
-	HTTP_INTERNALERROR = "500 Internal Server Error",
-	HTTP_NOTIMPLEMENTED = "501 Not Implemented";
-
-	/**
-	 * Common mime types for dynamic content
-	 */
-	public static final String
-	MIME_PLAINTEXT = "text/plain",
-	MIME_HTML = "text/html",
-	MIME_DEFAULT_BINARY = "application/octet-stream",
-	MIME_XML = "text/xml";
+	private boolean overridesClassicServe()
+	{
+		try
+		{
+			return getClass().getMethod( "serve", String.class, String.class,
+					Properties.class, Properties.class, Properties.class ).getDeclaringClass() != NanoHTTPD.class;
+		}
+		catch ( NoSuchMethodException e )
+		{
+			return true;
+		}
+	}
 
-	// ==================================================
-	// Socket & server code
-	// ==================================================
+	private final boolean myClassicServeOverridden = overridesClassicServe();
 
 	/**
-	 * Starts a HTTP server to given port.<p>
-	 * Throws an IOException if the socket is already in use
+	 * Answers a GET or HEAD request without a connection, e.g. from
+	 * WebViewClient.shouldInterceptRequest(), so the page's assets need
+	 * no socket, thread hand-off or HTTP parsing. uri is the path with
+	 * the query, as in a request line. The request goes through
+	 * serve( Request ) like one from the socket: routes, overrides,
+	 * ranges and the response cache all apply.<p>
+	 *
+	 * Returns null for other methods, whose body the caller cannot pass
+	 * on, and once the server is stopped; leave those to the socket.
+	 * Files and assets come back as their own stream. A StreamingBody is
+	 * written on the session executor into a bounded pipe, which is the
+	 * returned data; if no worker is free this answers "503 Service
+	 * Unavailable" rather than wait for one, as the caller is typically
+	 * the WebView's IO thread. A response to HEAD has its headers only.
 	 */
-	public NanoHTTPD(InetSocketAddress localAddr, AndroidFile wwwroot) throws IOException
+	public Response serveInProcess( String method, String uri, Map<String, String> headers )
 	{
-		myTcpPort = localAddr.getPort();
-		myRootDir = wwwroot;
-		myServerSocket = new ServerSocket();
-		myServerSocket.bind(localAddr);
-		myThread = new Thread( new Runnable()
+		if ( myState == State.STOPPED )
+			return null;
+		if ( method.equalsIgnoreCase( "GET" ))
+			method = "GET";
+		else if ( method.equalsIgnoreCase( "HEAD" ))
+			method = "HEAD";
+		else
+			return null;
+
+		Properties parms = new Properties();
+		HashMap<String, List<String>> allParms = new HashMap<String, List<String>>();
+		try
 		{
-			public void run()
+			int qmi = uri.indexOf( '?' );
+			if ( qmi >= 0 )
 			{
-				try
-				{
-					while( true )
-						new HTTPSession( myServerSocket.accept());
-				}
-				catch ( IOException ioe )
-				{}
+				decodeParms( uri.substring( qmi+1 ), parms, allParms );
+				uri = decodePercent( uri.substring( 0, qmi ));
 			}
-		});
-		myThread.setDaemon( true );
-		myThread.start();
-	}
-	
-	/**
-	 * Starts a HTTP server to given port.<p>
-	 * Throws an IOException if the socket is already in use
-	 */
-	public NanoHTTPD( int port, AndroidFile wwwroot ) throws IOException
-	{
-		myTcpPort = port;
-		this.myRootDir = wwwroot;
-		myServerSocket = new ServerSocket( myTcpPort );
-		myThread = new Thread( new Runnable()
+			else uri = decodePercent( uri );
+		}
+		catch ( ResponseException re )
 		{
-			public void run()
+			return new Response( re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+		}
+		Headers h = new Headers();
+		if ( headers != null )
+			for ( Map.Entry<String, String> e : headers.entrySet())
+				h.add( e.getKey().toLowerCase( Locale.US ), e.getValue());
+
+		Response r = serve( new Request( null, method, uri, "HTTP/1.1", h, parms, allParms, new Properties(),
+				new ContentInputStream( new byte[0], 0, 0, null, 0 )));
+		if ( r == null )
+			r = new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: Serve() returned a null response." );
+		else if ( "HEAD".equals( method ))
+		{
+			if ( r.data != null )
+				try { r.data.close(); } catch ( IOException ioe ) {}
+			r.data = null;
+			r.body = null;
+		}
+		else if ( r.body != null )
+		{
+			try
 			{
-				try
-				{
-					while( true )
-						new HTTPSession( myServerSocket.accept());
-				}
-				catch ( IOException ioe )
-				{}
+				r.data = pipe( r.body );
 			}
-		});
-		myThread.setDaemon( true );
-		myThread.start();
+			catch ( RejectedExecutionException ree )
+			{
+				r = new Response( HTTP_UNAVAILABLE, MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server is busy." );
+			}
+			r.body = null;
+		}
+		else if ( r.data != null && r.contentLength >= 0 )
+			r.data = new LimitedInputStream( r.data, r.contentLength );	// E.g. a range, whose stream goes on to the end of the file
+		myMetrics.countResponse( r.status );
+		return r;
 	}
 
 	/**
-	 * Stops the server.
+	 * The first limit bytes of a stream.
 	 */
-	public void stop()
+	private static class LimitedInputStream extends FilterInputStream
 	{
-		try
+		LimitedInputStream( InputStream in, long limit )
 		{
-			myServerSocket.close();
-			myThread.join();
+			super( in );
+			myRemaining = limit;
 		}
-		catch ( IOException ioe ) {}
-		catch ( InterruptedException e ) {}
-	}
-
-
-	/**
-	 * Starts as a standalone file server and waits for Enter.
-	 */
-	public static void main( String[] args )
-	{
-		PrintStream myOut = System.out;
-		PrintStream myErr = System.err;
-		
-		myOut.println( "NanoHTTPD 1.25 (C) 2001,2005-2011 Jarno Elonen and (C) 2010 Konstantinos Togias\n" +
-				"(Command line options: [-p port] [-d root-dir] [--licence])\n" );
 
-		// Defaults
-		int port = 80;
-		File wwwroot = new File(".").getAbsoluteFile();
+		public int read() throws IOException
+		{
+			if ( myRemaining <= 0 )
+				return -1;
+			int b = in.read();
+			if ( b >= 0 )
+				myRemaining--;
+			return b;
+		}
 
-		// Show licence if requested
-		for ( int i=0; i<args.length; ++i )
-			if(args[i].equalsIgnoreCase("-p"))
-				port = Integer.parseInt( args[i+1] );
-			else if(args[i].equalsIgnoreCase("-d"))
-				wwwroot = new File( args[i+1] ).getAbsoluteFile();
-			else if ( args[i].toLowerCase().endsWith( "licence" ))
-			{
-				myOut.println( LICENCE + "\n" );
-				break;
-			}
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if ( myRemaining <= 0 )
+				return len == 0 ? 0 : -1;
+			int n = in.read( b, off, (int)Math.min( len, myRemaining ));
+			if ( n > 0 )
+				myRemaining -= n;
+			return n;
+		}
 
-		try
+		public long skip( long n ) throws IOException
 		{
-			new NanoHTTPD( port, new AndroidFile(wwwroot.getPath()) );
+			long skipped = in.skip( Math.min( n, myRemaining ));
+			myRemaining -= skipped;
+			return skipped;
 		}
-		catch( IOException ioe )
+
+		public int available() throws IOException
 		{
-			myErr.println( "Couldn't start server:\n" + ioe );
-			System.exit( -1 );
+			return (int)Math.min( in.available(), myRemaining );
 		}
 
-		myOut.println( "Now serving files in port " + port + " from \"" + wwwroot + "\"" );
-		myOut.println( "Hit Enter to stop.\n" );
+		public boolean markSupported()
+		{
+			return false;
+		}
 
-		try { System.in.read(); } catch( Throwable t ) {}
+		private long myRemaining;
 	}
 
 	/**
-	 * Handles one session, i.e. parses the HTTP request
-	 * and returns the response.
+	 * Runs body on the session executor, returning what it writes. Throws
+	 * RejectedExecutionException instead of waiting for a free worker.
 	 */
-	private class HTTPSession implements Runnable
+	private InputStream pipe( final StreamingBody body )
 	{
-		public HTTPSession( Socket s )
-		{
-			mySocket = s;
-			Thread t = new Thread( this );
-			t.setDaemon( true );
-			t.start();
-		}
-
-		public void run()
+		final BoundedPipe pipe = new BoundedPipe( theBufferSize, myBodyTimeout );
+		theNoWait.set( Boolean.TRUE );
+		try
 		{
-			try
+			mySessionExecutor.execute( new Runnable()
 			{
-				InputStream is = mySocket.getInputStream();
-				if ( is == null) return;
-
-				// Read the first 8192 bytes.
-				// The full header should fit in here.
-				// Apache's default header limit is 8KB.
-				// Do NOT assume that a single read will get the entire header at once!
-				final int bufsize = 8192;
-				byte[] buf = new byte[bufsize];
-				int splitbyte = 0;
-				int rlen = 0;
-				{
-					int read = is.read(buf, 0, bufsize);
-					while (read > 0)
+				public void run()
+				{
+					Throwable failure = null;
+					try
 					{
-						rlen += read;
-						splitbyte = findHeaderEnd(buf, rlen);
-						if (splitbyte > 0)
-							break;
-						read = is.read(buf, rlen, bufsize - rlen);
+						body.writeTo( pipe.sink );
 					}
-				}
-
-				// Create a BufferedReader for parsing the header.
-				ByteArrayInputStream hbis = new ByteArrayInputStream(buf, 0, rlen);
-				BufferedReader hin = new BufferedReader( new InputStreamReader( hbis ));
-				Properties pre = new Properties();
-				Properties parms = new Properties();
-				Properties header = new Properties();
-				Properties files = new Properties();
-
-				// Decode the header into parms and header java properties
-				decodeHeader(hin, pre, parms, header);
-				String method = pre.getProperty("method");
-				String uri = pre.getProperty("uri");
-
-				long size = 0x7FFFFFFFFFFFFFFFl;
-				String contentLength = header.getProperty("content-length");
-				if (contentLength != null)
-				{
-					try { size = Integer.parseInt(contentLength); }
-					catch (NumberFormatException ex) {}
-				}
-
-				// Write the part of body already read to ByteArrayOutputStream f
-				ByteArrayOutputStream f = new ByteArrayOutputStream();
-				if (splitbyte < rlen)
-					f.write(buf, splitbyte, rlen-splitbyte);
-
-				// While Firefox sends on the first read all the data fitting
-				// our buffer, Chrome and Opera send only the headers even if
-				// there is data for the body. We do some magic here to find
-				// out whether we have already consumed part of body, if we
-				// have reached the end of the data to be sent or we should
-				// expect the first byte of the body at the next read.
-				if (splitbyte < rlen)
-					size -= rlen-splitbyte+1;
-				else if (splitbyte==0 || size == 0x7FFFFFFFFFFFFFFFl)
-					size = 0;
-
-				// Now read all the body and write it to f
-				buf = new byte[512];
-				while ( rlen >= 0 && size > 0 )
-				{
-					rlen = is.read(buf, 0, 512);
-					size -= rlen;
-					if (rlen > 0)
-						f.write(buf, 0, rlen);
-				}
-
-				// Get the raw body as a byte []
-				byte [] fbuf = f.toByteArray();
-
-				// Create a BufferedReader for easily reading it as string.
-				ByteArrayInputStream bin = new ByteArrayInputStream(fbuf);
-				BufferedReader in = new BufferedReader( new InputStreamReader(bin));
-
-				// If the method is POST, there may be parameters
-				// in data section, too, read it:
-				if ( method.equalsIgnoreCase( "POST" ))
-				{
-					String contentType = "";
-					String contentTypeHeader = header.getProperty("content-type");
-					StringTokenizer st = new StringTokenizer( contentTypeHeader , "; " );
-					if ( st.hasMoreTokens()) {
-						contentType = st.nextToken();
+					catch ( IOException ioe )
+					{
+						failure = ioe;
+						Log.w( LOGTAG, "Streaming body failed: " + ioe );
 					}
-
-					if (contentType.equalsIgnoreCase("multipart/form-data"))
+					catch ( RuntimeException re )
 					{
-						// Handle multipart/form-data
-						if ( !st.hasMoreTokens())
-							sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html" );
-						String boundaryExp = st.nextToken();
-						st = new StringTokenizer( boundaryExp , "=" );
-						if (st.countTokens() != 2)
-							sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary syntax error. Usage: GET /example/file.html" );
-						st.nextToken();
-						String boundary = st.nextToken();
-
-						decodeMultipartData(boundary, fbuf, in, parms, files);
+						failure = re;
+						throw re;
 					}
-					else
+					finally
 					{
-						// Handle application/x-www-form-urlencoded
-						String postLine = "";
-						char pbuf[] = new char[512];
-						int read = in.read(pbuf);
-						while ( read >= 0 && !postLine.endsWith("\r\n") )
-						{
-							postLine += String.valueOf(pbuf, 0, read);
-							read = in.read(pbuf);
-						}
-						postLine = postLine.trim();
-						decodeParms( postLine, parms );
+						pipe.finish( failure );
 					}
 				}
+			});
+		}
+		finally
+		{
+			theNoWait.remove();
+		}
+		return pipe;
+	}
 
-				if ( method.equalsIgnoreCase( "PUT" ))
-					files.put("content", saveTmpFile( fbuf, 0, f.size()));
+	/**
+	 * Set while a task is handed to the session executor by a thread that
+	 * must not wait for it: pipe(), whose caller reads what the body
+	 * writes, and the NIO selector thread. The rejection policies then
+	 * neither block the caller nor run the task on it.
+	 */
+	private static final ThreadLocal<Boolean> theNoWait = new ThreadLocal<Boolean>();
 
-				// Ok, now do the serve()
-				Response r = serve( uri, method, header, parms, files );
-				if ( r == null )
-					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
-				else
-					sendResponse( r.status, r.mimeType, r.header, r.data );
+	/**
+	 * A pipe of at most capacity bytes from a StreamingBody on a worker to
+	 * the reader of an in-process response. Unlike PipedInputStream it
+	 * does not tie its ends to the threads that used them, and a side
+	 * waiting longer than the timeout for the other fails instead of
+	 * blocking for good: a reader that stopped reading frees the worker,
+	 * a body that stalls frees the reader.
+	 */
+	private static class BoundedPipe extends InputStream
+	{
+		BoundedPipe( int capacity, int timeoutMillis )
+		{
+			myBuf = new byte[capacity];
+			myTimeout = timeoutMillis;
+		}
 
-				in.close();
-				is.close();
+		/**
+		 * The writing end; closing it is the end of the stream.
+		 */
+		final OutputStream sink = new OutputStream()
+		{
+			public void write( int b ) throws IOException
+			{
+				write( new byte[] { (byte)b }, 0, 1 );
 			}
-			catch ( IOException ioe )
+
+			public void write( byte[] b, int off, int len ) throws IOException
 			{
-				try
-				{
-					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-				}
-				catch ( Throwable t ) {}
+				put( b, off, len );
 			}
-			catch ( InterruptedException ie )
+
+			public void close()
 			{
-				// Thrown by sendError, ignore and exit the thread.
+				finish( null );
 			}
-		}
+		};
 
-		/**
-		 * Decodes the sent headers and loads the data into
-		 * java Properties' key - value pairs
-		 **/
-		private  void decodeHeader(BufferedReader in, Properties pre, Properties parms, Properties header)
-				throws InterruptedException
-				{
-			try {
-				// Read the request line
-				String inLine = in.readLine();
-				if (inLine == null) sendError( HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html" );
-				StringTokenizer st = new StringTokenizer( inLine );
-				if ( !st.hasMoreTokens())
-					sendError( HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html" );
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+		}
 
-				String method = st.nextToken();
-				pre.put("method", method);
+		public synchronized int read( byte[] b, int off, int len ) throws IOException
+		{
+			if ( len == 0 )
+				return 0;
+			long deadline = System.currentTimeMillis() + myTimeout;
+			while ( myCount == 0 )
+			{
+				if ( myClosed )
+					throw new IOException( "Pipe closed" );
+				if ( myFailure != null )
+					throw new IOException( "Streaming body failed: " + myFailure );
+				if ( myFinished )
+					return -1;
+				await( deadline );
+			}
+			int n = Math.min( len, myCount );
+			int first = Math.min( n, myBuf.length - myStart );
+			System.arraycopy( myBuf, myStart, b, off, first );
+			System.arraycopy( myBuf, 0, b, off + first, n - first );
+			myStart = ( myStart + n ) % myBuf.length;
+			myCount -= n;
+			notifyAll();
+			return n;
+		}
 
-				if ( !st.hasMoreTokens())
-					sendError( HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html" );
+		public synchronized int available()
+		{
+			return myCount;
+		}
 
-				String uri = st.nextToken();
+		public synchronized void close()
+		{
+			myClosed = true;
+			notifyAll();
+		}
 
-				// Decode parameters from the URI
-				int qmi = uri.indexOf( '?' );
-				if ( qmi >= 0 )
-				{
-					decodeParms( uri.substring( qmi+1 ), parms );
-					uri = decodePercent( uri.substring( 0, qmi ));
-				}
-				else uri = decodePercent(uri);
-
-				// If there's another token, it's protocol version,
-				// followed by HTTP headers. Ignore version but parse headers.
-				// NOTE: this now forces header names lowercase since they are
-				// case insensitive and vary by client.
-				if ( st.hasMoreTokens())
+		private synchronized void put( byte[] b, int off, int len ) throws IOException
+		{
+			long deadline = System.currentTimeMillis() + myTimeout;
+			while ( len > 0 )
+			{
+				if ( myClosed )
+					throw new IOException( "Pipe closed by the reader" );
+				if ( myFinished )
+					throw new IOException( "Pipe closed" );
+				if ( myCount == myBuf.length )
 				{
-					String line = in.readLine();
-					while ( line != null && line.trim().length() > 0 )
-					{
-						int p = line.indexOf( ':' );
-						if ( p >= 0 )
-							header.put( line.substring(0,p).trim().toLowerCase(), line.substring(p+1).trim());
-						line = in.readLine();
-					}
+					await( deadline );
+					continue;
 				}
+				int end = ( myStart + myCount ) % myBuf.length;
+				int n = Math.min( len, Math.min( myBuf.length - myCount, myBuf.length - end ));
+				System.arraycopy( b, off, myBuf, end, n );
+				myCount += n;
+				off += n;
+				len -= n;
+				deadline = System.currentTimeMillis() + myTimeout;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Ends the stream, with failure if the body threw.
+		 */
+		synchronized void finish( Throwable failure )
+		{
+			if ( myFinished )
+				return;
+			myFinished = true;
+			myFailure = failure;
+			notifyAll();
+		}
 
-				pre.put("uri", uri);
+		private void await( long deadline ) throws IOException
+		{
+			long left = deadline - System.currentTimeMillis();
+			if ( left <= 0 )
+				throw new InterruptedIOException( "Pipe timed out after " + myTimeout + " ms" );
+			try
+			{
+				wait( left );
 			}
-			catch ( IOException ioe )
+			catch ( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted" );
+			}
+		}
+
+		private final byte[] myBuf;
+		private final int myTimeout;
+		private int myStart, myCount;
+		private boolean myFinished, myClosed;
+		private Throwable myFailure;
+	}
+
+	/**
+	 * Routes of dynamic endpoints; requests no route matches go on
+	 * to the classic serve() and the file server.
+	 */
+	public Router getRouter()
+	{
+		return myRouter;
+	}
+
+	private Response serveRoute( Request request, Router.Match route )
+	{
+		if ( route.handler == null )
+		{
+			Response res = new Response( HTTP_METHOD_NOT_ALLOWED, MIME_PLAINTEXT,
+					"METHOD NOT ALLOWED: " + request.method + " " + request.uri );
+			res.addHeader( "Allow", route.allowed );
+			return res;
+		}
+		request.myPathParams = route.params;
+		try
+		{
+			return route.handler.serve( request );
+		}
+		catch ( ResponseException re )
+		{
+			return new Response( re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+		}
+		catch ( IOException ioe )
+		{
+			return new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+		}
+	}
+
+	private final Router myRouter = new Router();
+
+	/**
+	 * The server's counters and latency histograms.
+	 */
+	public Metrics getMetrics()
+	{
+		return myMetrics;
+	}
+
+	/**
+	 * Serves the metrics at the given path, e.g. "/__metrics"; null, the
+	 * default, serves them nowhere.
+	 */
+	public void setMetricsPath( String path )
+	{
+		myMetricsPath = path;
+	}
+
+	private Response serveMetrics( Request request )
+	{
+		String accept = request.headers.get( "accept", "" );
+		boolean prometheus = "prometheus".equals( request.parms.getProperty( "format" )) ||
+				( accept.startsWith( "text/plain" ) || accept.startsWith( "application/openmetrics-text" ));
+		Response res = prometheus
+				? new Response( HTTP_OK, "text/plain; version=0.0.4; charset=utf-8", myMetrics.toPrometheus( myCache ))
+				: new Response( HTTP_OK, "application/json", myMetrics.toJson( myCache ));
+		res.addHeader( "Cache-Control", "no-store" );
+		return res;
+	}
+
+	private final Metrics myMetrics = new Metrics();
+	private volatile String myMetricsPath;
+
+	/**
+	 * Serves the requests of a route, see Router.
+	 */
+	public interface RouteHandler
+	{
+		Response serve( Request request ) throws IOException, ResponseException;
+	}
+
+	/**
+	 * Maps methods and path patterns to handlers, e.g.
+	 * <pre>
+	 * getRouter().add( "GET", "/api/saves/{slot}", new RouteHandler() {
+	 *     public Response serve( Request request ) {
+	 *         String slot = request.getPathParam( "slot" );
+	 *         ...
+	 *     }
+	 * });
+	 * </pre>
+	 * A pattern is a path of literal segments, "{name}" segments that
+	 * match any one segment, and optionally a last "*" that matches the
+	 * rest of the path, as parameter "*". Literal segments take precedence
+	 * over parameters, and parameters over "*". The method "*" matches any
+	 * method; HEAD falls back to GET.<p>
+	 *
+	 * The routes are compiled into a trie of path segments, so a lookup
+	 * walks the path once however many routes there are. Each change
+	 * compiles a new trie and swaps it in: routes can be changed while the
+	 * server runs, and lookups take no lock.
+	 */
+	public static class Router
+	{
+		/**
+		 * The result of a lookup whose path matched a route.
+		 */
+		public static class Match
+		{
+			Match( RouteHandler handler, Properties params, String allowed )
 			{
-				sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+				this.handler = handler;
+				this.params = params;
+				this.allowed = allowed;
 			}
+
+			/**
+			 * The handler, or null if no route of the path takes the method.
+			 */
+			public final RouteHandler handler;
+
+			/**
+			 * Values of the pattern's parameters, by name.
+			 */
+			public final Properties params;
+
+			/**
+			 * Without a handler, the methods the path does take, for Allow.
+			 */
+			public final String allowed;
+		}
+
+		/**
+		 * Adds a route, replacing the one with the same method and pattern.
+		 */
+		public synchronized void add( String method, String pattern, RouteHandler handler )
+		{
+			Route route = new Route( method.toUpperCase( Locale.US ), pattern, handler );
+			remove( route.method, pattern );
+			myRoutes.add( route );
+			compile();
+		}
+
+		public synchronized boolean remove( String method, String pattern )
+		{
+			for ( Iterator<Route> it = myRoutes.iterator(); it.hasNext(); )
+			{
+				Route route = it.next();
+				if ( route.method.equalsIgnoreCase( method ) && route.pattern.equals( pattern ))
+				{
+					it.remove();
+					compile();
+					return true;
 				}
+			}
+			return false;
+		}
+
+		public boolean isEmpty()
+		{
+			return myRoot == null;
+		}
 
 		/**
-		 * Decodes the Multipart Body data and put it
-		 * into java Properties' key - value pairs.
-		 **/
-		private void decodeMultipartData(String boundary, byte[] fbuf, BufferedReader in, Properties parms, Properties files)
-				throws InterruptedException
+		 * Looks up the route of a request, null if no route has its path.
+		 */
+		public Match find( String method, String path )
+		{
+			Node root = myRoot;
+			if ( root == null )
+				return null;
+			String[] values = new String[root.maxParams];
+			Node node = match( root, path, 0, values, 0 );
+			if ( node == null )
+				return null;
+			Route route = node.routes.get( method );
+			if ( route == null && method.equals( "HEAD" ))
+				route = node.routes.get( "GET" );
+			if ( route == null )
+				route = node.routes.get( "*" );
+			if ( route == null )
+			{
+				StringBuilder allowed = new StringBuilder();
+				for ( String m : node.routes.keySet())
+					allowed.append( allowed.length() > 0 ? ", " : "" ).append( m );
+				return new Match( null, null, allowed.toString());
+			}
+			Properties params = new Properties();
+			for ( int i = 0; i < route.names.length; i++ )
+				params.put( route.names[i], values[i] );
+			return new Match( route.handler, params, null );
+		}
+
+		/**
+		 * The node with routes that path matches from pos on, trying literal
+		 * segments before parameters before "*". Parameter values go to
+		 * values from index depth on.
+		 */
+		private static Node match( Node node, String path, int pos, String[] values, int depth )
+		{
+			int len = path.length();
+			while ( pos < len && path.charAt( pos ) == '/' )
+				pos++;
+			if ( pos == len )
+			{
+				if ( node.routes != null )
+					return node;
+				if ( node.wildcard != null )
 				{
-			try
+					values[depth] = "";
+					return node.wildcard;
+				}
+				return null;
+			}
+			int end = path.indexOf( '/', pos );
+			if ( end < 0 )
+				end = len;
+			if ( node.literals != null )
+			{
+				Node child = node.literals.get( path.substring( pos, end ));
+				if ( child != null )
+				{
+					Node found = match( child, path, end, values, depth );
+					if ( found != null )
+						return found;
+				}
+			}
+			if ( node.param != null )
 			{
-				int[] bpositions = getBoundaryPositions(fbuf,boundary.getBytes());
-				int boundarycount = 1;
-				String mpline = in.readLine();
-				while ( mpline != null )
-				{
-					if (mpline.indexOf(boundary) == -1)
-						sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but next chunk does not start with boundary. Usage: GET /example/file.html" );
-					boundarycount++;
-					Properties item = new Properties();
-					mpline = in.readLine();
-					while (mpline != null && mpline.trim().length() > 0)
+				Node found = match( node.param, path, end, values, depth + 1 );
+				if ( found != null )
+				{
+					values[depth] = path.substring( pos, end );
+					return found;
+				}
+			}
+			if ( node.wildcard != null )
+			{
+				values[depth] = path.substring( pos );
+				return node.wildcard;
+			}
+			return null;
+		}
+
+		private void compile()
+		{
+			if ( myRoutes.isEmpty())
+			{
+				myRoot = null;
+				return;
+			}
+			Node root = new Node();
+			int maxParams = 0;
+			for ( Route route : myRoutes )
+			{
+				Node node = root;
+				for ( String segment : route.segments )
+				{
+					if ( segment.equals( "*" ))
 					{
-						int p = mpline.indexOf( ':' );
-						if (p != -1)
-							item.put( mpline.substring(0,p).trim().toLowerCase(), mpline.substring(p+1).trim());
-						mpline = in.readLine();
+						if ( node.wildcard == null )
+							node.wildcard = new Node();
+						node = node.wildcard;
 					}
-					if (mpline != null)
+					else if ( segment.startsWith( "{" ))
 					{
-						String contentDisposition = item.getProperty("content-disposition");
-						if (contentDisposition == null)
-						{
-							sendError( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but no content-disposition info found. Usage: GET /example/file.html" );
-						}
-						StringTokenizer st = new StringTokenizer( contentDisposition , "; " );
-						Properties disposition = new Properties();
-						while ( st.hasMoreTokens())
-						{
-							String token = st.nextToken();
-							int p = token.indexOf( '=' );
-							if (p!=-1)
-								disposition.put( token.substring(0,p).trim().toLowerCase(), token.substring(p+1).trim());
-						}
-						String pname = disposition.getProperty("name");
-						pname = pname.substring(1,pname.length()-1);
+						if ( node.param == null )
+							node.param = new Node();
+						node = node.param;
+					}
+					else
+					{
+						if ( node.literals == null )
+							node.literals = new HashMap<String, Node>();
+						Node child = node.literals.get( segment );
+						if ( child == null )
+							node.literals.put( segment, child = new Node());
+						node = child;
+					}
+				}
+				if ( node.routes == null )
+					node.routes = new LinkedHashMap<String, Route>();
+				node.routes.put( route.method, route );
+				maxParams = Math.max( maxParams, route.names.length );
+			}
+			root.maxParams = maxParams;
+			myRoot = root;
+		}
 
-						String value = "";
-						if (item.getProperty("content-type") == null) {
-							while (mpline != null && mpline.indexOf(boundary) == -1)
-							{
-								mpline = in.readLine();
-								if ( mpline != null)
-								{
-									int d = mpline.indexOf(boundary);
-									if (d == -1)
-										value+=mpline;
-									else
-										value+=mpline.substring(0,d-2);
-								}
-							}
-						}
-						else
-						{
-							if (boundarycount> bpositions.length)
-								sendError( HTTP_INTERNALERROR, "Error processing request" );
-							int offset = stripMultipartHeaders(fbuf, bpositions[boundarycount-2]);
-							String path = saveTmpFile(fbuf, offset, bpositions[boundarycount-1]-offset-4);
-							files.put(pname, path);
-							value = disposition.getProperty("filename");
-							value = value.substring(1,value.length()-1);
-							do {
-								mpline = in.readLine();
-							} while (mpline != null && mpline.indexOf(boundary) == -1);
-						}
-						parms.put(pname, value);
+		private static class Route
+		{
+			Route( String method, String pattern, RouteHandler handler )
+			{
+				this.method = method;
+				this.pattern = pattern;
+				this.handler = handler;
+				ArrayList<String> segments = new ArrayList<String>();
+				ArrayList<String> names = new ArrayList<String>();
+				StringTokenizer st = new StringTokenizer( pattern, "/" );
+				while ( st.hasMoreTokens())
+				{
+					String segment = st.nextToken();
+					if ( segment.equals( "*" ))
+					{
+						if ( st.hasMoreTokens())
+							throw new IllegalArgumentException( "\"*\" must be the last segment: " + pattern );
+						names.add( "*" );
 					}
+					else if ( segment.startsWith( "{" ) && segment.endsWith( "}" ))
+						names.add( segment.substring( 1, segment.length() - 1 ));
+					segments.add( segment );
 				}
+				this.segments = segments.toArray( new String[segments.size()] );
+				this.names = names.toArray( new String[names.size()] );
 			}
-			catch ( IOException ioe )
+
+			final String method;
+			final String pattern;
+			final RouteHandler handler;
+			final String[] segments;
+			final String[] names;
+		}
+
+		private static class Node
+		{
+			HashMap<String, Node> literals;
+			Node param;
+			Node wildcard;
+			LinkedHashMap<String, Route> routes;
+			int maxParams;	// Of all routes, kept in the root
+		}
+
+		private final ArrayList<Route> myRoutes = new ArrayList<Route>();
+		private volatile Node myRoot;
+	}
+
+	/**
+	 * HTTP request, as passed to serve( Request ).<p>
+	 *
+	 * The body is left on the connection until it is asked for: stream it
+	 * from getInputStream() or getChannel(), e.g. to save an upload, or
+	 * call parseBody() to decode a form into parms and files. Whatever
+	 * serve() does not read is skipped before the next request.
+	 */
+	public class Request
+	{
+		Request( HTTPSession session, ContentInputStream body )
+		{
+			this( session, session.method, session.uri, session.protocol, session.headers,
+					session.parms, session.allParms, session.files, body );
+		}
+
+		/**
+		 * A request without a session, for serveInProcess().
+		 */
+		Request( HTTPSession session, String method, String uri, String protocol, Headers headers,
+				Properties parms, HashMap<String, List<String>> allParms, Properties files, ContentInputStream body )
+		{
+			mySession = session;
+			myBody = body;
+			myAllParms = allParms;
+			this.method = method;
+			this.uri = uri;
+			this.protocol = protocol;
+			this.headers = headers;
+			this.parms = parms;
+			this.allParms = Collections.unmodifiableMap( allParms );
+			this.files = files;
+		}
+
+		/**
+		 * Length of the body as given by content-length, 0 if there is none.
+		 */
+		public long getContentLength()
+		{
+			return myBody.getLength();
+		}
+
+		/**
+		 * The body; it ends after content-length bytes. Closing it
+		 * leaves the connection open.
+		 */
+		public InputStream getInputStream()
+		{
+			return myBody;
+		}
+
+		/**
+		 * The body as a channel, see getInputStream().
+		 */
+		public ReadableByteChannel getChannel()
+		{
+			if ( myChannel == null )
+				myChannel = Channels.newChannel( myBody );
+			return myChannel;
+		}
+
+		/**
+		 * The value of a parameter of the route pattern, e.g. "slot" of
+		 * "/api/saves/{slot}", or null.
+		 */
+		public String getPathParam( String name )
+		{
+			return myPathParams != null ? myPathParams.getProperty( name ) : null;
+		}
+
+		/**
+		 * Decodes the body the way the classic serve() expects it:
+		 * POSTed form fields into parms, multipart file uploads and
+		 * the content of a PUT into temporary files listed in files.
+		 * Url-encoded forms are decoded one field at a time as they
+		 * arrive, and PUT content goes straight to disk.
+		 */
+		public void parseBody() throws IOException, ResponseException
+		{
+			if ( method.equalsIgnoreCase( "POST" ))
+			{
+				String contentType = "";
+				String contentTypeHeader = headers.get( "content-type", "" );
+				StringTokenizer st = new StringTokenizer( contentTypeHeader , "; " );
+				if ( st.hasMoreTokens())
+					contentType = st.nextToken();
+
+				if ( contentType.equalsIgnoreCase( "multipart/form-data" ))
+				{
+					// Handle multipart/form-data
+					String boundary = MultipartReader.headerParam( contentTypeHeader, "boundary" );
+					if ( boundary == null )
+						throw new ResponseException( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html" );
+					if ( boundary.length() == 0 || boundary.length() > 70 )
+						throw new ResponseException( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary syntax error. Usage: GET /example/file.html" );
+					decodeMultipart( boundary );
+				}
+				else
+				{
+					// Handle application/x-www-form-urlencoded
+					decodeUrlEncoded();
+				}
+			}
+
+			if ( method.equalsIgnoreCase( "PUT" ))
+				files.put( "content", mySession.saveTmpFile( myBody ));
+		}
+
+		/**
+		 * Decodes a multipart/form-data body part by part: fields into
+		 * parms, files streamed into temporary files listed in files,
+		 * with their file names in parms.
+		 */
+		private void decodeMultipart( String boundary ) throws IOException, ResponseException
+		{
+			long maxTotal = myMaxMultipartBytes;
+			if ( getContentLength() > maxTotal )
+				throw new ResponseException( HTTP_ENTITY_TOO_LARGE, "REQUEST ENTITY TOO LARGE: Multipart body exceeds " + maxTotal + " bytes." );
+			MultipartReader reader = new MultipartReader( myBody, boundary, myMaxPartBytes, maxTotal );
+			try
+			{
+				while ( reader.hasNext())
+				{
+					MultipartReader.Part part = reader.next();
+					String name = part.getName();
+					if ( name == null )
+						throw new ResponseException( HTTP_BADREQUEST, "BAD REQUEST: Content type is multipart/form-data but no content-disposition info found. Usage: GET /example/file.html" );
+					if ( part.isFile())
+					{
+						files.put( name, mySession.saveTmpFile( part.getInputStream()));
+						addParm( name, part.getFileName() != null ? part.getFileName() : "", parms, myAllParms );
+					}
+					else
+						addParm( name, part.getString(), parms, myAllParms );
+				}
+			}
+			catch ( MultipartReader.SizeLimitException sle )
+			{
+				throw new ResponseException( HTTP_ENTITY_TOO_LARGE, "REQUEST ENTITY TOO LARGE: " + sle.getMessage());
+			}
+		}
+
+		/**
+		 * Decodes "name=value&..." from the body, one field at a time.
+		 */
+		private void decodeUrlEncoded() throws IOException, ResponseException
+		{
+			byte[] field = new byte[512];
+			int len = 0;
+			byte[] buf = new byte[512];
+			int read;
+			while (( read = myBody.read( buf, 0, buf.length )) > 0 )
 			{
-				sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+				for ( int i = 0; i < read; i++ )
+				{
+					if ( buf[i] == '&' )
+					{
+						decodeField( field, 0, len );
+						len = 0;
+					}
+					else
+					{
+						if ( len == field.length )
+							field = Arrays.copyOf( field, len * 2 );
+						field[len++] = buf[i];
+					}
+				}
 			}
+			// Forms may end with a line break
+			int start = 0;
+			while ( start < len && field[start] <= ' ' && field[start] >= 0 )
+				start++;
+			while ( len > start && field[len-1] <= ' ' && field[len-1] >= 0 )
+				len--;
+			decodeField( field, start, len );
+		}
+
+		/**
+		 * Decodes one "name=value" field of a form, in place.
+		 */
+		private void decodeField( byte[] field, int start, int end ) throws ResponseException
+		{
+			for ( int sep = start; sep < end; sep++ )
+				if ( field[sep] == '=' )
+				{
+					addParm( decodePercent( field, start, sep ).trim(),
+							decodePercent( field, sep + 1, end ), parms, myAllParms );
+					return;
 				}
+		}
+
+		/**
+		 * "GET", "POST" etc.
+		 */
+		public final String method;
+
+		/**
+		 * Percent-decoded URI without parameters, for example "/index.cgi"
+		 */
+		public final String uri;
+
+		/**
+		 * "HTTP/1.1", "HTTP/1.0", or null for a HTTP/0.9 request line.
+		 */
+		public final String protocol;
+
+		/**
+		 * Header entries, looked up by name in any case. Only valid while
+		 * the request is being served, see Headers.
+		 */
+		public final Headers headers;
+
+		/**
+		 * Parameters from the URI (and the body, once parsed) and
+		 * uploaded files, as in serve().
+		 */
+		public final Properties parms, files;
+
+		/**
+		 * Every value of each parameter, in the order they came;
+		 * parms only has the last one.
+		 */
+		public final Map<String, List<String>> allParms;
+
+		/**
+		 * The values of a parameter, empty if there are none.
+		 */
+		public List<String> getParms( String name )
+		{
+			List<String> values = allParms.get( name );
+			return values != null ? Collections.unmodifiableList( values ) : Collections.<String>emptyList();
+		}
+
+		/**
+		 * Takes over the file parseBody() saved the upload of the given
+		 * name to, so it is not deleted once the request is answered and
+		 * no longer counts against the upload quota. Move it out of the
+		 * upload directory, files left there are swept after a while.
+		 * Returns null if there is no such upload.
+		 */
+		public File claimFile( String name )
+		{
+			String path = files.getProperty( name );
+			if ( path == null || path.length() == 0 )
+				return null;
+			File f = new File( path );
+			return mySession != null && mySession.claimUpload( f ) ? f : null;
+		}
+
+		private final HTTPSession mySession;
+		private final ContentInputStream myBody;
+		private final HashMap<String, List<String>> myAllParms;
+		private ReadableByteChannel myChannel;
+		Properties myPathParams;
+	}
+
+	/**
+	 * The files uploads are saved to while their request is served. They
+	 * are kept in one directory and count against a quota as they are
+	 * written. Files there that no request holds, left by a process that
+	 * was killed or claimed and not moved, are swept once they are older
+	 * than ORPHAN_AGE: when the server starts, and every SWEEP_INTERVAL
+	 * while uploads come in.
+	 */
+	static class Uploads
+	{
+		static final long ORPHAN_AGE = 60 * 60 * 1000;
+		static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+		private static final String PREFIX = "upload";
+
+		Uploads( File dir, long quota )
+		{
+			myDir = dir;
+			myQuota = quota;
+		}
+
+		void configure( File dir, long quota )
+		{
+			boolean moved = !dir.equals( myDir );
+			myDir = dir;
+			myQuota = quota;
+			if ( moved )
+				sweepInBackground();
+		}
+
+		/**
+		 * A new empty file, held until it is released.
+		 */
+		File create() throws IOException
+		{
+			File dir = myDir;
+			if ( !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+				throw new IOException( "Cannot create upload directory " + dir );
+			long now = System.currentTimeMillis();
+			if ( now - myLastSweep > SWEEP_INTERVAL )
+				sweepInBackground();
+			File f = File.createTempFile( PREFIX, ".tmp", dir );
+			myFiles.put( f, Long.valueOf( 0 ));
+			return f;
+		}
+
+		/**
+		 * Counts n more bytes of f against the quota, before they are written.
+		 */
+		void reserve( File f, int n ) throws ResponseException
+		{
+			if ( myBytes.addAndGet( n ) > myQuota )
+			{
+				myBytes.addAndGet( -n );
+				throw new ResponseException( HTTP_INSUFFICIENT_STORAGE, "INSUFFICIENT STORAGE: Uploads exceed " + myQuota + " bytes." );
+			}
+			Long size = myFiles.get( f );
+			myFiles.put( f, Long.valueOf(( size != null ? size.longValue() : 0 ) + n ));
+		}
+
+		/**
+		 * Stops counting f, and deletes it if asked to.
+		 */
+		void release( File f, boolean delete )
+		{
+			Long size = myFiles.remove( f );
+			if ( size != null )
+				myBytes.addAndGet( -size.longValue());
+			if ( delete )
+				f.delete();
+		}
+
+		void sweepInBackground()
+		{
+			myLastSweep = System.currentTimeMillis();
+			Thread t = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					sweep( System.currentTimeMillis() - ORPHAN_AGE );
+				}
+			}, "NanoHTTPD-upload-sweeper" );
+			t.setDaemon( true );
+			t.setPriority( Thread.MIN_PRIORITY );
+			t.start();
+		}
+
+		/**
+		 * Deletes the files nobody holds that were last written before the given time.
+		 */
+		int sweep( long before )
+		{
+			File[] files = myDir.listFiles();
+			if ( files == null )
+				return 0;
+			int deleted = 0;
+			for ( File f : files )
+				if ( f.getName().startsWith( PREFIX ) && !myFiles.containsKey( f ) &&
+						f.lastModified() < before && f.delete())
+					deleted++;
+			if ( deleted > 0 )
+				Log.i( "NanoHTTPD", "Swept " + deleted + " orphaned uploads from " + myDir );
+			return deleted;
+		}
+
+		private volatile File myDir;
+		private volatile long myQuota;
+		private volatile long myLastSweep;
+		private final AtomicLong myBytes = new AtomicLong();
+		/** The files held, with the bytes written to each */
+		private final ConcurrentHashMap<File, Long> myFiles = new ConcurrentHashMap<File, Long>();
+	}
+
+	/**
+	 * Request headers, read straight from the raw header bytes. Names are
+	 * lower case, and the common ones are shared constants rather than new
+	 * strings. A value is only decoded when it is looked up. Lookups ignore
+	 * case, and a repeated header yields its last value.<p>
+	 *
+	 * The values refer to the connection's header buffer, so the headers of
+	 * a request are only valid while it is being served. Once the connection
+	 * reads its next request, looking them up throws IllegalStateException
+	 * rather than returning parts of that request. Copy what needs to be
+	 * kept, e.g. with toProperties().
+	 */
+	public static class Headers
+	{
+		public Headers()
+		{
+			this( new String[16], new String[16], new int[16], new int[16] );
+		}
+
+		private Headers( String[] names, String[] values, int[] starts, int[] ends )
+		{
+			myNames = names;
+			myValues = values;
+			myStarts = starts;
+			myEnds = ends;
+		}
+
+		/**
+		 * The value of the named header, or null.
+		 */
+		public String get( String name )
+		{
+			checkValid();
+			// Names given as literals are usually the very same strings
+			for ( int i = mySize - 1; i >= 0; i-- )
+				if ( myNames[i] == name )
+					return value( i );
+			for ( int i = mySize - 1; i >= 0; i-- )
+				if ( myNames[i].equalsIgnoreCase( name ))
+					return value( i );
+			return null;
+		}
+
+		public String get( String name, String defaultValue )
+		{
+			String value = get( name );
+			return value != null ? value : defaultValue;
+		}
+
+		public int size()
+		{
+			checkValid();
+			return mySize;
+		}
+
+		/**
+		 * The lower case name of the i-th header line.
+		 */
+		public String name( int i )
+		{
+			checkValid();
+			return myNames[i];
+		}
+
+		/**
+		 * The value of the i-th header line.
+		 */
+		public String value( int i )
+		{
+			checkValid();
+			String value = myValues[i];
+			if ( value == null )
+				value = myValues[i] = decode( myBuf, myStarts[i], myEnds[i] );
+			return value;
+		}
+
+		public void add( String name, String value )
+		{
+			checkValid();
+			grow();
+			myNames[mySize] = internName( name );
+			myValues[mySize] = value;
+			mySize++;
+		}
+
+		public void clear()
+		{
+			checkValid();
+			Arrays.fill( myValues, 0, mySize, null );
+			mySize = 0;
+			myBuf = null;
+		}
+
+		/**
+		 * Ends the request these headers belong to, so a reference kept
+		 * past it fails instead of reading the next request's bytes.
+		 * Returns empty headers for the next request, which take over
+		 * the arrays.
+		 */
+		Headers recycle()
+		{
+			clear();
+			Headers next = new Headers( myNames, myValues, myStarts, myEnds );
+			myNames = myValues = null;
+			myStarts = myEnds = null;
+			return next;
+		}
+
+		private void checkValid()
+		{
+			if ( myNames == null )
+				throw new IllegalStateException( "Headers of a request that has completed" );
+		}
+
+		/**
+		 * A copy as lower case name - value pairs, as the classic serve() gets them.
+		 */
+		public Properties toProperties()
+		{
+			checkValid();
+			Properties p = new Properties();
+			for ( int i = 0; i < mySize; i++ )
+				p.put( myNames[i], value( i ));
+			return p;
+		}
+
+		/**
+		 * Headers with the entries of p, e.g. for calling serveFile()
+		 * with headers kept as Properties.
+		 */
+		@SuppressWarnings("rawtypes")
+		public static Headers of( Properties p )
+		{
+			Headers h = new Headers();
+			Enumeration e = p.propertyNames();
+			while ( e.hasMoreElements())
+			{
+				String name = (String)e.nextElement();
+				h.add( name, p.getProperty( name ));
+			}
+			return h;
+		}
+
+		public String toString()
+		{
+			if ( myNames == null )
+				return "{completed}";
+			StringBuilder sb = new StringBuilder( "{" );
+			for ( int i = 0; i < mySize; i++ )
+			{
+				if ( i > 0 )
+					sb.append( ", " );
+				sb.append( myNames[i] ).append( '=' ).append( value( i ));
+			}
+			return sb.append( '}' ).toString();
+		}
+
+		/**
+		 * Adds the header lines in buf from off up to the empty line
+		 * ending the header, or end. Lines without a colon are ignored.
+		 * Bytes from 0x80 up are UTF-8, never white space.
+		 */
+		void parse( byte[] buf, int off, int end )
+		{
+			checkValid();
+			myBuf = buf;
+			int pos = off;
+			while ( pos < end )
+			{
+				int eol = pos;
+				while ( eol < end && buf[eol] != '\n' )
+					eol++;
+				int lineEnd = eol;
+				while ( lineEnd > pos && ( buf[lineEnd - 1] & 0xff ) <= ' ' )
+					lineEnd--;
+				if ( lineEnd == pos )
+					break;	// The empty line ending the header
+				int colon = pos;
+				while ( colon < lineEnd && buf[colon] != ':' )
+					colon++;
+				if ( colon < lineEnd )
+				{
+					int nameStart = pos;
+					int nameEnd = colon;
+					while ( nameStart < nameEnd && ( buf[nameStart] & 0xff ) <= ' ' )
+						nameStart++;
+					while ( nameEnd > nameStart && ( buf[nameEnd - 1] & 0xff ) <= ' ' )
+						nameEnd--;
+					int valueStart = colon + 1;
+					while ( valueStart < lineEnd && ( buf[valueStart] & 0xff ) <= ' ' )
+						valueStart++;
+					grow();
+					myNames[mySize] = internName( buf, nameStart, nameEnd );
+					myStarts[mySize] = valueStart;
+					myEnds[mySize] = lineEnd;
+					mySize++;
+				}
+				pos = eol + 1;
+			}
+		}
+
+		private void grow()
+		{
+			if ( mySize < myNames.length )
+				return;
+			int n = myNames.length * 2;
+			myNames = Arrays.copyOf( myNames, n );
+			myValues = Arrays.copyOf( myValues, n );
+			myStarts = Arrays.copyOf( myStarts, n );
+			myEnds = Arrays.copyOf( myEnds, n );
+		}
+
+		/**
+		 * The lower case header name in buf, a shared constant if it is a common one.
+		 */
+		private static String internName( byte[] buf, int start, int end )
+		{
+			int len = end - start;
+			for ( String known : KNOWN_NAMES )
+				if ( known.length() == len && equalsLowerCase( buf, start, known ))
+					return known;
+			char[] c = new char[len];
+			for ( int i = 0; i < len; i++ )
+				c[i] = toLower( buf[start + i] );
+			return new String( c );
+		}
+
+		private static String internName( String name )
+		{
+			for ( String known : KNOWN_NAMES )
+				if ( known.equalsIgnoreCase( name ))
+					return known;
+			return name.toLowerCase( Locale.US );
+		}
+
+		/**
+		 * True if the bytes at start are exactly those of the ASCII string s.
+		 */
+		static boolean decodeEquals( byte[] buf, int start, String s )
+		{
+			for ( int i = 0; i < s.length(); i++ )
+				if ( buf[start + i] != s.charAt( i ))
+					return false;
+			return true;
+		}
+
+		private static boolean equalsLowerCase( byte[] buf, int start, String lower )
+		{
+			for ( int i = 0; i < lower.length(); i++ )
+				if ( toLower( buf[start + i] ) != lower.charAt( i ))
+					return false;
+			return true;
+		}
+
+		private static char toLower( byte b )
+		{
+			return (char)( b >= 'A' && b <= 'Z' ? b + ( 'a' - 'A' ) : b & 0xff );
+		}
+
+		/**
+		 * Decodes bytes of the header: ASCII without going through a
+		 * charset decoder, anything else as UTF-8.
+		 */
+		@SuppressWarnings("deprecation")
+		static String decode( byte[] buf, int start, int end )
+		{
+			for ( int i = start; i < end; i++ )
+				if ( buf[i] < 0 )
+				{
+					try
+					{
+						return new String( buf, start, end - start, "UTF-8" );
+					}
+					catch ( java.io.UnsupportedEncodingException uee )
+					{
+						break;
+					}
+				}
+			return new String( buf, 0, start, end - start );
+		}
+
+		/**
+		 * Names of headers browsers commonly send, in lower case.
+		 */
+		private static final String[] KNOWN_NAMES = {
+			"host", "connection", "accept", "accept-encoding", "accept-language",
+			"user-agent", "referer", "origin", "cookie", "cache-control", "pragma",
+			"content-length", "content-type", "range", "if-range", "if-none-match",
+			"if-modified-since", "x-requested-with", "upgrade-insecure-requests",
+			"sec-fetch-site", "sec-fetch-mode", "sec-fetch-dest", "dnt"
+		};
+
+		private String[] myNames;	// Null once the request has completed
+		private String[] myValues;
+		private int[] myStarts;
+		private int[] myEnds;
+		private int mySize;
+		private byte[] myBuf;
+	}
+
+	/**
+	 * Thrown while decoding a request that is malformed: the status
+	 * and message of the error response to send.
+	 */
+	public static class ResponseException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		public ResponseException( String status, String message )
+		{
+			super( message );
+			this.status = status;
+		}
+
+		public String getStatus()
+		{
+			return status;
+		}
+
+		private final String status;
+	}
+
+	/**
+	 * Reads a multipart/form-data body part by part, as it arrives:
+	 * <pre>
+	 * while ( reader.hasNext()) {
+	 *     MultipartReader.Part part = reader.next();
+	 *     InputStream in = part.getInputStream();
+	 *     ...
+	 * }
+	 * </pre>
+	 * A part's content can only be read until next() is called; what is
+	 * left of it is skipped. Delimiters are found with Boyer-Moore-Horspool
+	 * over a fixed size buffer, so the body is scanned once, in linear
+	 * time, and never held in memory as a whole.
+	 */
+	public static class MultipartReader
+	{
+		/**
+		 * Thrown when a part or the whole body exceeds its size limit.
+		 */
+		public static class SizeLimitException extends IOException
+		{
+			private static final long serialVersionUID = 1L;
+
+			public SizeLimitException( String message )
+			{
+				super( message );
+			}
+		}
+
+		/**
+		 * One part of the body: its headers and content.
+		 */
+		public class Part
+		{
+			Part( Properties headers )
+			{
+				myHeaders = headers;
+				String disposition = headers.getProperty( "content-disposition" );
+				if ( disposition != null )
+				{
+					myName = headerParam( disposition, "name" );
+					myFileName = headerParam( disposition, "filename" );
+				}
+			}
+
+			/**
+			 * The form field name, null without a content-disposition.
+			 */
+			public String getName()
+			{
+				return myName;
+			}
+
+			/**
+			 * The name of an uploaded file as sent by the client, or null.
+			 */
+			public String getFileName()
+			{
+				return myFileName;
+			}
+
+			public String getContentType()
+			{
+				return myHeaders.getProperty( "content-type" );
+			}
+
+			/**
+			 * A header of the part, by lower case name.
+			 */
+			public String getHeader( String name )
+			{
+				return myHeaders.getProperty( name );
+			}
+
+			/**
+			 * True for an uploaded file rather than a plain form field.
+			 */
+			public boolean isFile()
+			{
+				return myFileName != null || getContentType() != null;
+			}
+
+			/**
+			 * The content of the part, read straight from the body.
+			 */
+			public InputStream getInputStream()
+			{
+				return myStream;
+			}
+
+			/**
+			 * The content of a form field, decoded as UTF-8.
+			 */
+			public String getString() throws IOException
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buf = new byte[512];
+				int read;
+				while (( read = myStream.read( buf, 0, buf.length )) > 0 )
+					bytes.write( buf, 0, read );
+				return bytes.toString( "UTF-8" );
+			}
+
+			private final Properties myHeaders;
+			private String myName;
+			private String myFileName;
+			private long myRead;
+			private boolean myEnded;
+			private final InputStream myStream = new InputStream()
+			{
+				public int read() throws IOException
+				{
+					byte[] b = new byte[1];
+					return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+				}
+
+				public int read( byte[] b, int off, int len ) throws IOException
+				{
+					return readPart( Part.this, b, off, len );
+				}
+			};
+		}
+
+		public MultipartReader( InputStream in, String boundary, long maxPartBytes, long maxTotalBytes )
+		{
+			myIn = in;
+			myMaxPartBytes = maxPartBytes;
+			myMaxTotalBytes = maxTotalBytes;
+
+			// Every delimiter follows a CRLF, except the first one if there is
+			// no preamble. Starting the buffer with a CRLF makes them all alike.
+			int m = boundary.length() + 4;
+			myDelimiter = new byte[m];
+			myDelimiter[0] = '\r';
+			myDelimiter[1] = '\n';
+			myDelimiter[2] = '-';
+			myDelimiter[3] = '-';
+			for ( int i = 4; i < m; i++ )
+				myDelimiter[i] = (byte)boundary.charAt( i - 4 );
+			myBuf = new byte[Math.max( BUFFER_SIZE, 2 * m )];
+			myBuf[0] = '\r';
+			myBuf[1] = '\n';
+			myLim = 2;
+
+			// Horspool's shift: how far the delimiter can move on
+			// when the byte under its last position does not match
+			myShift = new int[256];
+			Arrays.fill( myShift, m );
+			for ( int i = 0; i < m - 1; i++ )
+				myShift[myDelimiter[i] & 0xff] = m - 1 - i;
+		}
+
+		/**
+		 * True if there is another part; skips the rest of the current one.
+		 */
+		public boolean hasNext() throws IOException, ResponseException
+		{
+			if ( myNext != null )
+				return true;
+			if ( myDone )
+				return false;
+			if ( myPart != null )
+				myPart.myEnded = true;
+
+			// Skip to the end of the next delimiter: the rest of the part,
+			// or the preamble before the first one
+			int match;
+			while (( match = findDelimiter()) < 0 )
+			{
+				myPos = Math.max( myPos, myLim - ( myDelimiter.length - 1 ));
+				if ( !fill())
+					throw malformed( "body ends without closing delimiter" );
+			}
+			myPos = match + myDelimiter.length;
+			myMatch = -1;
+
+			// "--" ends the body, anything else up to the CRLF is padding
+			while ( myLim - myPos < 2 )
+				if ( !fill())
+					throw malformed( "body ends after delimiter" );
+			if ( myBuf[myPos] == '-' && myBuf[myPos + 1] == '-' )
+			{
+				myDone = true;
+				return false;
+			}
+			readLine();
+
+			Properties headers = new Properties();
+			String line;
+			while (( line = readLine()).length() > 0 )
+			{
+				int p = line.indexOf( ':' );
+				if ( p >= 0 )
+					headers.put( line.substring( 0, p ).trim().toLowerCase(), line.substring( p + 1 ).trim());
+			}
+			myNext = new Part( headers );
+			return true;
+		}
+
+		public Part next() throws IOException, ResponseException
+		{
+			if ( !hasNext())
+				throw new java.util.NoSuchElementException();
+			myPart = myNext;
+			myNext = null;
+			return myPart;
+		}
+
+		/**
+		 * Reads content of the given part, which ends where the next
+		 * delimiter starts. Only bytes that cannot be the start of a
+		 * delimiter are handed out before it is found.
+		 */
+		private int readPart( Part part, byte[] b, int off, int len ) throws IOException
+		{
+			if ( part.myEnded || part != myPart )
+				return -1;
+			if ( len == 0 )
+				return 0;
+			while ( true )
+			{
+				int match = findDelimiter();
+				int available = ( match >= 0 ? match : myLim - ( myDelimiter.length - 1 )) - myPos;
+				if ( available > 0 )
+				{
+					int n = Math.min( len, available );
+					if ( part.myRead + n > myMaxPartBytes )
+						throw new SizeLimitException( "Part \"" + part.myName + "\" exceeds " + myMaxPartBytes + " bytes" );
+					System.arraycopy( myBuf, myPos, b, off, n );
+					myPos += n;
+					part.myRead += n;
+					return n;
+				}
+				if ( match >= 0 )
+				{
+					part.myEnded = true;
+					return -1;
+				}
+				if ( !fill())
+					throw new IOException( "Malformed multipart body: body ends inside a part" );
+			}
+		}
+
+		/**
+		 * Position of the next delimiter in the buffer, or -1 if it is not
+		 * in there yet. Positions already ruled out are not scanned again.
+		 */
+		private int findDelimiter()
+		{
+			if ( myMatch >= 0 )
+				return myMatch;
+			int m = myDelimiter.length;
+			int i = Math.max( myPos, myScanned );
+			while ( i <= myLim - m )
+			{
+				int j = m - 1;
+				while ( j >= 0 && myBuf[i + j] == myDelimiter[j] )
+					j--;
+				if ( j < 0 )
+					return myMatch = i;
+				i += myShift[myBuf[i + m - 1] & 0xff];
+			}
+			myScanned = i;
+			return -1;
+		}
+
+		/**
+		 * Reads a CRLF terminated header line.
+		 */
+		private String readLine() throws IOException, ResponseException
+		{
+			int from = myPos;
+			while ( true )
+			{
+				for ( int i = from; i + 1 < myLim; i++ )
+					if ( myBuf[i] == '\r' && myBuf[i + 1] == '\n' )
+					{
+						String line = new String( myBuf, myPos, i - myPos, "UTF-8" );
+						myPos = i + 2;
+						return line;
+					}
+				if ( myLim - myPos == myBuf.length )
+					throw new ResponseException( HTTP_BADREQUEST, "BAD REQUEST: Multipart header line too long." );
+				from = Math.max( myPos, myLim - 1 ) - myPos;
+				if ( !fill())
+					throw malformed( "body ends inside part headers" );
+				// fill() moved the unread bytes to the start of the buffer
+			}
+		}
+
+		/**
+		 * Moves the unread bytes to the start of the buffer and reads more
+		 * after them. Returns false at the end of the body.
+		 */
+		private boolean fill() throws IOException
+		{
+			if ( myPos > 0 )
+			{
+				System.arraycopy( myBuf, myPos, myBuf, 0, myLim - myPos );
+				myLim -= myPos;
+				myScanned = Math.max( 0, myScanned - myPos );
+				if ( myMatch >= 0 )
+					myMatch -= myPos;
+				myPos = 0;
+			}
+			int read = myIn.read( myBuf, myLim, myBuf.length - myLim );
+			if ( read < 0 )
+				return false;
+			myLim += read;
+			myTotal += read;
+			if ( myTotal > myMaxTotalBytes )
+				throw new SizeLimitException( "Multipart body exceeds " + myMaxTotalBytes + " bytes" );
+			return true;
+		}
+
+		private static ResponseException malformed( String what )
+		{
+			return new ResponseException( HTTP_BADREQUEST, "BAD REQUEST: Malformed multipart body: " + what + "." );
+		}
+
+		/**
+		 * Returns a parameter of a header value such as
+		 * 'form-data; name="file"; filename="a.txt"', unquoted, or null.
+		 */
+		static String headerParam( String value, String param )
+		{
+			int len = value.length();
+			int i = value.indexOf( ';' );
+			while ( i >= 0 )
+			{
+				int eq = value.indexOf( '=', i + 1 );
+				if ( eq < 0 )
+					return null;
+				String key = value.substring( i + 1, eq ).trim();
+				int start = eq + 1;
+				while ( start < len && value.charAt( start ) == ' ' )
+					start++;
+				String v;
+				if ( start < len && value.charAt( start ) == '"' )
+				{
+					int close = value.indexOf( '"', start + 1 );
+					if ( close < 0 )
+						close = len;
+					v = value.substring( start + 1, close );
+					i = value.indexOf( ';', close );
+				}
+				else
+				{
+					i = value.indexOf( ';', start );
+					v = value.substring( start, i < 0 ? len : i ).trim();
+				}
+				if ( key.equalsIgnoreCase( param ))
+					return v;
+			}
+			return null;
+		}
+
+		private static final int BUFFER_SIZE = 16 * 1024;
+
+		private final InputStream myIn;
+		private final long myMaxPartBytes;
+		private final long myMaxTotalBytes;
+		private final byte[] myDelimiter;
+		private final int[] myShift;
+		private final byte[] myBuf;
+		private int myPos;
+		private int myLim;
+		private int myScanned;
+		private int myMatch = -1;
+		private long myTotal;
+		private boolean myDone;
+		private Part myPart;
+		private Part myNext;
+	}
+
+	/**
+	 * HTTP response.
+	 * Return one of these from serve().
+	 */
+	public class Response
+	{
+		/**
+		 * Default constructor: response = HTTP_OK, data = mime = 'null'
+		 */
+		public Response()
+		{
+			this.status = HTTP_OK;
+		}
+
+		/**
+		 * Basic constructor.
+		 */
+		public Response( String status, String mimeType, InputStream data )
+		{
+			this.status = status;
+			this.mimeType = mimeType;
+			this.data = data;
+		}
+
+		/**
+		 * Constructor for a body of known length, which lets it be
+		 * sent with a Content-Length rather than chunked.
+		 */
+		public Response( String status, String mimeType, InputStream data, long contentLength )
+		{
+			this( status, mimeType, data );
+			this.contentLength = contentLength;
+		}
+
+		/**
+		 * Convenience method that makes an InputStream out of
+		 * given text.
+		 */
+		public Response( String status, String mimeType, String txt )
+		{
+			this.status = status;
+			this.mimeType = mimeType;
+			try
+			{
+				byte[] bytes = txt.getBytes("UTF-8");
+				this.data = new ByteArrayInputStream( bytes );
+				this.contentLength = bytes.length;
+			}
+			catch ( java.io.UnsupportedEncodingException uee )
+			{
+				uee.printStackTrace();
+			}
+		}
+
+		/**
+		 * Streaming constructor: the body is produced by the given
+		 * callback while the response is sent, using chunked
+		 * transfer-encoding, so its length need not be known up front.
+		 */
+		public Response( String status, String mimeType, StreamingBody body )
+		{
+			this.status = status;
+			this.mimeType = mimeType;
+			this.body = body;
+		}
+
+		/**
+		 * Adds given line to the header.
+		 */
+		public void addHeader( String name, String value )
+		{
+			header.put( name, value );
+		}
+
+		/**
+		 * HTTP status code after processing, e.g. "200 OK", HTTP_OK
+		 */
+		public String status;
+
+		/**
+		 * MIME type of content, e.g. "text/html"
+		 */
+		public String mimeType;
+
+		/**
+		 * Data of the response, may be null.
+		 */
+		public InputStream data;
+
+		/**
+		 * Number of bytes of data to send, or -1 if unknown. An unknown
+		 * length is taken from a Content-Length header, or from the stream
+		 * if it is a byte array or a file; other streams (e.g. compressed
+		 * assets, whose available() is no length) are sent chunked.
+		 */
+		public long contentLength = -1;
+
+		/**
+		 * Producer of a streamed response, used instead of data when set.
+		 */
+		public StreamingBody body;
+
+		/**
+		 * Headers for the HTTP response. Use addHeader()
+		 * to add lines.
+		 */
+		public Properties header = new Properties();
+	}
+
+	/**
+	 * Writes the body of a streamed response as it is produced, e.g.
+	 * <pre>
+	 * return new Response( HTTP_OK, "application/json", new StreamingBody() {
+	 *     public void writeTo( OutputStream out ) throws IOException {
+	 *         Writer w = new OutputStreamWriter( out, "UTF-8" );
+	 *         ...
+	 *         w.flush();
+	 *     }
+	 * });
+	 * </pre>
+	 * Each flush() sends what was written so far as one chunk; do not
+	 * close the stream. Throwing aborts the connection, as the status
+	 * line has already been sent.
+	 */
+	public interface StreamingBody
+	{
+		void writeTo( OutputStream out ) throws IOException;
+	}
+
+	/**
+	 * Some HTTP response status codes
+	 */
+	public static final String
+	HTTP_OK = "200 OK",
+	HTTP_PARTIALCONTENT = "206 Partial Content",
+	HTTP_RANGE_NOT_SATISFIABLE = "416 Requested Range Not Satisfiable",
+	HTTP_REDIRECT = "301 Moved Permanently",
+	HTTP_NOTMODIFIED = "304 Not Modified",
+	HTTP_FORBIDDEN = "403 Forbidden",
+	HTTP_NOTFOUND = "404 Not Found",
+	HTTP_METHOD_NOT_ALLOWED = "405 Method Not Allowed",
+	HTTP_BADREQUEST = "400 Bad Request",
+	HTTP_REQUEST_TIMEOUT = "408 Request Timeout",
+	HTTP_LENGTH_REQUIRED = "411 Length Required",
+	HTTP_ENTITY_TOO_LARGE = "413 Request Entity Too Large",
+	HTTP_HEADER_TOO_LARGE = "431 Request Header Fields Too Large",
+	HTTP_INTERNALERROR = "500 Internal Server Error",
+	HTTP_NOTIMPLEMENTED = "501 Not Implemented",
+	HTTP_UNAVAILABLE = "503 Service Unavailable",
+	HTTP_INSUFFICIENT_STORAGE = "507 Insufficient Storage";
+
+	/**
+	 * Common mime types for dynamic content
+	 */
+	public static final String
+	MIME_PLAINTEXT = "text/plain",
+	MIME_HTML = "text/html",
+	MIME_DEFAULT_BINARY = "application/octet-stream",
+	MIME_XML = "text/xml";
+
+	// ==================================================
+	// Socket & server code
+	// ==================================================
+
+	/**
+	 * Starts a HTTP server to given port.<p>
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD(InetSocketAddress localAddr, AndroidFile wwwroot) throws IOException
+	{
+		this( localAddr, wwwroot, null );
+	}
+
+	/**
+	 * Starts a HTTP server to given port, running sessions on the given
+	 * executor (see newBoundedSessionExecutor() and friends). A null
+	 * executor keeps the classic thread-per-session behaviour.<p>
+	 * The server owns the executor and shuts it down in stop().<p>
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD(InetSocketAddress localAddr, AndroidFile wwwroot, Executor sessionExecutor) throws IOException
+	{
+		this( localAddr, wwwroot, sessionExecutor, Engine.BLOCKING );
+	}
+
+	/**
+	 * Starts a HTTP server to given port using the given I/O engine.<p>
+	 * With Engine.NIO the executor only runs serve(); a null executor then
+	 * means a small bounded pool sized to the number of CPUs.<p>
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD(InetSocketAddress localAddr, AndroidFile wwwroot, Executor sessionExecutor, Engine engine) throws IOException
+	{
+		myTcpPort = localAddr.getPort();
+		myRootDir = wwwroot;
+		myUploads.sweepInBackground();
+		if ( engine == Engine.NIO )
+		{
+			if ( sessionExecutor == null )
+				sessionExecutor = newBoundedSessionExecutor(
+						Math.max( 2, Runtime.getRuntime().availableProcessors()), 1024, RejectionPolicy.RESPOND_503 );
+			mySessionExecutor = sessionExecutor;
+			myNioEngine = new NioEngine( bind( localAddr ));
+			myThread = new Thread( myNioEngine, "NanoHTTPD-selector" );
+			myThread.setDaemon( true );
+			myThread.start();
+		}
+		else
+		{
+			if ( sessionExecutor != null )
+				mySessionExecutor = sessionExecutor;
+			bind( localAddr );
+			startAcceptThread();
+		}
+	}
+
+	/**
+	 * Starts a HTTP server to given port.<p>
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD( int port, AndroidFile wwwroot ) throws IOException
+	{
+		this( port, wwwroot, null );
+	}
+
+	/**
+	 * Starts a HTTP server to given port, running sessions on the given executor.<p>
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD( int port, AndroidFile wwwroot, Executor sessionExecutor ) throws IOException
+	{
+		this( new InetSocketAddress( port ), wwwroot, sessionExecutor );
+	}
+
+	/**
+	 * Opens the listening socket. Accepted sockets get a channel too,
+	 * which lets sendResponse() hand files to sendfile(). The address is
+	 * remembered with the port actually bound, so start() after pause()
+	 * listens on the same one.
+	 */
+	private ServerSocketChannel bind( InetSocketAddress localAddr ) throws IOException
+	{
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		ServerSocket socket = channel.socket();
+		// Not the default for channels, unlike ServerSocket. Lets a restarted
+		// server bind while connections of the previous one are in TIME_WAIT.
+		socket.setReuseAddress( true );
+		try
+		{
+			socket.bind( localAddr );
+		}
+		catch ( IOException ioe )
+		{
+			channel.close();
+			throw ioe;
+		}
+		myLocalAddr = new InetSocketAddress( localAddr.getAddress(), socket.getLocalPort());
+		myServerSocket = socket;
+		return channel;
+	}
+
+	private void startAcceptThread()
+	{
+		final ServerSocket serverSocket = myServerSocket;
+		myThread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					while( true )
+					{
+						Socket socket = serverSocket.accept();
+						if ( myState != State.RUNNING )
+						{
+							// Accepted just before pause() or stop() closed the
+							// server socket, too late for closeWaitingSessions().
+							// The client sees a closed connection, as it would
+							// had it come a moment later.
+							try { socket.close(); } catch ( IOException ioe ) {}
+							continue;
+						}
+						HTTPSession session = new HTTPSession( socket );
+						if ( myConnections.incrementAndGet() > myMaxConnections )
+						{
+							myMetrics.countLimit( Metrics.Limit.CONNECTIONS );
+							session.reject();
+							continue;
+						}
+						try
+						{
+							mySessionExecutor.execute( session );
+						}
+						catch ( RejectedExecutionException ree )
+						{
+							session.reject();
+						}
+					}
+				}
+				catch ( IOException ioe )
+				{}
+			}
+		}, "NanoHTTPD-accept" );
+		myThread.setDaemon( true );
+		myThread.start();
+	}
+
+	/**
+	 * Returns the port the server socket is actually bound to,
+	 * useful when it was started on port 0.
+	 */
+	public int getListeningPort()
+	{
+		return myLocalAddr.getPort();
+	}
+
+	/**
+	 * Configures HTTP/1.1 persistent connections: whether they are allowed,
+	 * how long an idle connection is kept open waiting for the next request,
+	 * and how many requests one connection may carry before it is closed.
+	 * With the blocking engine an open connection holds a session thread,
+	 * so keep the idle timeout short when using a small bounded pool.
+	 */
+	public void setKeepAlive( boolean enabled, int idleTimeoutMillis, int maxRequestsPerConnection )
+	{
+		myKeepAliveEnabled = enabled;
+		myKeepAliveTimeout = idleTimeoutMillis;
+		myMaxKeepAliveRequests = maxRequestsPerConnection;
+	}
+
+	/**
+	 * Timeouts for clients that stall: how long a request header may take
+	 * to arrive once its first byte did, and how long serve() waits for
+	 * more of a request body. A slow header is answered with "408 Request
+	 * Timeout", as is a stalled body. The idle timeout between requests is
+	 * the one of setKeepAlive(). Metrics counts each time one triggers.
+	 */
+	public void setTimeouts( int headerMillis, int bodyMillis )
+	{
+		myHeaderTimeout = headerMillis;
+		myBodyTimeout = bodyMillis;
+	}
+
+	/**
+	 * Limits what a client can hold: the size of a request header (request
+	 * line included; "431 Request Header Fields Too Large"), the length a
+	 * request body may declare ("413 Request Entity Too Large"), and the
+	 * number of connections open at once (more are answered with "503
+	 * Service Unavailable"). A header buffer of maxHeaderBytes is allocated
+	 * per connection, for connections accepted after the call. The number
+	 * of requests per connection is limited by setKeepAlive().
+	 */
+	public void setLimits( int maxHeaderBytes, long maxBodyBytes, int maxConnections )
+	{
+		myMaxHeaderBytes = maxHeaderBytes;
+		myMaxBodyBytes = maxBodyBytes;
+		myMaxConnections = maxConnections;
+	}
+
+	/**
+	 * Limits the multipart/form-data uploads parseBody() accepts: the size
+	 * of a single part, and of the whole body. Bigger ones are answered
+	 * with "413 Request Entity Too Large".
+	 */
+	public void setMultipartLimits( long maxPartBytes, long maxTotalBytes )
+	{
+		myMaxPartBytes = maxPartBytes;
+		myMaxMultipartBytes = maxTotalBytes;
+	}
+
+	/**
+	 * Where parseBody() saves uploads, PUT content and multipart files, and
+	 * how many bytes of them may exist at once; beyond that an upload is
+	 * answered with "507 Insufficient Storage". The files are deleted once
+	 * their request is answered, unless serve() claimed them with
+	 * Request.claimFile() or moved them away. The default is a directory
+	 * below java.io.tmpdir, the app's cache directory, and 256 MB.
+	 */
+	public void setUploads( File dir, long quotaBytes )
+	{
+		myUploads.configure( dir, quotaBytes );
+	}
+
+	/**
+	 * Where the server is in its lifecycle.
+	 */
+	public enum State
+	{
+		/** Accepting connections and keeping them alive. */
+		RUNNING,
+		/** Not listening; requests already in flight are still answered. */
+		PAUSED,
+		/** Stopped for good; the session executor is shut down. */
+		STOPPED
+	}
+
+	public State getState()
+	{
+		return myState;
+	}
+
+	/**
+	 * Stops accepting connections, e.g. while the activity is in the
+	 * background, and releases the port. Requests in flight are answered,
+	 * with "Connection: close", and idle persistent connections are
+	 * closed right away. Does not wait, so it can be called from onPause().
+	 */
+	public synchronized void pause()
+	{
+		if ( myState != State.RUNNING )
+			return;
+		myState = State.PAUSED;
+		if ( myNioEngine != null )
+		{
+			myNioEngine.pause();
+			return;
+		}
+		try { myServerSocket.close(); } catch ( IOException ioe ) {}
+		closeWaitingSessions();
+	}
+
+	/**
+	 * Starts listening again after pause(), on the same address and port.
+	 * Does nothing if the server is running; the constructors start it.<p>
+	 * Throws an IOException if the port got taken in the meantime, and
+	 * IllegalStateException once the server is stopped.
+	 */
+	public synchronized void start() throws IOException
+	{
+		if ( myState == State.STOPPED )
+			throw new IllegalStateException( "Server is stopped" );
+		if ( myState == State.RUNNING )
+			return;
+		ServerSocketChannel channel = bind( myLocalAddr );
+		if ( myNioEngine != null )
+			myNioEngine.resume( channel );
+		else
+			startAcceptThread();
+		myState = State.RUNNING;
+	}
+
+	/**
+	 * Same as start(), named to pair with pause() from onResume().
+	 */
+	public void resume() throws IOException
+	{
+		start();
+	}
+
+	/**
+	 * Stops the server, giving requests in flight a second to complete.
+	 */
+	public void stop()
+	{
+		int cutOff = stop( 1000 );
+		if ( cutOff > 0 )
+			Log.w( "NanoHTTPD", "Stopped with " + cutOff + " requests still in flight" );
+	}
+
+	/**
+	 * Stops the server: closes the listening socket and idle connections,
+	 * waits up to timeoutMillis for requests in flight to be answered,
+	 * then closes the connections still open and shuts the session
+	 * executor down. The port is free again when this returns.<p>
+	 * Returns how many connections were cut off in the middle of a request.
+	 */
+	public int stop( long timeoutMillis )
+	{
+		long deadline = System.currentTimeMillis() + Math.max( 0, timeoutMillis );
+		synchronized ( this )
+		{
+			if ( myState == State.STOPPED )
+				return 0;
+			myState = State.STOPPED;
+		}
+		int cutOff;
+		try
+		{
+			if ( myNioEngine != null )
+			{
+				cutOff = myNioEngine.stop( deadline );
+			}
+			else
+			{
+				try { myServerSocket.close(); } catch ( IOException ioe ) {}
+				cutOff = drainSessions( deadline );
+				myThread.join( Math.max( 1, deadline - System.currentTimeMillis()));
+			}
+		}
+		catch ( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			cutOff = drainSessions( 0 );
+		}
+		if ( mySessionExecutor instanceof ExecutorService )
+		{
+			// Sessions still queued were accepted but never got a thread
+			for ( Runnable queued : ((ExecutorService)mySessionExecutor).shutdownNow())
+				if ( queued instanceof HTTPSession )
+				{
+					((HTTPSession)queued).abort();
+					cutOff++;
+				}
+		}
+		return cutOff;
+	}
+
+	/**
+	 * Closes the blocking sessions that wait for a request rather than
+	 * serve one; they end as if the client had closed the connection.
+	 */
+	private void closeWaitingSessions()
+	{
+		synchronized ( mySessions )
+		{
+			for ( HTTPSession session : mySessions )
+				if ( !session.myServing )
+					session.abort();
+		}
+	}
+
+	/**
+	 * Waits until the deadline for the blocking sessions to end, then
+	 * closes the ones left. Returns how many had to be closed.
+	 */
+	private int drainSessions( long deadline )
+	{
+		closeWaitingSessions();
+		synchronized ( mySessions )
+		{
+			long left;
+			while ( !mySessions.isEmpty() && ( left = deadline - System.currentTimeMillis()) > 0 )
+			{
+				try
+				{
+					mySessions.wait( left );
+				}
+				catch ( InterruptedException ie )
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			int cutOff = 0;
+			for ( HTTPSession session : mySessions )
+			{
+				if ( session.myServing )
+					cutOff++;
+				session.abort();
+			}
+			return cutOff;
+		}
+	}
+
+	/**
+	 * How connections are read and written.
+	 */
+	public enum Engine
+	{
+		/** A blocking socket per session, each occupying a thread while it is open. */
+		BLOCKING,
+		/** One selector thread multiplexes all connections; threads are only used for serve(). */
+		NIO
+	}
+
+	// ==================================================
+	// Session executors
+	// ==================================================
+
+	/**
+	 * What a bounded session executor does with a connection
+	 * once all its workers are busy and its queue is full.
+	 */
+	public enum RejectionPolicy
+	{
+		/** Answer with "503 Service Unavailable" and close the connection. */
+		RESPOND_503,
+		/** Handle the session on the accept thread, which throttles accepting. */
+		CALLER_RUNS,
+		/** Block the accept thread until a slot frees up; clients wait in the TCP backlog. */
+		BLOCK
+	}
+
+	/**
+	 * The classic NanoHTTPD model: one new daemon thread per session.
+	 */
+	public static Executor newThreadPerSessionExecutor()
+	{
+		return new Executor()
+		{
+			public void execute( Runnable session )
+			{
+				Thread t = new Thread( session );
+				t.setDaemon( true );
+				t.start();
+			}
+		};
+	}
+
+	/**
+	 * A pool of at most maxThreads daemon workers with a FIFO queue of
+	 * queueSize waiting sessions (0 for direct hand-off). Idle workers
+	 * die after 30 seconds, so an idle server holds no threads.
+	 */
+	public static ExecutorService newBoundedSessionExecutor( int maxThreads, int queueSize, RejectionPolicy policy )
+	{
+		if ( maxThreads < 1 )
+			throw new IllegalArgumentException( "maxThreads must be positive" );
+		ThreadPoolExecutor pool = new ThreadPoolExecutor( maxThreads, maxThreads, 30, TimeUnit.SECONDS,
+				queueSize > 0 ? new LinkedBlockingQueue<Runnable>( queueSize ) : new SynchronousQueue<Runnable>(),
+				new SessionThreadFactory(), rejectionHandler( policy ));
+		pool.allowCoreThreadTimeOut( true );
+		return pool;
+	}
+
+	/**
+	 * One virtual thread per session, with at most maxConcurrency sessions
+	 * in flight. Virtual threads only exist on Java 21+ (not on Android);
+	 * elsewhere this falls back to newBoundedSessionExecutor( maxConcurrency, 0, policy ).
+	 */
+	public static ExecutorService newVirtualThreadSessionExecutor( int maxConcurrency, RejectionPolicy policy )
+	{
+		ExecutorService virtual = null;
+		try
+		{
+			virtual = (ExecutorService)java.util.concurrent.Executors.class
+					.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		}
+		catch ( Exception e ) {}
+		if ( virtual == null )
+			return newBoundedSessionExecutor( maxConcurrency, 0, policy );
+		return new ConcurrencyLimitedExecutor( virtual, maxConcurrency, policy );
+	}
+
+	/**
+	 * True if newVirtualThreadSessionExecutor() really uses virtual threads here.
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		try
+		{
+			java.util.concurrent.Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			return true;
+		}
+		catch ( NoSuchMethodException e )
+		{
+			return false;
+		}
+	}
+
+	private static RejectedExecutionHandler rejectionHandler( RejectionPolicy policy )
+	{
+		switch ( policy )
+		{
+		case CALLER_RUNS:
+			return new ThreadPoolExecutor.CallerRunsPolicy()
+			{
+				public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+				{
+					if ( theNoWait.get() != null )
+						throw new RejectedExecutionException( "Session executor is busy" );
+					super.rejectedExecution( r, executor );
+				}
+			};
+		case BLOCK:
+			return new RejectedExecutionHandler()
+			{
+				public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+				{
+					if ( executor.isShutdown())
+						throw new RejectedExecutionException( "Session executor is shut down" );
+					if ( theNoWait.get() != null )
+						throw new RejectedExecutionException( "Session executor is busy" );
+					try
+					{
+						executor.getQueue().put( r );
+					}
+					catch ( InterruptedException ie )
+					{
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException( ie );
+					}
+					// Queued behind execute()'s back: a shutdown meanwhile
+					// would leave it there for good, and with core threads
+					// timing out there may be no worker left to take it
+					if ( executor.isShutdown() && executor.remove( r ))
+						throw new RejectedExecutionException( "Session executor is shut down" );
+					executor.prestartCoreThread();
+				}
+			};
+		default:
+			return new ThreadPoolExecutor.AbortPolicy();
+		}
+	}
+
+	/**
+	 * Names session threads and makes them daemons, like the
+	 * thread-per-session threads they replace.
+	 */
+	private static class SessionThreadFactory implements ThreadFactory
+	{
+		public Thread newThread( Runnable r )
+		{
+			Thread t = new Thread( r, "NanoHTTPD-session-" + theSessionThreadCount.incrementAndGet());
+			t.setDaemon( true );
+			return t;
+		}
+	}
+
+	private static final AtomicInteger theSessionThreadCount = new AtomicInteger();
+
+	/**
+	 * Caps the number of sessions running concurrently on an
+	 * otherwise unbounded executor (virtual threads).
+	 */
+	private static class ConcurrencyLimitedExecutor extends java.util.concurrent.AbstractExecutorService
+	{
+		ConcurrencyLimitedExecutor( ExecutorService delegate, int maxConcurrency, RejectionPolicy policy )
+		{
+			this.delegate = delegate;
+			this.permits = new Semaphore( maxConcurrency );
+			this.policy = policy;
+		}
+
+		public void execute( final Runnable session )
+		{
+			if ( !permits.tryAcquire())
+			{
+				if ( policy == RejectionPolicy.RESPOND_503 || theNoWait.get() != null )
+					throw new RejectedExecutionException( "Too many concurrent sessions" );
+				if ( policy == RejectionPolicy.CALLER_RUNS )
+				{
+					session.run();
+					return;
+				}
+				permits.acquireUninterruptibly();
+			}
+			try
+			{
+				delegate.execute( new Runnable()
+				{
+					public void run()
+					{
+						try { session.run(); }
+						finally { permits.release(); }
+					}
+				});
+			}
+			catch ( RejectedExecutionException ree )
+			{
+				permits.release();
+				throw ree;
+			}
+		}
+
+		public void shutdown() { delegate.shutdown(); }
+		public java.util.List<Runnable> shutdownNow() { return delegate.shutdownNow(); }
+		public boolean isShutdown() { return delegate.isShutdown(); }
+		public boolean isTerminated() { return delegate.isTerminated(); }
+		public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException
+		{
+			return delegate.awaitTermination( timeout, unit );
+		}
+
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+		private final RejectionPolicy policy;
+	}
+
+
+	/**
+	 * Starts as a standalone file server and waits for Enter.
+	 */
+	public static void main( String[] args )
+	{
+		PrintStream myOut = System.out;
+		PrintStream myErr = System.err;
+		
+		myOut.println( "NanoHTTPD 1.25 (C) 2001,2005-2011 Jarno Elonen and (C) 2010 Konstantinos Togias\n" +
+				"(Command line options: [-p port] [-d root-dir] [--engine blocking|nio] [--workers n]\n" +
+				" [--cache megabytes] [--precompress dir] [--licence])\n" );
+
+		// Defaults
+		int port = 80;
+		File wwwroot = new File(".").getAbsoluteFile();
+		Engine engine = Engine.BLOCKING;
+		int workers = 0;
+		int cacheMegabytes = -1;
+
+		// Show licence if requested
+		for ( int i=0; i<args.length; ++i )
+			if(args[i].equalsIgnoreCase("-p"))
+				port = Integer.parseInt( args[i+1] );
+			else if(args[i].equalsIgnoreCase("-d"))
+				wwwroot = new File( args[i+1] ).getAbsoluteFile();
+			else if ( args[i].equalsIgnoreCase( "--engine" ))
+				engine = Engine.valueOf( args[i+1].toUpperCase( Locale.US ));
+			else if ( args[i].equalsIgnoreCase( "--workers" ))
+				workers = Integer.parseInt( args[i+1] );
+			else if ( args[i].equalsIgnoreCase( "--cache" ))
+				cacheMegabytes = Integer.parseInt( args[i+1] );
+			else if ( args[i].toLowerCase().endsWith( "licence" ))
+			{
+				myOut.println( LICENCE + "\n" );
+				break;
+			}
+			else if ( args[i].equalsIgnoreCase( "--precompress" ))
+			{
+				// Offline step: write .gz siblings for the asset tree and exit
+				try
+				{
+					File dir = new File( args[i+1] ).getAbsoluteFile();
+					myOut.println( "Precompressed " + precompress( dir ) + " files in \"" + dir + "\"" );
+					return;
+				}
+				catch ( IOException ioe )
+				{
+					myErr.println( "Couldn't precompress:\n" + ioe );
+					System.exit( -1 );
+				}
+			}
+
+		try
+		{
+			// A worker count means a bounded pool instead of a thread per session
+			Executor executor = workers > 0 ? newBoundedSessionExecutor( workers, 256, RejectionPolicy.BLOCK ) : null;
+			NanoHTTPD server = new NanoHTTPD( new InetSocketAddress( port ), new AndroidFile(wwwroot.getPath()), executor, engine );
+			if ( cacheMegabytes == 0 )
+				server.setResponseCache( null );
+			else if ( cacheMegabytes > 0 )
+				server.setResponseCache( new ResponseCache( cacheMegabytes * 1024L * 1024, 1024 * 1024 ));
+		}
+		catch( IOException ioe )
+		{
+			myErr.println( "Couldn't start server:\n" + ioe );
+			System.exit( -1 );
+		}
+
+		myOut.println( "Now serving files in port " + port + " from \"" + wwwroot + "\" (" + engine + ")" );
+		myOut.println( "Hit Enter to stop.\n" );
+
+		try { System.in.read(); } catch( Throwable t ) {}
+	}
+
+	/**
+	 * Handles one session, i.e. parses the HTTP request
+	 * and returns the response.
+	 */
+	private class HTTPSession implements Runnable
+	{
+		public HTTPSession( Socket s )
+		{
+			mySocket = s;
+		}
+
+		/**
+		 * Session of a NIO engine connection: the connection does the
+		 * reading, and responses are queued on it instead of written.
+		 */
+		HTTPSession( NioConnection c )
+		{
+			myConnection = c;
+		}
+
+		/**
+		 * Turns the connection away when the session executor is saturated.
+		 */
+		void reject()
+		{
+			myKeepAlive = false;
+			Properties header = new Properties();
+			header.put( "Retry-After", "1" );
+			sendResponse( HTTP_UNAVAILABLE, MIME_PLAINTEXT, header,
+					new ByteArrayInputStream( "SERVICE UNAVAILABLE: Server is busy.".getBytes()));
+			if ( mySocket != null )
+				myConnections.decrementAndGet();
+		}
+
+		/**
+		 * Closes the connection from another thread, for stop() and pause().
+		 */
+		void abort()
+		{
+			try { mySocket.close(); } catch ( IOException ioe ) {}
+		}
+
+		public void run()
+		{
+			synchronized ( mySessions )
+			{
+				if ( myState == State.STOPPED )
+				{
+					abort();
+					myConnections.decrementAndGet();
+					return;
+				}
+				mySessions.add( this );
+			}
+			myMetrics.myActiveSessions.increment();
+			try
+			{
+				InputStream is = mySocket.getInputStream();
+				if ( is == null) return;
+				// Responses leave in full buffers; waiting to coalesce the
+				// last partial one with more data only delays it.
+				mySocket.setTcpNoDelay( true );
+
+				// Serve requests until the client or we decide to close
+				// the connection, or it stays idle for too long.
+				do
+				{
+					startRequest();
+
+					// Read the first myMaxHeaderBytes bytes (8KB by default).
+					// The full header should fit in here.
+					// Do NOT assume that a single read will get the entire header at once!
+					// The start of a pipelined request may already be in myBuf.
+					final int bufsize = myBuf.length;
+					myServing = myRlen > 0;
+					long headerDeadline = System.currentTimeMillis() + myHeaderTimeout;
+					int splitbyte = findHeaderEnd(myBuf, myRlen);
+					while (splitbyte == 0 && myRlen < bufsize)
+					{
+						// The connection may idle between requests, but once one
+						// has begun its whole header must arrive in time.
+						mySocket.setSoTimeout( myServing
+								? (int)Math.max( 1, headerDeadline - System.currentTimeMillis()) : myKeepAliveTimeout );
+						int read;
+						try
+						{
+							read = is.read(myBuf, myRlen, bufsize - myRlen);
+						}
+						catch ( SocketTimeoutException ste )
+						{
+							if ( !myServing )
+							{
+								myMetrics.countLimit( Metrics.Limit.IDLE_TIMEOUT );
+								throw ste;
+							}
+							myMetrics.countLimit( Metrics.Limit.HEADER_TIMEOUT );
+							sendError( HTTP_REQUEST_TIMEOUT, "REQUEST TIMEOUT: The request header took too long." );
+							return;
+						}
+						if (read <= 0)
+							break;
+						if ( !myServing )
+						{
+							myServing = true;
+							headerDeadline = System.currentTimeMillis() + myHeaderTimeout;
+						}
+						myRlen += read;
+						splitbyte = findHeaderEnd(myBuf, myRlen);
+					}
+					if (myRlen == 0)
+						break;	// Closed by the client between requests
+					if ( splitbyte == 0 && myRlen == bufsize )
+					{
+						myMetrics.countLimit( Metrics.Limit.HEADER_TOO_LARGE );
+						sendError( HTTP_HEADER_TOO_LARGE, "REQUEST HEADER FIELDS TOO LARGE: The header exceeds " + bufsize + " bytes." );
+					}
+
+					// Decode the header into parms and header java properties
+					decodeHeader(myBuf, splitbyte > 0 ? splitbyte : myRlen);
+					myKeepAlive = splitbyte > 0 && wantsKeepAlive();
+
+					long size = contentLength();
+
+					// The body is not read here but by serve(), as it needs it,
+					// starting with the part already read along with the header
+					int bodyStart = splitbyte > 0 ? splitbyte : myRlen;
+					int inBuf = (int)Math.min(myRlen - bodyStart, size);
+					if ( size > inBuf )
+						mySocket.setSoTimeout( myBodyTimeout );
+					handleRequest( new ContentInputStream( myBuf, bodyStart, inBuf, is, size ));
+
+					// Whatever follows the body is the start of the next request
+					int next = bodyStart + inBuf;
+					System.arraycopy(myBuf, next, myBuf, 0, myRlen - next);
+					myRlen -= next;
+				}
+				while ( myKeepAlive && myState == State.RUNNING );
+			}
+			catch ( SocketTimeoutException ste )
+			{
+				// Idle persistent connection, just close it.
+			}
+			catch ( IOException ioe )
+			{
+				try
+				{
+					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+				}
+				catch ( Throwable t ) {}
+			}
+			catch ( InterruptedException ie )
+			{
+				// Thrown by sendError, ignore and exit the thread.
+			}
+			finally
+			{
+				try { mySocket.close(); } catch ( IOException ioe ) {}
+				myMetrics.myActiveSessions.add( -1 );
+				myConnections.decrementAndGet();
+				synchronized ( mySessions )
+				{
+					mySessions.remove( this );
+					mySessions.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Clears the state of the previous request on a persistent connection.
+		 */
+		void startRequest()
+		{
+			method = uri = protocol = null;
+			parms.clear();
+			allParms.clear();
+			// The values of the previous request's headers point into the
+			// buffer this one is read to; a reference kept to them must fail
+			headers = headers.recycle();
+			files.clear();
+		}
+
+		/**
+		 * Whether the connection can stay open after the current request:
+		 * HTTP/1.1 unless the client sent "Connection: close", HTTP/1.0 only
+		 * with "Connection: keep-alive", never past the per-connection limit,
+		 * and not once the server is pausing or stopping.
+		 */
+		boolean wantsKeepAlive()
+		{
+			if ( !myKeepAliveEnabled || myState != State.RUNNING )
+				return false;
+			if ( ++myRequestCount >= myMaxKeepAliveRequests )
+			{
+				myMetrics.countLimit( Metrics.Limit.REQUESTS_PER_CONNECTION );
+				return false;
+			}
+			boolean persistent = "HTTP/1.1".equals( protocol );
+			String connection = headers.get( "connection" );
+			if ( connection != null )
+			{
+				connection = connection.toLowerCase();
+				if ( connection.indexOf( "close" ) >= 0 )
+					persistent = false;
+				else if ( connection.indexOf( "keep-alive" ) >= 0 )
+					persistent = true;
+			}
+			return persistent;
+		}
+
+		/**
+		 * Length of the body of the decoded request. One without
+		 * content-length has none (RFC 7230, 3.3.3). Chunked bodies are
+		 * not decoded, so a request with a transfer-encoding is refused
+		 * and the connection closed: otherwise its chunks would be read
+		 * as the next request.
+		 */
+		long contentLength() throws InterruptedException
+		{
+			String contentLength = headers.get( "content-length" );
+			String transferEncoding = headers.get( "transfer-encoding" );
+			if ( transferEncoding != null )
+			{
+				if ( contentLength != null )
+					sendError( HTTP_BADREQUEST, "BAD REQUEST: Both transfer-encoding and content-length." );
+				if ( transferEncoding.toLowerCase().trim().endsWith( "chunked" ))
+					sendError( HTTP_LENGTH_REQUIRED, "LENGTH REQUIRED: Chunked request bodies are not supported, send content-length." );
+				sendError( HTTP_NOTIMPLEMENTED, "NOT IMPLEMENTED: Unsupported transfer-encoding." );
+			}
+			long size = 0;
+			if ( contentLength != null )
+			{
+				try { size = Long.parseLong( contentLength.trim()); }
+				catch ( NumberFormatException ex ) { size = -1; }
+			}
+			if ( size < 0 )
+				sendError( HTTP_BADREQUEST, "BAD REQUEST: Invalid content-length." );
+			if ( size > myMaxBodyBytes )
+			{
+				myMetrics.countLimit( Metrics.Limit.BODY_TOO_LARGE );
+				sendError( HTTP_ENTITY_TOO_LARGE, "REQUEST ENTITY TOO LARGE: The body exceeds " + myMaxBodyBytes + " bytes." );
+			}
+			return size;
+		}
+
+		/**
+		 * Runs a request the NIO engine has read the header of, on a
+		 * worker thread; the body arrives while serve() reads it.
+		 */
+		void handleDispatched( ContentInputStream body )
+		{
+			try
+			{
+				handleRequest( body );
+			}
+			catch ( IOException ioe )
+			{
+				try
+				{
+					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+				}
+				catch ( InterruptedException ie ) {}
+			}
+			catch ( InterruptedException ie )
+			{
+				// Thrown by sendError, the error response is already queued.
+			}
+			catch ( RuntimeException re )
+			{
+				// Nobody else would ever answer or close this connection
+				try
+				{
+					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: " + re );
+				}
+				catch ( InterruptedException ie ) {}
+			}
+		}
+
+		/**
+		 * Decodes the request line and headers found in the first rlen bytes
+		 * of buf, without copying them: header values are only decoded when
+		 * looked up.
+		 */
+		void decodeHeader( byte[] buf, int rlen ) throws InterruptedException
+		{
+			myRequestStart = System.nanoTime();
+			int next = parseRequestLine( buf, rlen, myRequestLine );
+			if ( next < 0 )
+				sendError( HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html" );
+			method = myRequestLine[0];
+			String uri = myRequestLine[1];
+			if ( uri == null )
+				sendError( HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html" );
+
+			try
+			{
+				// Decode parameters from the URI
+				int qmi = uri.indexOf( '?' );
+				if ( qmi >= 0 )
+				{
+					decodeParms( uri.substring( qmi+1 ), parms, allParms );
+					uri = decodePercent( uri.substring( 0, qmi ));
+				}
+				else uri = decodePercent(uri);
+			}
+			catch ( ResponseException re )
+			{
+				sendError( re.getStatus(), re.getMessage());
+			}
+
+			// If there's a protocol version, HTTP headers follow.
+			protocol = myRequestLine[2];
+			if ( protocol != null )
+				headers.parse( buf, next, rlen );
+			this.uri = uri;
+			myMetrics.myParseTime.record( System.nanoTime() - myRequestStart );
+		}
+
+		/**
+		 * Calls serve() for a decoded request and sends its response.
+		 */
+		private void handleRequest( ContentInputStream body ) throws IOException, InterruptedException
+		{
+			try
+			{
+				// Ok, now do the serve()
+				Response r = serve( new Request( this, body ));
+				if ( body.timedOut())
+				{
+					// The client stalled sending the body; whatever serve() made of that is moot
+					if ( r != null && r.data != null )
+						r.data.close();
+					myMetrics.countLimit( Metrics.Limit.BODY_TIMEOUT );
+					sendError( HTTP_REQUEST_TIMEOUT, "REQUEST TIMEOUT: The request body took too long." );
+				}
+
+				// The next request starts after the body. Skip what serve() left
+				// of it, unless that is so much that closing is cheaper.
+				if ( !body.discard( MAX_DISCARD ))
+					myKeepAlive = false;
+
+				if ( r == null )
+					sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
+				else if ( r.body != null )
+					sendStreamingResponse( r.status, r.mimeType, r.header, r.body );
+				else
+					sendResponse( r.status, r.mimeType, r.header, r.data, r.contentLength );
+			}
+			finally
+			{
+				// Deleting a file that is still being sent is fine, it stays
+				// readable until closed
+				deleteUploads();
+			}
+		}
+
+		/**
+		 * Streams the rest of in to a file in the upload directory and
+		 * returns its full path, or "" if there was nothing to save. The
+		 * file is deleted after the response unless it is claimed.
+		 **/
+		private String saveTmpFile( InputStream in ) throws IOException, ResponseException
+		{
+			File temp = myUploads.create();
+			myUploadFiles.add( temp );
+			long written = 0;
+			boolean complete = false;
+			OutputStream fstream = new FileOutputStream(temp);
+			byte[] buf = theBufferPool.acquire();
+			try
+			{
+				int read;
+				while (( read = in.read( buf, 0, buf.length )) > 0 )
+				{
+					myUploads.reserve( temp, read );
+					fstream.write( buf, 0, read );
+					written += read;
+				}
+				complete = true;
+			}
+			finally
+			{
+				theBufferPool.release( buf );
+				fstream.close();
+				if ( !complete || written == 0 )
+				{
+					myUploadFiles.remove( temp );
+					myUploads.release( temp, true );
+				}
+			}
+			return written > 0 ? temp.getAbsolutePath() : "";
+		}
+
+		/**
+		 * Takes an upload of this request off the list of files deleted
+		 * after the response; false if it is not one.
+		 */
+		boolean claimUpload( File f )
+		{
+			if ( !myUploadFiles.remove( f ))
+				return false;
+			myUploads.release( f, false );
+			return true;
+		}
+
+		/**
+		 * Deletes the uploads of the request that nobody claimed.
+		 */
+		private void deleteUploads()
+		{
+			for ( File f : myUploadFiles )
+				myUploads.release( f, true );
+			myUploadFiles.clear();
+		}
+
+		/**
+		 * Returns an error message as a HTTP response and
+		 * throws InterruptedException to stop further request processing.
+		 */
+		private void sendError( String status, String msg ) throws InterruptedException
+		{
+			myKeepAlive = false;
+			sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()));
+			throw new InterruptedException();
+		}
+
+		/**
+		 * Sends given response to the socket.
+		 */
+		private void sendResponse( String status, String mime, Properties header, InputStream data )
+		{
+			sendResponse( status, mime, header, data, -1 );
+		}
+
+		/**
+		 * Sends given response to the socket; contentLength is the number
+		 * of bytes of data to send, -1 if not known.
+		 */
+		private void sendResponse( String status, String mime, Properties header, final InputStream data, long contentLength )
+		{
+			if ( status != null && isBodiless( status ))
+			{
+				// No Content-Length either: a 304's would have to be that of
+				// the 200, and a cache could take a 0 for an empty entry
+				if ( data != null )
+					try { data.close(); } catch ( IOException ioe ) {}
+				sendHeaderOnly( status, mime, header, LENGTH_UNTIL_CLOSE );
+				return;
+			}
+			long pending = responseLength( header, data, contentLength );
+			if ( "HEAD".equals( method ))
+			{
+				// The headers a GET gets, Content-Length included, but no body:
+				// on a persistent connection the client would read it as the
+				// start of the next response
+				if ( data != null )
+					try { data.close(); } catch ( IOException ioe ) {}
+				sendHeaderOnly( status, mime, header, pending == LENGTH_UNKNOWN ? LENGTH_UNTIL_CLOSE : pending );
+				return;
+			}
+			if ( pending == LENGTH_UNKNOWN )
+			{
+				sendStreamingResponse( status, mime, header, new StreamingBody()
+				{
+					public void writeTo( OutputStream out ) throws IOException
+					{
+						byte[] buf = theBufferPool.acquire();
+						try
+						{
+							int read;
+							while (( read = data.read( buf, 0, buf.length )) > 0 )
+								out.write( buf, 0, read );
+						}
+						finally
+						{
+							theBufferPool.release( buf );
+							data.close();
+						}
+					}
+				});
+				return;
+			}
+			ByteBuffer head = encodeHeader( status, mime, header, pending );
+			countResponse( status );
+			if ( myConnection != null )
+			{
+				myConnection.queueResponse( head, data, pending, myKeepAlive );
+				return;
+			}
+
+			long length = pending;
+			byte[] buf = head.array();
+			int len = head.limit();
+			try
+			{
+				OutputStream out = mySocket.getOutputStream();
+				if ( data instanceof FileInputStream && mySocket.getChannel() != null && pending > buf.length - len )
+				{
+					// Zero-copy: the kernel moves file pages straight to the socket
+					out.write( buf, 0, len );
+					myMetrics.myBytesOut.add( len );
+					len = 0;
+					pending -= transferFile(((FileInputStream)data).getChannel(), pending, mySocket.getChannel());
+					if ( pending > 0 )
+						myKeepAlive = false;
+				}
+				else
+				{
+					// The body follows the header in the same buffer, so a
+					// small response leaves in a single write
+					while ( pending > 0 )
+					{
+						if ( len == buf.length )
+						{
+							out.write( buf, 0, len );
+							len = 0;
+						}
+						int read = data.read( buf, len, (int)Math.min( buf.length - len, pending ));
+						if ( read <= 0 )
+							break;
+						len += read;
+						pending -= read;
+					}
+					if ( pending > 0 )
+						myKeepAlive = false;	// Short body, the client can only detect the end by EOF
+					myMetrics.myBytesOut.add( head.limit());
+				}
+				if ( len > 0 )
+					out.write( buf, 0, len );
+				out.flush();
+				if ( !myKeepAlive )
+					out.close();
+				if ( data != null )
+					data.close();
+			}
+			catch( IOException ioe )
+			{
+				// Couldn't write? No can do.
+				myKeepAlive = false;
+				try { mySocket.close(); } catch( Throwable t ) {}
+			}
+			finally
+			{
+				theBufferPool.release( buf );
+			}
+			myMetrics.myBytesOut.add( length - pending );
+		}
+
+		/**
+		 * Sends the status line and headers of a response to a HEAD request,
+		 * or of one that has no body; contentLength is that of the body a
+		 * GET would get, or LENGTH_UNTIL_CLOSE to leave it out.
+		 */
+		private void sendHeaderOnly( String status, String mime, Properties header, long contentLength )
+		{
+			ByteBuffer head = encodeHeader( status, mime, header, contentLength );
+			countResponse( status );
+			if ( myConnection != null )
+			{
+				myConnection.queueResponse( head, null, 0, myKeepAlive );
+				return;
+			}
+			try
+			{
+				OutputStream out = mySocket.getOutputStream();
+				out.write( head.array(), 0, head.limit());
+				out.flush();
+				myMetrics.myBytesOut.add( head.limit());
+				if ( !myKeepAlive )
+					out.close();
+			}
+			catch( IOException ioe )
+			{
+				myKeepAlive = false;
+				try { mySocket.close(); } catch( Throwable t ) {}
+			}
+			finally
+			{
+				theBufferPool.release( head.array());
+			}
+		}
+
+		/**
+		 * Counts the response, and its time to first byte if it answers a request.
+		 */
+		private void countResponse( String status )
+		{
+			myMetrics.countResponse( status );
+			if ( myRequestStart != 0 )
+				myMetrics.myTimeToFirstByte.record( System.nanoTime() - myRequestStart );
+			myRequestStart = 0;
+		}
+
+		/**
+		 * Sends a response whose body is produced while it is written:
+		 * chunked for HTTP/1.1 clients, delimited by closing the
+		 * connection for HTTP/1.0 ones.
+		 */
+		private void sendStreamingResponse( String status, String mime, Properties header, StreamingBody body )
+		{
+			if ( "HEAD".equals( method ))
+			{
+				sendHeaderOnly( status, mime, header, LENGTH_UNTIL_CLOSE );
+				return;
+			}
+			boolean chunked = "HTTP/1.1".equals( protocol );
+			if ( !chunked )
+				myKeepAlive = false;
+			ByteBuffer head = encodeHeader( status, mime, header, chunked ? LENGTH_CHUNKED : LENGTH_UNTIL_CLOSE );
+			countResponse( status );
+
+			OutputStream raw = null;
+			byte[] chunk = chunked ? theBufferPool.acquire() : null;
+			try
+			{
+				if ( myConnection != null )
+					raw = myConnection.startStreaming( head, myKeepAlive );
+				else
+				{
+					raw = new java.io.FilterOutputStream( mySocket.getOutputStream())
+					{
+						public void write( byte[] b, int off, int len ) throws IOException
+						{
+							out.write( b, off, len );
+							myMetrics.myBytesOut.add( len );
+						}
+					};
+					try
+					{
+						raw.write( head.array(), 0, head.limit());
+					}
+					finally
+					{
+						theBufferPool.release( head.array());
+					}
+				}
+				OutputStream out = chunked ? new ChunkedOutputStream( raw, chunk ) : raw;
+				body.writeTo( out );
+				if ( chunked )
+					out.close();	// Writes the last chunk, leaves raw open
+				raw.flush();
+				if ( myConnection != null )
+					myConnection.endStreaming( myKeepAlive );
+				else if ( !myKeepAlive )
+					raw.close();
+			}
+			catch ( IOException ioe )
+			{
+				// Too late for an error response, the status line is out.
+				myKeepAlive = false;
+				if ( myConnection != null )
+					myConnection.endStreaming( false );
+				else
+					try { mySocket.close(); } catch( Throwable t ) {}
+			}
+			finally
+			{
+				theBufferPool.release( chunk );
+			}
+		}
+
+		/**
+		 * Number of body bytes to send: the length serve() gave, or else its
+		 * Content-Length header, or else the remaining length of a stream that
+		 * knows it exactly, a byte array or a file. LENGTH_UNKNOWN for other
+		 * streams, whose available() is only what can be read without
+		 * blocking; those are sent chunked.
+		 */
+		private long responseLength( Properties header, InputStream data, long contentLength )
+		{
+			if ( data == null )
+				return 0;
+			if ( contentLength >= 0 )
+				return contentLength;
+			String lengthHeader = header != null ? header.getProperty( "Content-Length" ) : null;
+			if ( lengthHeader != null )
+			{
+				try { return Long.parseLong( lengthHeader.trim()); }
+				catch ( NumberFormatException nfe ) {}
+			}
+			try
+			{
+				if ( data instanceof ByteArrayInputStream )
+					return data.available();
+				if ( data instanceof FileInputStream )
+				{
+					FileChannel channel = ((FileInputStream)data).getChannel();
+					return channel.size() - channel.position();
+				}
+			}
+			catch ( IOException ioe ) {}
+			return LENGTH_UNKNOWN;
+		}
+
+		/**
+		 * Serializes the status line and headers of a response into a buffer
+		 * from the pool, which whoever writes it out releases. The buffer's
+		 * limit is the end of the header; a small body may follow it there.
+		 */
+		@SuppressWarnings("rawtypes")
+		private ByteBuffer encodeHeader( String status, String mime, Properties header, long contentLength )
+		{
+			if ( status == null )
+				throw new Error( "sendResponse(): Status can't be null." );
+
+			HeaderWriter w = new HeaderWriter( theBufferPool.acquire());
+			w.append( "HTTP/1.1 " ).append( status ).append( " \r\n" );
+
+			if ( mime != null )
+				w.append( "Content-Type: " ).append( mime ).crlf();
+
+			if ( header == null || header.getProperty( "Date" ) == null )
+				w.append( HttpDate.nowHeaderLine());
+
+			if ( header != null )
+			{
+				Enumeration e = header.keys();
+				while ( e.hasMoreElements())
+				{
+					String key = (String)e.nextElement();
+					String value = header.getProperty( key );
+					w.append( key ).append( ": " ).append( value ).crlf();
+				}
+			}
+
+			// Persistent connections need an explicit length
+			if ( contentLength == LENGTH_CHUNKED )
+				w.append( "Transfer-Encoding: chunked\r\n" );
+			else if ( contentLength >= 0 && ( header == null || header.getProperty( "Content-Length" ) == null ))
+				w.append( "Content-Length: " ).append( contentLength ).crlf();
+
+			if ( myState != State.RUNNING )
+				myKeepAlive = false;	// Paused or stopping while serve() ran
+			if ( myKeepAlive )
+			{
+				w.append( "Connection: keep-alive\r\nKeep-Alive: timeout=" ).append( myKeepAliveTimeout / 1000 )
+					.append( ", max=" ).append( myMaxKeepAliveRequests - myRequestCount ).crlf();
+			}
+			else
+				w.append( "Connection: close\r\n" );
+
+			return w.crlf().toByteBuffer();
+		}
+
+		private Socket mySocket;
+		private NioConnection myConnection;
+		private final byte[] myBuf = new byte[myMaxHeaderBytes];
+		private int myRlen;
+		private boolean myKeepAlive;
+		private volatile boolean myServing;	// A request is being read or answered, rather than awaited
+		private int myRequestCount;
+		private long myRequestStart;	// System.nanoTime() when the header was decoded, 0 once answered
+		private String method, uri, protocol;
+		private final String[] myRequestLine = new String[3];
+		private final Properties parms = new Properties();
+		private final HashMap<String, List<String>> allParms = new HashMap<String, List<String>>();
+		private Headers headers = new Headers();
+		private final Properties files = new Properties();
+		private final ArrayList<File> myUploadFiles = new ArrayList<File>();
+	}
+
+	/**
+	 * Decodes the percent encoding scheme. <br/>
+	 * For example: "an+example%20string" -> "an example string"<p>
+	 *
+	 * Escapes are UTF-8 bytes, e.g. "%E2%82%AC" is the euro sign. A string
+	 * without escapes is returned as it is.
+	 */
+	static String decodePercent( String str ) throws ResponseException
+	{
+		int n = str.length();
+		int i = 0;
+		while ( i < n && str.charAt( i ) != '%' && str.charAt( i ) != '+' )
+			i++;
+		if ( i == n )
+			return str;
+		byte[] b;
+		try
+		{
+			b = str.getBytes( "UTF-8" );
+		}
+		catch ( java.io.UnsupportedEncodingException uee )
+		{
+			throw new Error( uee );	// Every JVM has UTF-8
+		}
+		return decodePercent( b, 0, b.length );
+	}
+
+	/**
+	 * Decodes the percent encoded bytes from start to end in place, the
+	 * decoded ones are never more, and returns them as UTF-8.
+	 */
+	@SuppressWarnings("deprecation")
+	static String decodePercent( byte[] buf, int start, int end ) throws ResponseException
+	{
+		int len = start;
+		boolean ascii = true;
+		for ( int i = start; i < end; i++ )
+		{
+			int b = buf[i];
+			if ( b == '+' )
+				b = ' ';
+			else if ( b == '%' )
+			{
+				int hi = i + 2 < end ? Character.digit( buf[i+1], 16 ) : -1;
+				int lo = i + 2 < end ? Character.digit( buf[i+2], 16 ) : -1;
+				if ( hi < 0 || lo < 0 )
+					throw new ResponseException( HTTP_BADREQUEST, "BAD REQUEST: Bad percent-encoding." );
+				b = hi << 4 | lo;
+				i += 2;
+			}
+			if (( b & 0x80 ) != 0 )
+				ascii = false;
+			buf[len++] = (byte)b;
+		}
+		if ( ascii )
+			return new String( buf, 0, start, len - start );
+		try
+		{
+			return new String( buf, start, len - start, "UTF-8" );
+		}
+		catch ( java.io.UnsupportedEncodingException uee )
+		{
+			throw new Error( uee );
+		}
+	}
+
+	/**
+	 * Decodes parameters in percent-encoded URI-format
+	 * ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
+	 * adds them to given Properties. Of identical keys, the last one wins;
+	 * see the variant below for all of them.
+	 */
+	static void decodeParms( String parms, Properties p ) throws ResponseException
+	{
+		decodeParms( parms, p, null );
+	}
+
+	/**
+	 * Same, also adding each value to the list of its key in all.
+	 */
+	static void decodeParms( String parms, Properties p, Map<String, List<String>> all ) throws ResponseException
+	{
+		if ( parms == null )
+			return;
+
+		int n = parms.length();
+		int start = 0;
+		while ( start < n )
+		{
+			int amp = parms.indexOf( '&', start );
+			if ( amp < 0 )
+				amp = n;
+			int sep = parms.indexOf( '=', start );
+			if ( sep >= 0 && sep < amp )
+				addParm( decodePercent( parms.substring( start, sep )).trim(),
+						decodePercent( parms.substring( sep+1, amp )), p, all );
+			start = amp + 1;
+		}
+	}
+
+	/**
+	 * Adds a parameter to parms and, if there is one, to all.
+	 */
+	static void addParm( String name, String value, Properties parms, Map<String, List<String>> all )
+	{
+		parms.put( name, value );
+		if ( all == null )
+			return;
+		List<String> values = all.get( name );
+		if ( values == null )
+		{
+			values = new ArrayList<String>( 1 );
+			all.put( name, values );
+		}
+		values.add( value );
+	}
+
+	/**
+	 * Sends up to count bytes of the file from its current position
+	 * with FileChannel.transferTo(), i.e. sendfile() where available,
+	 * and advances the position. Returns the number of bytes sent,
+	 * which is less than count only at end of file or, for a
+	 * non-blocking target, when its buffer is full.
+	 */
+	static long transferFile( FileChannel file, long count, WritableByteChannel target ) throws IOException
+	{
+		long position = file.position();
+		long sent = 0;
+		while ( sent < count )
+		{
+			long n = file.transferTo( position + sent, count - sent, target );
+			if ( n <= 0 )
+				break;
+			sent += n;
+		}
+		file.position( position + sent );
+		return sent;
+	}
+
+	/**
+	 * The most of a request body that is read and dropped after serve()
+	 * to keep the connection; beyond that it is closed instead.
+	 */
+	private static final long MAX_DISCARD = 64 * 1024;
+
+	/**
+	 * The body of a request: first the bytes that arrived along with the
+	 * header, then the rest from the connection, up to content-length.
+	 * Closing it leaves the connection open.
+	 */
+	static class ContentInputStream extends InputStream
+	{
+		ContentInputStream( byte[] buf, int off, int len, InputStream in, long length )
+		{
+			myBuf = buf;
+			myOff = off;
+			myLen = len;
+			myIn = in;
+			myLength = length;
+			myRemaining = length;
+		}
+
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if ( myRemaining <= 0 )
+				return -1;
+			if ( len == 0 )
+				return 0;
+			int n;
+			if ( myLen > 0 )
+			{
+				n = Math.min( len, myLen );
+				System.arraycopy( myBuf, myOff, b, off, n );
+				myOff += n;
+				myLen -= n;
+			}
+			else
+			{
+				try
+				{
+					n = myIn.read( b, off, (int)Math.min( len, myRemaining ));
+				}
+				catch ( SocketTimeoutException ste )
+				{
+					myTimedOut = true;
+					throw ste;
+				}
+				if ( n < 0 )
+					return -1;	// Cut short by the client
+			}
+			myRemaining -= n;
+			return n;
+		}
+
+		public int available() throws IOException
+		{
+			return (int)Math.min( myRemaining, myLen > 0 ? myLen : myIn.available());
+		}
+
+		public void close() {}
+
+		long getLength()
+		{
+			return myLength;
+		}
+
+		/**
+		 * True if a read gave up waiting for the client to send more.
+		 */
+		boolean timedOut()
+		{
+			return myTimedOut;
+		}
+
+		/**
+		 * Reads and drops the rest of the body if it is at most max
+		 * bytes. Returns true if the body has been read completely.
+		 */
+		boolean discard( long max )
+		{
+			if ( myRemaining > max || myTimedOut )
+				return false;
+			try
+			{
+				byte[] buf = myRemaining > 0 ? new byte[(int)Math.min( myRemaining, 4096 )] : null;
+				while ( myRemaining > 0 && read( buf, 0, buf.length ) >= 0 ) {}
+			}
+			catch ( IOException ioe ) {}
+			return myRemaining == 0;
+		}
+
+		private final byte[] myBuf;
+		private int myOff;
+		private int myLen;
+		private final InputStream myIn;
+		private final long myLength;
+		private long myRemaining;
+		private boolean myTimedOut;
+	}
+
+	/**
+	 * Special lengths for encodeHeader(): a chunked body, or one
+	 * that ends when the connection is closed. LENGTH_UNKNOWN is
+	 * what responseLength() returns for a stream of unknown length.
+	 */
+	private static final long LENGTH_CHUNKED = -1, LENGTH_UNTIL_CLOSE = -2, LENGTH_UNKNOWN = -3;
+
+	/**
+	 * Whether a response with this status ends with its header: 1xx,
+	 * 204 and 304 never have a body.
+	 */
+	private static boolean isBodiless( String status )
+	{
+		return status.startsWith( "1" ) || status.startsWith( "204 " ) || status.startsWith( "304 " );
+	}
+
+	/**
+	 * A response header serialized straight into a byte array, without
+	 * going through a String: ASCII is stored char by char, anything else
+	 * as UTF-8. Grows past the initial array for unusually large headers.
+	 */
+	static final class HeaderWriter
+	{
+		HeaderWriter( byte[] buf )
+		{
+			myBuf = buf;
+		}
+
+		HeaderWriter append( String s )
+		{
+			int n = s.length();
+			ensure( n );
+			for ( int i = 0; i < n; i++ )
+			{
+				char c = s.charAt( i );
+				if ( c >= 0x80 )
+					return appendUtf8( s, i );
+				myBuf[myLen++] = (byte)c;
+			}
+			return this;
+		}
+
+		HeaderWriter append( long n )
+		{
+			if ( n < 0 )
+				return append( Long.toString( n ));
+			int digits = 1;
+			for ( long t = n; t >= 10; t /= 10 )
+				digits++;
+			ensure( digits );
+			for ( int i = myLen + digits - 1; i >= myLen; i-- )
+			{
+				myBuf[i] = (byte)( '0' + n % 10 );
+				n /= 10;
+			}
+			myLen += digits;
+			return this;
+		}
+
+		HeaderWriter append( byte[] b )
+		{
+			ensure( b.length );
+			System.arraycopy( b, 0, myBuf, myLen, b.length );
+			myLen += b.length;
+			return this;
+		}
+
+		HeaderWriter crlf()
+		{
+			ensure( 2 );
+			myBuf[myLen++] = '\r';
+			myBuf[myLen++] = '\n';
+			return this;
+		}
+
+		/**
+		 * The header written so far, from position 0 to the limit.
+		 */
+		ByteBuffer toByteBuffer()
+		{
+			return ByteBuffer.wrap( myBuf, 0, myLen );
+		}
+
+		private HeaderWriter appendUtf8( String s, int from )
+		{
+			try
+			{
+				return append( s.substring( from ).getBytes( "UTF-8" ));
+			}
+			catch ( java.io.UnsupportedEncodingException uee )
+			{
+				return append( s.substring( from ).getBytes());
+			}
+		}
+
+		private void ensure( int n )
+		{
+			if ( myLen + n > myBuf.length )
+				myBuf = Arrays.copyOf( myBuf, Math.max( myBuf.length * 2, myLen + n ));
+		}
+
+		private byte[] myBuf;
+		private int myLen;
+	}
+
+	/**
+	 * Frames everything written to it as HTTP/1.1 chunks. Small writes
+	 * are collected into chunks of up to the buffer size; flush() sends
+	 * the current chunk and close() the terminating empty chunk, without
+	 * closing the underlying stream.
+	 */
+	static class ChunkedOutputStream extends OutputStream
+	{
+		ChunkedOutputStream( OutputStream out, int bufferSize )
+		{
+			this( out, new byte[bufferSize] );
+		}
+
+		/**
+		 * Collects chunks in buf, e.g. one from the buffer pool.
+		 */
+		ChunkedOutputStream( OutputStream out, byte[] buf )
+		{
+			this.out = out;
+			this.buf = buf;
+		}
+
+		public void write( int b ) throws IOException
+		{
+			if ( count == buf.length )
+				writeChunk();
+			buf[count++] = (byte)b;
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			if ( closed )
+				throw new IOException( "Stream closed" );
+			if ( len >= buf.length )
+			{
+				// Large writes go out as their own chunk, without copying
+				writeChunk();
+				writeChunk( b, off, len );
+				return;
+			}
+			if ( len > buf.length - count )
+				writeChunk();
+			System.arraycopy( b, off, buf, count, len );
+			count += len;
+		}
+
+		public void flush() throws IOException
+		{
+			writeChunk();
+			out.flush();
+		}
+
+		public void close() throws IOException
+		{
+			if ( closed )
+				return;
+			writeChunk();
+			out.write( LAST_CHUNK );
+			out.flush();
+			closed = true;
+		}
+
+		private void writeChunk() throws IOException
+		{
+			writeChunk( buf, 0, count );
+			count = 0;
+		}
+
+		private void writeChunk( byte[] b, int off, int len ) throws IOException
+		{
+			if ( len == 0 )
+				return;	// An empty chunk would end the body
+			// The chunk size in hex, right-aligned before the CRLF ending sizeLine
+			int pos = sizeLine.length - 2;
+			for ( int n = len; n != 0; n >>>= 4 )
+				sizeLine[--pos] = HEX[n & 0xf];
+			out.write( sizeLine, pos, sizeLine.length - pos );
+			out.write( b, off, len );
+			out.write( CRLF );
+		}
+
+		private static final byte[] CRLF = { '\r', '\n' };
+		private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+		private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+		private final OutputStream out;
+		private final byte[] buf;
+		private final byte[] sizeLine = { 0, 0, 0, 0, 0, 0, 0, 0, '\r', '\n' };
+		private int count;
+		private boolean closed;
+	}
+
+	/**
+	 * Splits the request line at the start of buf into method, URI and
+	 * protocol, null for missing ones (a HTTP/0.9 request has no protocol).
+	 * Common methods and protocols are shared constants; the URI may hold
+	 * UTF-8, whose bytes are all from 0x80 up. Returns the offset
+	 * of the first header line, or -1 if there is no method.
+	 */
+	static int parseRequestLine( byte[] buf, int rlen, String[] parts )
+	{
+		int eol = 0;
+		while ( eol < rlen && buf[eol] != '\n' )
+			eol++;
+		parts[0] = parts[1] = parts[2] = null;
+		int pos = 0;
+		for ( int t = 0; t < 3; t++ )
+		{
+			while ( pos < eol && ( buf[pos] & 0xff ) <= ' ' )
+				pos++;
+			int start = pos;
+			while ( pos < eol && ( buf[pos] & 0xff ) > ' ' )
+				pos++;
+			if ( pos == start )
+				break;
+			String known = null;
+			String[] constants = t == 0 ? KNOWN_METHODS : t == 2 ? KNOWN_PROTOCOLS : null;
+			if ( constants != null )
+				for ( String c : constants )
+					if ( c.length() == pos - start && Headers.decodeEquals( buf, start, c ))
+						known = c;
+			parts[t] = known != null ? known : Headers.decode( buf, start, pos );
+		}
+		if ( parts[0] == null )
+			return -1;
+		return eol < rlen ? eol + 1 : rlen;
+	}
+
+	private static final String[] KNOWN_METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS" };
+	private static final String[] KNOWN_PROTOCOLS = { "HTTP/1.1", "HTTP/1.0" };
+
+	/**
+	 * Find byte index separating header from body.
+	 * It must be the last byte of the first two sequential new lines.
+	 **/
+	static int findHeaderEnd(final byte[] buf, int rlen)
+	{
+		int splitbyte = 0;
+		while (splitbyte + 3 < rlen)
+		{
+			if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
+				return splitbyte + 4;
+			splitbyte++;
+		}
+		return 0;
+	}
+
+	// ==================================================
+	// NIO engine
+	// ==================================================
+
+	/**
+	 * Selector loop of the NIO engine. Accepts connections and reads
+	 * requests incrementally without blocking; complete requests are
+	 * handed to the session executor for serve(), and their responses
+	 * are written back by this thread as the sockets become writable.
+	 * Idle or slow connections therefore cost a buffer, not a thread.
+	 */
+	private class NioEngine implements Runnable
+	{
+		NioEngine( ServerSocketChannel server ) throws IOException
+		{
+			mySelector = Selector.open();
+			listen( server );
+		}
+
+		public void run()
+		{
+			try
+			{
+				long lastSweep = System.currentTimeMillis();
+				while ( true )
+				{
+					mySelector.select( myDeadline != 0 ? 50 : 1000 );
+
+					Runnable task;
+					while (( task = myTasks.poll()) != null )
+						task.run();
+
+					// Responses completed and bodies consumed by workers since the last select
+					NioConnection ready;
+					while (( ready = myReady.poll()) != null )
+						ready.updateInterest();
+
+					Iterator<SelectionKey> it = mySelector.selectedKeys().iterator();
+					while ( it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						if ( !key.isValid())
+							continue;
+						if ( key.isAcceptable())
+						{
+							accept();
+							continue;
+						}
+						NioConnection c = (NioConnection)key.attachment();
+						try
+						{
+							if ( key.isReadable())
+								c.onReadable();
+							if ( key.isValid() && key.isWritable())
+								c.onWritable();
+						}
+						catch ( IOException ioe )
+						{
+							c.close();
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if ( myDeadline != 0 )
+					{
+						// Stopping: no new connections, and none waiting for a request
+						unlisten();
+						closeWaiting();
+						if ( mySelector.keys().isEmpty() || now >= myDeadline )
+							break;
+					}
+					else if ( now - lastSweep >= 1000 )
+					{
+						closeIdle( now );
+						lastSweep = now;
+					}
+				}
+			}
+			catch ( IOException ioe ) {}
+			catch ( ClosedSelectorException cse ) {}
+			finally
+			{
+				int cutOff = 0;
+				try
+				{
+					unlisten();
+					for ( SelectionKey key : mySelector.keys())
+						if ( key.attachment() instanceof NioConnection )
+						{
+							NioConnection c = (NioConnection)key.attachment();
+							if ( key.isValid() && c.myBusy )
+								cutOff++;
+							c.close();
+						}
+					mySelector.close();
+				}
+				catch ( IOException ioe ) {}
+				myCutOff = cutOff;
+			}
+		}
+
+		/**
+		 * Stops accepting; connections already open are served on.
+		 */
+		void pause()
+		{
+			runOnSelector( new Runnable()
+			{
+				public void run()
+				{
+					unlisten();
+					closeWaiting();
+				}
+			});
+		}
+
+		/**
+		 * Accepts connections from the newly bound server again.
+		 */
+		void resume( final ServerSocketChannel server ) throws IOException
+		{
+			final IOException[] failed = new IOException[1];
+			runOnSelector( new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						listen( server );
+					}
+					catch ( IOException ioe )
+					{
+						failed[0] = ioe;
+					}
+				}
+			});
+			if ( failed[0] != null )
+			{
+				server.close();
+				throw failed[0];
+			}
+		}
+
+		/**
+		 * Makes the selector loop stop accepting and close idle connections,
+		 * and end once the others are answered or the deadline is reached.
+		 * Returns how many connections it then had to cut off.
+		 */
+		int stop( long deadline ) throws InterruptedException
+		{
+			myDeadline = Math.max( 1, deadline );
+			mySelector.wakeup();
+			myThread.join();
+			return myCutOff;
+		}
+
+		/**
+		 * Runs the task on the selector thread, which owns the registrations,
+		 * and waits for it. Runs it right here if that thread has ended.
+		 */
+		private void runOnSelector( Runnable task )
+		{
+			FutureTask<Void> future = new FutureTask<Void>( task, null );
+			myTasks.add( future );
+			mySelector.wakeup();
+			while ( !future.isDone())
+			{
+				try
+				{
+					future.get( 100, TimeUnit.MILLISECONDS );
+				}
+				catch ( java.util.concurrent.TimeoutException te )
+				{
+					if ( !myThread.isAlive() && myTasks.remove( future ))
+						future.run();
+				}
+				catch ( Exception e )
+				{
+					break;
+				}
+			}
+		}
+
+		private void listen( ServerSocketChannel server ) throws IOException
+		{
+			server.configureBlocking( false );
+			myServerKey = server.register( mySelector, SelectionKey.OP_ACCEPT );
+			myServer = server;
+		}
+
+		/**
+		 * Closes the server socket. The selector holds on to a registered
+		 * channel until its key is flushed, so select once more to really
+		 * release the port before start() binds it again.
+		 */
+		private void unlisten()
+		{
+			if ( myServer == null )
+				return;
+			myServerKey.cancel();
+			try
+			{
+				myServer.close();
+				mySelector.selectNow();
+			}
+			catch ( IOException ioe ) {}
+			myServer = null;
+		}
+
+		/**
+		 * Closes the connections waiting for a request, rather than
+		 * for serve() or the client reading its response.
+		 */
+		private void closeWaiting()
+		{
+			for ( SelectionKey key : mySelector.keys())
+				if ( key.attachment() instanceof NioConnection )
+				{
+					NioConnection c = (NioConnection)key.attachment();
+					if ( !c.myBusy )
+						c.close();
+				}
+		}
+
+		/**
+		 * Enforces the idle, header and body timeouts.
+		 */
+		private void closeIdle( long now )
+		{
+			for ( SelectionKey key : mySelector.keys())
+				if ( key.attachment() instanceof NioConnection )
+					((NioConnection)key.attachment()).checkTimeouts( now );
+		}
+
+		private void accept() throws IOException
+		{
+			if ( myServer == null )
+				return;
+			SocketChannel channel = myServer.accept();
+			if ( channel == null )
+				return;
+			channel.configureBlocking( false );
+			channel.socket().setTcpNoDelay( true );
+			SelectionKey key = channel.register( mySelector, SelectionKey.OP_READ );
+			NioConnection c = new NioConnection( key );
+			key.attach( c );
+			myMetrics.myActiveSessions.increment();
+			if ( myConnections.incrementAndGet() > myMaxConnections )
+			{
+				myMetrics.countLimit( Metrics.Limit.CONNECTIONS );
+				c.reject();
+			}
+		}
+
+		/**
+		 * Called from worker threads once a response is ready to be written,
+		 * or when they made room for more of a request body.
+		 */
+		void ready( NioConnection c )
+		{
+			myReady.add( c );
+			mySelector.wakeup();
+		}
+
+		void wakeup()
+		{
+			mySelector.wakeup();
+		}
+
+		private ServerSocketChannel myServer;
+		private SelectionKey myServerKey;
+		private final Selector mySelector;
+		private final ConcurrentLinkedQueue<NioConnection> myReady = new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<Runnable> myTasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile long myDeadline;	// Set by stop()
+		private volatile int myCutOff;
+	}
+
+	/**
+	 * Per-connection state of the NIO engine: the request being read
+	 * and the response being written.
+	 */
+	private class NioConnection
+	{
+		private static final int STREAM_HIGH_WATER = 64 * 1024;
+
+		NioConnection( SelectionKey key )
+		{
+			myKey = key;
+			myChannel = (SocketChannel)key.channel();
+		}
+
+		void onReadable() throws IOException
+		{
+			if ( myBusy )
+			{
+				// More of the body of the request being served
+				if ( myRequestBody != null && !myRequestBody.fill( myChannel ))
+				{
+					close();
+					return;
+				}
+				myLastActive = System.currentTimeMillis();
+				updateInterest();
+				return;
+			}
+			boolean started = myHead.position() > 0;
+			if ( myChannel.read( myHead ) < 0 )
+			{
+				close();
+				return;
+			}
+			myLastActive = System.currentTimeMillis();
+			if ( !started )
+				myHeaderStart = myLastActive;
+			process();
+		}
+
+		/**
+		 * Starts the next request once its header is buffered.
+		 */
+		private void process()
+		{
+			int splitbyte = findHeaderEnd( myHead.array(), myHead.position());
+			if ( splitbyte == 0 && myHead.hasRemaining())
+				return;
+			if ( splitbyte == 0 )
+			{
+				myMetrics.countLimit( Metrics.Limit.HEADER_TOO_LARGE );
+				refuse( HTTP_HEADER_TOO_LARGE, "REQUEST HEADER FIELDS TOO LARGE: The header exceeds " + myHead.capacity() + " bytes." );
+				return;
+			}
+			headerComplete( splitbyte, myHead.position());
+		}
+
+		/**
+		 * Answers with an error instead of serving a request, and closes.
+		 */
+		private void refuse( String status, String msg )
+		{
+			myBusy = true;
+			mySession.startRequest();
+			try
+			{
+				mySession.sendError( status, msg );
+			}
+			catch ( InterruptedException ie ) {}
+			myKeepAlive = false;
+			updateInterest();
+		}
+
+		/**
+		 * Turns the connection away with "503 Service Unavailable".
+		 */
+		void reject()
+		{
+			myBusy = true;
+			mySession.reject();
+			updateInterest();
+		}
+
+		/**
+		 * Decodes the header on the selector thread, as it tells how much
+		 * body is to come, and hands the request to a worker. The body
+		 * is read while serve() consumes it.
+		 */
+		private void headerComplete( int splitbyte, int rlen )
+		{
+			myBusy = true;
+			mySession.startRequest();
+			try
+			{
+				mySession.decodeHeader( myHead.array(), splitbyte > 0 ? splitbyte : rlen );
+				mySession.myKeepAlive = splitbyte > 0 && mySession.wantsKeepAlive();
+				long size = mySession.contentLength();
+
+				int bodyStart = splitbyte > 0 ? splitbyte : rlen;
+				int inBuf = (int)Math.min( rlen - bodyStart, size );
+				myConsumed = bodyStart + inBuf;
+				myRequestBody = new NioBodyStream( this, size - inBuf );
+				dispatch( new ContentInputStream( myHead.array(), bodyStart, inBuf, myRequestBody, size ));
+			}
+			catch ( InterruptedException ie )
+			{
+				// Thrown by sendError, the error response is already queued.
+				myKeepAlive = false;
+			}
+			updateInterest();
+		}
+
+		private void dispatch( final ContentInputStream body )
+		{
+			final HTTPSession session = mySession;
+			myLastActive = System.currentTimeMillis();
+			try
+			{
+				mySessionExecutor.execute( new Runnable()
+				{
+					public void run()
+					{
+						session.handleDispatched( body );
+					}
+				});
+			}
+			catch ( RejectedExecutionException ree )
+			{
+				session.reject();
+			}
+		}
+
+		/**
+		 * Called by the session with a serialized header and the body to stream.
+		 */
+		void queueResponse( ByteBuffer head, InputStream data, long pending, boolean keepAlive )
+		{
+			myData = data;
+			myPending = data != null ? pending : 0;
+			myZeroCopy = data instanceof FileInputStream && pending > theBufferSize;
+			myKeepAlive = keepAlive;
+			// The first part of the body is read here, on the worker, and
+			// goes out with the header in one gathering write. myOut is set
+			// only after that: the selector arms OP_WRITE as soon as it sees
+			// it and would start a second read into the same chunk.
+			if ( myPending > 0 && !myZeroCopy )
+				readBody( data );
+			synchronized ( this )
+			{
+				myOut = head;
+			}
+			myNioEngine.ready( this );
+		}
+
+		/**
+		 * Switches the connection to streaming: what the worker writes to the
+		 * returned stream is queued and sent by the selector thread. Writers
+		 * block while more than STREAM_HIGH_WATER bytes are waiting, so a
+		 * slow client throttles its producer instead of filling the heap.
+		 */
+		OutputStream startStreaming( ByteBuffer head, boolean keepAlive )
+		{
+			synchronized ( this )
+			{
+				myStreaming = true;
+				myStreamDone = false;
+				myKeepAlive = keepAlive;
+				myOut = head;
+			}
+			myNioEngine.ready( this );
+			return new OutputStream()
+			{
+				public void write( int b ) throws IOException
+				{
+					write( new byte[] { (byte)b }, 0, 1 );
+				}
+
+				public void write( byte[] b, int off, int len ) throws IOException
+				{
+					enqueue( b, off, len );
+				}
+			};
+		}
+
+		private void enqueue( byte[] b, int off, int len ) throws IOException
+		{
+			synchronized ( this )
+			{
+				while ( myQueued > STREAM_HIGH_WATER && myChannel.isOpen())
+				{
+					try { wait(); }
+					catch ( InterruptedException ie ) { throw new java.io.InterruptedIOException(); }
+				}
+				if ( !myChannel.isOpen())
+					throw new IOException( "Connection closed" );
+				byte[] copy = new byte[len];
+				System.arraycopy( b, off, copy, 0, len );
+				myQueue.add( ByteBuffer.wrap( copy ));
+				myQueued += len;
+			}
+			myNioEngine.ready( this );
+		}
+
+		/**
+		 * Called by the worker when the streamed body is complete, or with
+		 * keepAlive false when it failed and the connection must be dropped.
+		 */
+		void endStreaming( boolean keepAlive )
+		{
+			synchronized ( this )
+			{
+				myStreamDone = true;
+				myKeepAlive = keepAlive;
+			}
+			myNioEngine.ready( this );
+		}
+
+		/**
+		 * Sends queued stream data; true once the stream is fully sent.
+		 */
+		private synchronized boolean writeStreamed() throws IOException
+		{
+			// The header and the queued chunks, as many as fit in one gathering write
+			while ( true )
+			{
+				int n = 0;
+				if ( myOut.hasRemaining())
+					myGather[n++] = myOut;
+				for ( ByteBuffer b : myQueue )
+				{
+					if ( n == myGather.length )
+						break;
+					myGather[n++] = b;
+				}
+				if ( n == 0 )
+					break;
+				int head = myOut.remaining();
+				long written = myChannel.write( myGather, 0, n );
+				myMetrics.myBytesOut.add( written );
+				myQueued -= written - ( head - myOut.remaining());
+				notifyAll();
+				while ( !myQueue.isEmpty() && !myQueue.peek().hasRemaining())
+					myQueue.poll();
+				if ( myGather[n - 1].hasRemaining())
+					return false;	// Socket buffer is full, wait for the next OP_WRITE
+			}
+			if ( !myStreamDone )
+			{
+				updateInterest();	// Nothing to send until the worker writes more
+				return false;
+			}
+			myStreaming = false;
+			return true;
+		}
+
+		/**
+		 * Selects the events the connection waits for: a request header
+		 * between requests, more request body while the worker has room
+		 * for it, and the socket taking more of a pending response.
+		 */
+		void updateInterest()
+		{
+			if ( !myKey.isValid())
+				return;
+			int ops = 0;
+			if ( !myBusy || ( myRequestBody != null && myRequestBody.wantsInput()))
+				ops |= SelectionKey.OP_READ;
+			if ( wantsWrite())
+				ops |= SelectionKey.OP_WRITE;
+			myKey.interestOps( ops );
+		}
+
+		private synchronized boolean wantsWrite()
+		{
+			if ( myStreaming )
+				return myOut.hasRemaining() || !myQueue.isEmpty() || myStreamDone;
+			return myOut != null && !myFilling;
+		}
+
+		void onWritable() throws IOException
+		{
+			if ( myStreaming )
+			{
+				if ( writeStreamed())
+				{
+					if ( myKeepAlive )
+						nextRequest();
+					else
+						close();
+				}
+				return;
+			}
+			while ( true )
+			{
+				// The next part of the body. Reading a stream may block,
+				// which would hold up every connection, so a worker does it
+				// and re-arms OP_WRITE; bytes in memory are just copied.
+				if ( myBody == null && myPending > 0 && !myZeroCopy )
+				{
+					if ( !( myData instanceof ByteArrayInputStream ) && fillOnWorker())
+						return;
+					readBody( myData );
+				}
+				if ( myOut.hasRemaining() || ( myBody != null && myBody.hasRemaining()))
+				{
+					long written;
+					if ( myBody == null )
+						written = myChannel.write( myOut );
+					else
+					{
+						myGather[0] = myOut;
+						myGather[1] = myBody;
+						written = myChannel.write( myGather, 0, 2 );
+					}
+					myMetrics.myBytesOut.add( written );
+					if ( myOut.hasRemaining() || ( myBody != null && myBody.hasRemaining()))
+						return;	// Socket buffer is full, wait for the next OP_WRITE
+				}
+				myBody = null;
+				if ( myData == null || myPending <= 0 )
+					break;
+				if ( myZeroCopy )
+				{
+					FileChannel file = ((FileInputStream)myData).getChannel();
+					long sent = transferFile( file, myPending, myChannel );
+					myMetrics.myBytesOut.add( sent );
+					myPending -= sent;
+					if ( myPending > 0 && file.position() < file.size())
+						return;	// Socket buffer is full, wait for the next OP_WRITE
+					if ( myPending > 0 )
+						myKeepAlive = false;	// Short body
+					break;
+				}
+			}
+			if ( myKeepAlive )
+				nextRequest();
+			else
+				close();
+		}
+
+		/**
+		 * Reads the next part of the body into myChunk, as myBody. A body
+		 * that ends short of its length, or fails, drops keep-alive: the
+		 * client can then only tell by EOF.
+		 */
+		private void readBody( InputStream data )
+		{
+			if ( myChunk == null )
+				myChunk = theBufferPool.acquire();
+			int read;
+			try
+			{
+				read = data.read( myChunk, 0, (int)Math.min( myChunk.length, myPending ));
+			}
+			catch ( IOException ioe )
+			{
+				read = -1;
+			}
+			if ( read <= 0 )
+			{
+				myKeepAlive = false;
+				myPending = 0;
+			}
+			else
+			{
+				myPending -= read;
+				myBody = ByteBuffer.wrap( myChunk, 0, read );
+			}
+		}
+
+		/**
+		 * Selector thread: has a worker read the next part of the body,
+		 * with no OP_WRITE until it is there. False if no worker can take
+		 * it right away; the selector then reads it rather than wait.
+		 */
+		private boolean fillOnWorker()
+		{
+			final InputStream data = myData;
+			synchronized ( this )
+			{
+				myFilling = true;
+			}
+			theNoWait.set( Boolean.TRUE );
+			try
+			{
+				mySessionExecutor.execute( new Runnable()
+				{
+					public void run()
+					{
+						readBody( data );
+						synchronized ( NioConnection.this )
+						{
+							myFilling = false;
+							if ( !myChannel.isOpen())
+							{
+								// Closed meanwhile, the chunk was left to us
+								theBufferPool.release( myChunk );
+								myChunk = null;
+								myBody = null;
+								return;
+							}
+						}
+						myNioEngine.ready( NioConnection.this );
+					}
+				});
+			}
+			catch ( RejectedExecutionException ree )
+			{
+				synchronized ( this )
+				{
+					myFilling = false;
+				}
+				return false;
+			}
+			finally
+			{
+				theNoWait.remove();
+			}
+			updateInterest();
+			return true;
+		}
+
+		/**
+		 * Gets ready for the next request on a persistent connection.
+		 */
+		private void nextRequest()
+		{
+			if ( myState != State.RUNNING )
+			{
+				// Paused or stopping since the response was started
+				close();
+				return;
+			}
+			closeData();
+			releaseBuffers();
+			myBusy = false;
+			myRequestBody = null;
+			myLastActive = System.currentTimeMillis();
+
+			// Bytes after the body belong to a pipelined request
+			myHead.flip();
+			myHead.position( myConsumed );
+			myHead.compact();
+			myConsumed = 0;
+			myHeaderStart = myLastActive;
+
+			updateInterest();
+			process();
+		}
+
+		/**
+		 * Closes the connection if it waited too long for a request, answers
+		 * 408 if a request header is taking too long, and makes serve() give
+		 * up on a request body that stopped arriving.
+		 */
+		void checkTimeouts( long now )
+		{
+			if ( !myKey.isValid())
+				return;
+			if ( myBusy )
+			{
+				if ( myRequestBody != null )
+					myRequestBody.checkTimeout( now, myBodyTimeout );
+			}
+			else if ( myHead.position() == 0 )
+			{
+				if ( now - myLastActive > myKeepAliveTimeout )
+				{
+					myMetrics.countLimit( Metrics.Limit.IDLE_TIMEOUT );
+					close();
+				}
+			}
+			else if ( now - myHeaderStart > myHeaderTimeout )
+			{
+				myMetrics.countLimit( Metrics.Limit.HEADER_TIMEOUT );
+				refuse( HTTP_REQUEST_TIMEOUT, "REQUEST TIMEOUT: The request header took too long." );
+			}
+		}
+
+		void close()
+		{
+			if ( myChannel.isOpen())
+			{
+				myMetrics.myActiveSessions.add( -1 );
+				myConnections.decrementAndGet();
+			}
+			myKey.cancel();
+			try { myChannel.close(); } catch ( IOException ioe ) {}
+			closeData();
+			if ( myRequestBody != null )
+				myRequestBody.fail();	// Unblocks a worker reading the body
+			synchronized ( this )
+			{
+				// Unblocks a streaming worker, its next write fails
+				myQueue.clear();
+				myQueued = 0;
+				notifyAll();
+				releaseBuffers();
+			}
+		}
+
+		private void closeData()
+		{
+			if ( myData != null )
+			{
+				try { myData.close(); } catch ( IOException ioe ) {}
+				myData = null;
+			}
+		}
+
+		/**
+		 * Gives the header and body buffers of the finished response back
+		 * to the pool, so idle connections hold none.
+		 */
+		private void releaseBuffers()
+		{
+			if ( myOut != null )
+				theBufferPool.release( myOut.array());
+			if ( !myFilling )
+			{
+				// Else a worker is reading into it, and releases it
+				theBufferPool.release( myChunk );
+				myBody = null;
+				myChunk = null;
+			}
+			myOut = null;
+			Arrays.fill( myGather, null );
+		}
+
+		private final SelectionKey myKey;
+		private final SocketChannel myChannel;
+		private final ByteBuffer myHead = ByteBuffer.allocate( myMaxHeaderBytes );
+		private final HTTPSession mySession = new HTTPSession( this );
+		private boolean myBusy;
+		private NioBodyStream myRequestBody;
+		private int myConsumed;
+		private ByteBuffer myOut;
+		private InputStream myData;
+		private long myPending;
+		private boolean myZeroCopy;	// The body is a file big enough for sendfile()
+		private boolean myKeepAlive;
+		private byte[] myChunk;
+		private ByteBuffer myBody;	// Part of the body read into myChunk, not yet written
+		private boolean myFilling;	// A worker is reading the next part into myChunk
+		private final ByteBuffer[] myGather = new ByteBuffer[16];
+		private long myLastActive = System.currentTimeMillis();
+		private long myHeaderStart;
+		private boolean myStreaming;
+		private boolean myStreamDone;
+		private final ArrayDeque<ByteBuffer> myQueue = new ArrayDeque<ByteBuffer>();
+		private int myQueued;
+	}
+
+	/**
+	 * The part of a request body the NIO engine has not read yet. The
+	 * selector thread reads it from the socket into a window of at most
+	 * BODY_WINDOW bytes as the worker consumes it, and stops reading
+	 * while the window is full, so a large upload is throttled by
+	 * serve() instead of filling the heap.
+	 */
+	private class NioBodyStream extends InputStream
+	{
+		private static final int BODY_WINDOW = 64 * 1024;
+
+		NioBodyStream( NioConnection c, long toRead )
+		{
+			myConnection = c;
+			myToRead = toRead;
+			myWindow = ByteBuffer.allocate( (int)Math.min( toRead, BODY_WINDOW ));
+		}
+
+		/**
+		 * Selector thread: true if the socket should be read for the body.
+		 */
+		synchronized boolean wantsInput()
+		{
+			return myToRead > 0 && myWindow.hasRemaining() && !myFailed && !myTimedOut;
+		}
+
+		/**
+		 * Selector thread: makes the worker's read fail with a
+		 * SocketTimeoutException once it has waited too long for data.
+		 */
+		synchronized void checkTimeout( long now, long timeout )
+		{
+			if ( myWaitingSince != 0 && now - myWaitingSince > timeout )
+			{
+				myTimedOut = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Selector thread: reads what fits into the window, but nothing
+		 * past the body. Returns false if the client closed the connection.
+		 */
+		synchronized boolean fill( SocketChannel channel ) throws IOException
+		{
+			int limit = myWindow.limit();
+			if ( myWindow.remaining() > myToRead )
+				myWindow.limit( myWindow.position() + (int)myToRead );
+			int read;
+			try
+			{
+				read = channel.read( myWindow );
+			}
+			finally
+			{
+				myWindow.limit( limit );
+			}
+			if ( read < 0 )
+				return false;
+			myToRead -= read;
+			if ( read > 0 && myWaitingSince != 0 )
+				myWaitingSince = System.currentTimeMillis();
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * The connection is gone; reads fail from now on.
+		 */
+		synchronized void fail()
+		{
+			myFailed = true;
+			notifyAll();
+		}
+
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			boolean wasFull;
+			int n;
+			synchronized ( this )
+			{
+				while ( myWindow.position() == 0 )
+				{
+					if ( myToRead == 0 )
+						return -1;
+					if ( myFailed )
+						throw new IOException( "Connection closed" );
+					if ( myTimedOut )
+						throw new SocketTimeoutException( "Request body timed out" );
+					if ( myWaitingSince == 0 )
+						myWaitingSince = System.currentTimeMillis();
+					try { wait(); }
+					catch ( InterruptedException ie ) { throw new java.io.InterruptedIOException(); }
+				}
+				myWaitingSince = 0;
+				wasFull = !myWindow.hasRemaining();
+				myWindow.flip();
+				n = Math.min( len, myWindow.remaining());
+				myWindow.get( b, off, n );
+				myWindow.compact();
+			}
+			if ( wasFull )
+				myNioEngine.ready( myConnection );	// Resume reading
+			return n;
+		}
+
+		public synchronized int available()
+		{
+			return myWindow.position();
+		}
+
+		private final NioConnection myConnection;
+		private final ByteBuffer myWindow;
+		private long myToRead;
+		private boolean myFailed;
+		private boolean myTimedOut;
+		private long myWaitingSince;	// When the worker began waiting for data, 0 while it is not
+	}
+
+	/**
+	 * URL-encodes everything between "/"-characters.
+	 * Encodes spaces as '%20' instead of '+'.
+	 */
+	@SuppressWarnings("deprecation")
+	private String encodeUri( String uri )
+	{
+		StringBuilder newUri = new StringBuilder( uri.length() + 16 );
+		StringTokenizer st = new StringTokenizer( uri, "/ ", true );
+		while ( st.hasMoreTokens())
+		{
+			String tok = st.nextToken();
+			if ( tok.equals( "/" ))
+				newUri.append( '/' );
+			else if ( tok.equals( " " ))
+				newUri.append( "%20" );
+			else
+			{
+				newUri.append( URLEncoder.encode( tok ));
+				// For Java 1.4 you'll want to use this instead:
+				// try { newUri += URLEncoder.encode( tok, "UTF-8" ); } catch ( java.io.UnsupportedEncodingException uee ) {}
+			}
+		}
+		return newUri.toString();
+	}
+
+	private int myTcpPort;
+	private InetSocketAddress myLocalAddr;
+	private volatile ServerSocket myServerSocket;
+	private volatile State myState = State.RUNNING;
+	private Thread myThread;
+	/** Blocking sessions running on the executor, for stop() to drain */
+	private final HashSet<HTTPSession> mySessions = new HashSet<HTTPSession>();
+	private Executor mySessionExecutor = newThreadPerSessionExecutor();
+	private NioEngine myNioEngine;
+	private volatile boolean myKeepAliveEnabled = true;
+	private volatile int myKeepAliveTimeout = 5000;
+	private volatile int myHeaderTimeout = 10000;
+	private volatile int myBodyTimeout = 10000;
+	private volatile int myMaxHeaderBytes = 8192;	// Apache's default header limit is 8KB
+	private volatile long myMaxBodyBytes = Long.MAX_VALUE;
+	private volatile int myMaxConnections = 512;
+	private final AtomicInteger myConnections = new AtomicInteger();
+	private volatile int myMaxKeepAliveRequests = 100;
+	private volatile long myMaxPartBytes = 32 * 1024 * 1024;
+	private volatile long myMaxMultipartBytes = 64 * 1024 * 1024;
+	private final Uploads myUploads = new Uploads(
+			new File( System.getProperty( "java.io.tmpdir" ), "nanohttpd-uploads" ), 256L * 1024 * 1024 );
+	private AndroidFile myRootDir;
+
+	// ==================================================
+	// File server code
+	// ==================================================
+
+	/**
+	 * Serves file from homeDir and its' subdirectories (only).
+	 * Uses only URI, ignores all headers and HTTP parameters.
+	 */
+	public Response serveFile( String uri, Properties header, AndroidFile homeDir,
+			boolean allowDirectoryListing )
+	{
+		return serveFile( uri, Headers.of( header ), homeDir, allowDirectoryListing );
+	}
+
+	/**
+	 * Serves file from homeDir and its' subdirectories (only),
+	 * honouring the conditional, range and encoding request headers.
+	 */
+	public Response serveFile( String uri, Headers header, AndroidFile homeDir,
+			boolean allowDirectoryListing )
+	{
+		return serveFile( uri, header, null, homeDir, allowDirectoryListing );
+	}
+
+	/**
+	 * Same, with the request parameters: "format=json" asks for a directory
+	 * listing as JSON, even if the directory has an index file.
+	 */
+	public Response serveFile( String uri, Headers header, Properties parms, AndroidFile homeDir,
+			boolean allowDirectoryListing )
+	{
+		Response res = null;
+
+		// Remove URL arguments
+		uri = uri.trim().replace( File.separatorChar, '/' );
+		if ( uri.indexOf( '?' ) >= 0 )
+			uri = uri.substring(0, uri.indexOf( '?' ));
+
+		// Only files that passed all the checks below are ever cached,
+		// so a hit needs no further file system or asset lookups. Only
+		// assets are, so files on disk are not looked up, nor counted
+		// as misses.
+		ResponseCache cache = homeDir.isAsset() ? myCache : null;
+		String cacheKey = homeDir.getPath() + uri;
+
+		// Precompressed siblings (foo.js.gz, foo.js.br) are served to clients
+		// that accept them. Which ones an asset has is only probed once.
+		String acceptEncoding = header.get( "accept-encoding" );
+		boolean negotiate = acceptEncoding != null && header.get( "range" ) == null;
+		String variants = myVariants.get( cacheKey );
+		String encoding = negotiate && variants != null ? selectEncoding( acceptEncoding, variants ) : null;
+
+		ResponseCache.Entry cached = cache != null ? cache.get( encoding != null ? cacheKey + '\0' + encoding : cacheKey ) : null;
+
+		// Make sure we won't die of an exception later
+		if ( cached == null && !homeDir.isDirectory())
+			res = new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT,
+					"INTERNAL ERRROR: serveFile(): given homeDir is not a directory." );
+
+		// Prohibit getting out of current directory
+		if ( res == null && ( uri.startsWith( ".." ) || uri.endsWith( ".." ) || uri.indexOf( "../" ) >= 0 ))
+			res = new Response( HTTP_FORBIDDEN, MIME_PLAINTEXT,
+					"FORBIDDEN: Won't serve ../ for security reasons." );
+
+		AndroidFile f = new AndroidFile( homeDir, uri );
+		String fileUri = uri;
+		if ( res == null && cached == null && !f.exists())
+			res = new Response( HTTP_NOTFOUND, MIME_PLAINTEXT,
+					"Error 404, file not found." );
+
+		// List the directory, if necessary
+		if ( res == null && cached == null && f.isDirectory())
+		{
+			// The JSON listing has no links to resolve, so needs no '/'
+			boolean json = allowDirectoryListing && parms != null && "json".equals( parms.getProperty( "format" ));
+
+			// Browsers get confused without '/' after the
+			// directory, send a redirect.
+			if ( !uri.endsWith( "/" ) && !json )
+			{
+				uri += "/";
+				res = new Response( HTTP_REDIRECT, MIME_HTML,
+						"<html><body>Redirected: <a href=\"" + uri + "\">" +
+								uri + "</a></body></html>");
+				res.addHeader( "Location", uri );
+			}
+
+			if ( res == null )
+			{
+				if ( json && f.canRead())
+					res = listDirectory( f, cacheKey, uri, true );
+				// First try index.html and index.htm 
+				else if ( new AndroidFile( f, "index.html" ).exists())
+					f = new AndroidFile( homeDir, fileUri = uri + "/index.html" );
+				else if ( new AndroidFile( f, "index.htm" ).exists())
+					f = new AndroidFile( homeDir, fileUri = uri + "/index.htm" );
+				// No index file, list the directory if it is readable
+				else if ( allowDirectoryListing && f.canRead() )
+					res = listDirectory( f, cacheKey, uri, false );
+				else
+				{
+					res = new Response( HTTP_FORBIDDEN, MIME_PLAINTEXT,
+							"FORBIDDEN: No directory listing." );
+				}
+			}
+		}
+
+		try
+		{
+			if ( res == null )
+			{
+				String mime = null;
+				String etag;
+				long fileLen;
+				long lastModified;
+				if ( cached != null )
+				{
+					mime = cached.mimeType;
+					etag = cached.etag;
+					fileLen = cached.body.length;
+					lastModified = cached.lastModified;
+				}
+				else
+				{
+					// An indexed asset has its MIME type and ETag ready
+					AndroidFile.AssetIndex.Entry indexed = f.getIndexEntry();
+					mime = indexed != null ? indexed.mimeType : mimeTypeFor( f.getCanonicalPath());
+
+					if ( variants == null )
+					{
+						variants = findEncodings( homeDir, fileUri );
+						if ( f.isAsset())
+							myVariants.put( cacheKey, variants );
+					}
+					if ( negotiate )
+						encoding = selectEncoding( acceptEncoding, variants );
+					if ( encoding != null )
+					{
+						// Same MIME type, but the bytes of the compressed sibling
+						f = new AndroidFile( homeDir, fileUri + ENCODING_SUFFIXES.get( encoding ));
+						cacheKey += '\0' + encoding;
+						indexed = f.getIndexEntry();
+					}
+
+					lastModified = f.lastModified();
+					if ( indexed != null )
+					{
+						fileLen = indexed.length;
+						etag = indexed.etag;
+					}
+					else
+					{
+						fileLen = f.length();
+						etag = entityTag( f.getAbsolutePath(), lastModified, fileLen );
+					}
+				}
+
+				// HTTP dates have whole seconds, compare at that resolution
+				long modifiedSecond = lastModified > 0 ? lastModified / 1000 : -1;
+
+				// If-None-Match takes precedence; If-Modified-Since
+				// only counts when there is none
+				boolean notModified;
+				String ifNoneMatch = header.get( "if-none-match" );
+				if ( ifNoneMatch != null )
+					notModified = etagMatches( ifNoneMatch, etag );
+				else
+				{
+					long since = HttpDate.parse( header.get( "if-modified-since" ));
+					notModified = since >= 0 && modifiedSecond >= 0 && modifiedSecond <= since / 1000;
+				}
+
+				// A range is only honoured if the client's copy, named
+				// by If-Range, is still the current one
+				long[] ranges = null;
+				String range = header.get( "range" );
+				if ( !notModified && range != null && ifRangeMatches( header.get( "if-range" ), etag, modifiedSecond ))
+					ranges = parseRanges( range, fileLen );
+
+				if ( notModified )
+					res = new Response( HTTP_NOTMODIFIED, null, (InputStream)null );
+				else if ( ranges != null && ranges.length == 0 )
+				{
+					res = new Response( HTTP_RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "" );
+					res.addHeader( "Content-Range", "bytes */" + fileLen );
+				}
+				else if ( ranges != null && ranges.length == 2 )
+				{
+					long startFrom = ranges[0];
+					long endAt = ranges[1];
+					res = new Response( HTTP_PARTIALCONTENT, mime, openAt( f, cached, startFrom ));
+					res.contentLength = endAt - startFrom + 1;
+					res.addHeader( "Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen );
+				}
+				else if ( ranges != null )
+				{
+					// Several ranges: one part per range, each with its own Content-Range
+					String boundary = "BYTERANGES" + Long.toHexString( Double.doubleToLongBits( Math.random()));
+					int n = ranges.length / 2;
+					byte[][] heads = new byte[n + 1][];
+					long length = 0;
+					for ( int i = 0; i < n; i++ )
+					{
+						heads[i] = ( "\r\n--" + boundary + "\r\nContent-Type: " + mime +
+								"\r\nContent-Range: bytes " + ranges[2*i] + "-" + ranges[2*i+1] + "/" + fileLen +
+								"\r\n\r\n" ).getBytes( "UTF-8" );
+						length += heads[i].length + ranges[2*i+1] - ranges[2*i] + 1;
+					}
+					heads[n] = ( "\r\n--" + boundary + "--\r\n" ).getBytes( "UTF-8" );
+					length += heads[n].length;
+					res = new Response( HTTP_PARTIALCONTENT, "multipart/byteranges; boundary=" + boundary,
+							new ByteRangesInputStream( f, cached, ranges, heads ));
+					res.contentLength = length;
+				}
+				else
+				{
+					InputStream data = null;
+					if ( cached != null )
+						data = new ByteArrayInputStream( cached.body );
+					else if ( cache != null && fileLen <= cache.getMaxEntryBytes())
+					{
+						// Assets never change, keep them. Files on disk are
+						// sent with sendfile() and need no heap copy.
+						byte[] body = readFully( f.getInputStream(), (int)fileLen );
+						if ( body != null )
+						{
+							cache.put( cacheKey, new ResponseCache.Entry( body, mime, etag, lastModified ));
+							data = new ByteArrayInputStream( body );
+						}
+					}
+					if ( data == null )
+						data = f.getInputStream();
+					//res = new Response( HTTP_OK, mime, new FileInputStream( f ));
+					res = new Response( HTTP_OK, mime, data );
+					res.contentLength = fileLen;
+					if ( encoding != null )
+						res.addHeader( "Content-Encoding", encoding );
+				}
+
+				res.addHeader( "ETag", etag );
+				if ( modifiedSecond >= 0 )
+					res.addHeader( "Last-Modified", HttpDate.format( lastModified ));
+				if ( variants != null && variants.length() > 0 )
+					res.addHeader( "Vary", "Accept-Encoding" );
+			}
+		}
+		catch( IOException ioe )
+		{
+			res = new Response( HTTP_FORBIDDEN, MIME_PLAINTEXT, "FORBIDDEN: Reading file failed." );
+		}
+
+		res.addHeader( "Accept-Ranges", "bytes"); // Announce that the file server accepts partial content requestes
+		return res;
+	}
+
+	/**
+	 * The listing of a directory, as HTML or JSON. A listing probes each
+	 * entry once. Listings of assets are kept until the app is updated,
+	 * see AndroidFile.setAssetsLastModified(); those of directories on
+	 * disk are made anew for every request, as rewriting a file changes
+	 * its size but not its directory's lastModified().
+	 */
+	private Response listDirectory( AndroidFile dir, String key, String uri, boolean json )
+	{
+		key += json ? "\0json" : "\0html";
+		boolean cacheable = dir.isAsset();
+		long stamp = dir.lastModified();
+		Listing listing = cacheable ? myListings.get( key ) : null;
+		if ( listing == null || listing.stamp != stamp )
+		{
+			String[] names = dir.list();
+			if ( names == null )
+				names = new String[0];
+			// -1 for a subdirectory; the APK has no empty directories,
+			// so an asset that is not one is a file
+			long[] sizes = new long[names.length];
+			for ( int i = 0; i < names.length; i++ )
+			{
+				AndroidFile entry = new AndroidFile( dir, names[i] );
+				sizes[i] = entry.isDirectory() ? -1 : entry.length();
+			}
+			String body = json ? listingJson( uri, names, sizes ) : listingHtml( uri, names, sizes );
+			try
+			{
+				listing = new Listing( stamp, body.getBytes( "UTF-8" ));
+			}
+			catch ( java.io.UnsupportedEncodingException uee )
+			{
+				throw new Error( uee );	// Every JVM has UTF-8
+			}
+			if ( cacheable )
+				myListings.put( key, listing );
+		}
+		return new Response( HTTP_OK, json ? "application/json" : MIME_HTML,
+				new ByteArrayInputStream( listing.body ), listing.body.length );
+	}
+
+	private String listingHtml( String uri, String[] names, long[] sizes )
+	{
+		StringBuilder msg = new StringBuilder( 64 + 96 * names.length );
+		msg.append( "<html><body><h1>Directory " ).append( uri ).append( "</h1><br/>" );
+
+		if ( uri.length() > 1 )
+		{
+			String u = uri.substring( 0, uri.length()-1 );
+			int slash = u.lastIndexOf( '/' );
+			if ( slash >= 0 && slash  < u.length())
+				msg.append( "<b><a href=\"" ).append( uri.substring(0, slash+1) ).append( "\">..</a></b><br/>" );
+		}
+
+		for ( int i=0; i<names.length; ++i )
+		{
+			long len = sizes[i];
+			String name = len < 0 ? names[i] + "/" : names[i];
+			if ( len < 0 )
+				msg.append( "<b>" );
+
+			msg.append( "<a href=\"" ).append( encodeUri( uri + name )).append( "\">" ).append( name ).append( "</a>" );
+
+			// Show file size
+			if ( len >= 0 )
+			{
+				msg.append( " &nbsp;<font size=2>(" );
+				if ( len < 1024 )
+					msg.append( len ).append( " bytes" );
+				else if ( len < 1024 * 1024 )
+					msg.append( len/1024 ).append( '.' ).append( len%1024/10%100 ).append( " KB" );
+				else
+					msg.append( len/(1024*1024) ).append( '.' ).append( len%(1024*1024)/10%100 ).append( " MB" );
+
+				msg.append( ")</font>" );
+			}
+			msg.append( "<br/>" );
+			if ( len < 0 ) msg.append( "</b>" );
+		}
+		msg.append( "</body></html>" );
+		return msg.toString();
+	}
+
+	/**
+	 * {"path":"/levels/","entries":[{"name":"pack1","type":"directory"},
+	 * {"name":"intro.json","type":"file","size":1234},...]}
+	 */
+	private static String listingJson( String uri, String[] names, long[] sizes )
+	{
+		StringBuilder sb = new StringBuilder( 32 + 48 * names.length );
+		sb.append( "{\"path\":" );
+		appendJsonString( sb, uri );
+		sb.append( ",\"entries\":[" );
+		for ( int i = 0; i < names.length; i++ )
+		{
+			if ( i > 0 )
+				sb.append( ',' );
+			sb.append( "{\"name\":" );
+			appendJsonString( sb, names[i] );
+			if ( sizes[i] < 0 )
+				sb.append( ",\"type\":\"directory\"}" );
+			else
+				sb.append( ",\"type\":\"file\",\"size\":" ).append( sizes[i] ).append( '}' );
+		}
+		return sb.append( "]}" ).toString();
+	}
+
+	private static void appendJsonString( StringBuilder sb, String s )
+	{
+		sb.append( '"' );
+		for ( int i = 0; i < s.length(); i++ )
+		{
+			char c = s.charAt( i );
+			if ( c == '"' || c == '\\' )
+				sb.append( '\\' ).append( c );
+			else if ( c < 0x20 )
+				sb.append( String.format( Locale.US, "\\u%04x", (int)c ));
+			else
+				sb.append( c );
+		}
+		sb.append( '"' );
+	}
+
+	/**
+	 * A generated directory listing and the lastModified() it was made for.
+	 */
+	private static class Listing
+	{
+		Listing( long stamp, byte[] body )
+		{
+			this.stamp = stamp;
+			this.body = body;
+		}
+
+		final long stamp;
+		final byte[] body;
+	}
+
+	/**
+	 * Most ranges served in one multipart/byteranges response; a Range
+	 * header asking for more is ignored and the whole file is sent.
+	 */
+	private static final int MAX_RANGES = 16;
+
+	/**
+	 * Parses the byte ranges of a Range header against a file of
+	 * fileLen bytes: "a-b", open "a-" and suffix "-n" specs. Returns
+	 * first and last byte offset of each satisfiable range, an empty
+	 * array if none is, or null if the header is to be ignored. Ranges
+	 * that overlap or touch are merged into the first of them, the rest
+	 * keep the order they were asked for in (RFC 7233, 4.1).
+	 */
+	static long[] parseRanges( String range, long fileLen )
+	{
+		range = range.trim();
+		if ( !range.regionMatches( true, 0, "bytes=", 0, 6 ))
+			return null;
+		StringTokenizer st = new StringTokenizer( range.substring( 6 ), "," );
+		long[] ranges = new long[2 * MAX_RANGES];
+		int count = 0;
+		while ( st.hasMoreTokens())
+		{
+			String spec = st.nextToken().trim();
+			int minus = spec.indexOf( '-' );
+			if ( minus < 0 )
+				return null;
+			long first, last;
+			try
+			{
+				if ( minus == 0 )
+				{
+					// The last n bytes
+					long n = Long.parseLong( spec.substring( 1 ).trim());
+					if ( n <= 0 )
+						continue;
+					first = Math.max( 0, fileLen - n );
+					last = fileLen - 1;
+				}
+				else
+				{
+					first = Long.parseLong( spec.substring( 0, minus ).trim());
+					String end = spec.substring( minus + 1 ).trim();
+					last = end.length() > 0 ? Long.parseLong( end ) : Long.MAX_VALUE;
+					if ( first < 0 || last < first )
+						return null;
+					last = Math.min( last, fileLen - 1 );
+				}
+			}
+			catch ( NumberFormatException nfe )
+			{
+				return null;
+			}
+			if ( first >= fileLen )
+				continue;
+			if ( count == MAX_RANGES )
+				return null;
+			ranges[2 * count] = first;
+			ranges[2 * count + 1] = last;
+			count++;
+		}
+		// A client must not get the same bytes in two parts
+		for ( int i = 0; i < count; i++ )
+			for ( int j = i + 1; j < count; j++ )
+				if ( ranges[2 * j] <= ranges[2 * i + 1] + 1 && ranges[2 * i] <= ranges[2 * j + 1] + 1 )
+				{
+					ranges[2 * i] = Math.min( ranges[2 * i], ranges[2 * j] );
+					ranges[2 * i + 1] = Math.max( ranges[2 * i + 1], ranges[2 * j + 1] );
+					count--;
+					System.arraycopy( ranges, 2 * j + 2, ranges, 2 * j, 2 * ( count - j ));
+					j = i;	// The grown range may reach ones already passed
+				}
+		return Arrays.copyOf( ranges, 2 * count );
+	}
+
+	/**
+	 * The strong entity tag of a file, quoted as the ETag header needs it
+	 * (RFC 7232, 2.3).
+	 */
+	static String entityTag( String path, long lastModified, long length )
+	{
+		return '"' + Integer.toHexString(( path + lastModified + "" + length ).hashCode()) + '"';
+	}
+
+	/**
+	 * The MIME type for a file name's extension, MIME_DEFAULT_BINARY if
+	 * it has none or an unknown one.
+	 */
+	static String mimeTypeFor( String path )
+	{
+		int dot = path.lastIndexOf( '.' );
+		String mime = dot > path.lastIndexOf( '/' ) ? (String)theMimeTypes.get( path.substring( dot + 1 ).toLowerCase()) : null;
+		return mime != null ? mime : MIME_DEFAULT_BINARY;
+	}
+
+	/**
+	 * True if an If-None-Match value, "*" or a list of entity tags,
+	 * names the given quoted one. Tags are compared weakly, as for GET.
+	 */
+	static boolean etagMatches( String ifNoneMatch, String etag )
+	{
+		StringTokenizer st = new StringTokenizer( ifNoneMatch, "," );
+		while ( st.hasMoreTokens())
+		{
+			String tag = st.nextToken().trim();
+			if ( tag.equals( "*" ))
+				return true;
+			if ( tag.startsWith( "W/" ))
+				tag = tag.substring( 2 );
+			if ( tag.equals( etag ))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * True if a Range may be served: there is no If-Range, or it names the
+	 * current entity tag or exactly the current Last-Modified second.
+	 */
+	private static boolean ifRangeMatches( String ifRange, String etag, long modifiedSecond )
+	{
+		if ( ifRange == null )
+			return true;
+		ifRange = ifRange.trim();
+		if ( ifRange.startsWith( "W/" ))
+			return false;	// Weak tags never match for ranges
+		long date = HttpDate.parse( ifRange );
+		if ( date >= 0 )
+			return modifiedSecond >= 0 && date / 1000 == modifiedSecond;
+		return ifRange.equals( etag );
+	}
+
+	/**
+	 * Opens the file, or the cached copy of it, positioned at offset.
+	 * Files on disk stay FileInputStreams, for sendfile(). Assets are read
+	 * at the offset rather than skipped to it, which for a compressed one
+	 * means inflating everything before it again for every range.
+	 */
+	private static InputStream openAt( AndroidFile f, ResponseCache.Entry cached, long offset ) throws IOException
+	{
+		if ( cached != null )
+			return new ByteArrayInputStream( cached.body, (int)offset, cached.body.length - (int)offset );
+		if ( !f.isAsset())
+		{
+			FileInputStream in = new FileInputStream( f );
+			in.getChannel().position( offset );
+			return in;
+		}
+		return new RandomAccessInputStream( f.openRandomAccess(), offset );
+	}
+
+	/**
+	 * Sequential reads over an AndroidFile.RandomAccess, from an offset on.
+	 */
+	private static class RandomAccessInputStream extends InputStream
+	{
+		RandomAccessInputStream( AndroidFile.RandomAccess file, long position )
+		{
+			myFile = file;
+			myPosition = position;
+		}
+
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if ( len == 0 )
+				return 0;
+			int n = myFile.read( ByteBuffer.wrap( b, off, len ), myPosition );
+			if ( n > 0 )
+				myPosition += n;
+			return n;
+		}
+
+		public long skip( long n ) throws IOException
+		{
+			n = Math.max( 0, Math.min( n, myFile.size() - myPosition ));
+			myPosition += n;
+			return n;
+		}
+
+		public int available()
+		{
+			return (int)Math.max( 0, Math.min( Integer.MAX_VALUE, myFile.size() - myPosition ));
+		}
+
+		public void close() throws IOException
+		{
+			if ( !myClosed )
+				myFile.close();
+			myClosed = true;
+		}
+
+		private final AndroidFile.RandomAccess myFile;
+		private long myPosition;
+		private boolean myClosed;
+	}
+
+	/**
+	 * The body of a multipart/byteranges response: before each range its
+	 * part header, after the last one the closing delimiter. Ranges are
+	 * opened one at a time, as they are reached.
+	 */
+	private static class ByteRangesInputStream extends InputStream
+	{
+		ByteRangesInputStream( AndroidFile f, ResponseCache.Entry cached, long[] ranges, byte[][] heads )
+		{
+			myFile = f;
+			myCached = cached;
+			myRanges = ranges;
+			myHeads = heads;
+		}
+
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if ( len == 0 )
+				return 0;
+			while ( true )
+			{
+				byte[] head = myHeads[myPart];
+				if ( myHeadPos < head.length )
+				{
+					int n = Math.min( len, head.length - myHeadPos );
+					System.arraycopy( head, myHeadPos, b, off, n );
+					myHeadPos += n;
+					return n;
+				}
+				if ( myPart == myHeads.length - 1 )
+					return -1;
+				if ( myIn == null )
+				{
+					myIn = openAt( myFile, myCached, myRanges[2 * myPart] );
+					myRemaining = myRanges[2 * myPart + 1] - myRanges[2 * myPart] + 1;
+				}
+				if ( myRemaining > 0 )
+				{
+					int n = myIn.read( b, off, (int)Math.min( len, myRemaining ));
+					if ( n < 0 )
+						return -1;	// The file shrank; the short body closes the connection
+					myRemaining -= n;
+					return n;
+				}
+				myIn.close();
+				myIn = null;
+				myPart++;
+				myHeadPos = 0;
+			}
+		}
+
+		public void close() throws IOException
+		{
+			if ( myIn != null )
+				myIn.close();
+			myIn = null;
+		}
+
+		private final AndroidFile myFile;
+		private final ResponseCache.Entry myCached;
+		private final long[] myRanges;
+		private final byte[][] myHeads;
+		private int myPart;
+		private int myHeadPos;
+		private InputStream myIn;
+		private long myRemaining;
+	}
+
+	/**
+	 * Content codings of precompressed siblings, in order of preference,
+	 * with the file name suffix of each.
+	 */
+	private static final LinkedHashMap<String, String> ENCODING_SUFFIXES = new LinkedHashMap<String, String>();
+	static
+	{
+		ENCODING_SUFFIXES.put( "br", ".br" );
+		ENCODING_SUFFIXES.put( "gzip", ".gz" );
+	}
+
+	/**
+	 * Returns the content codings that have a precompressed sibling of
+	 * the file at uri, comma separated, or "" if there are none.
+	 */
+	private static String findEncodings( AndroidFile homeDir, String uri )
+	{
+		StringBuilder found = new StringBuilder();
+		for ( Map.Entry<String, String> e : ENCODING_SUFFIXES.entrySet())
+			if ( new AndroidFile( homeDir, uri + e.getValue()).isFile())
+			{
+				if ( found.length() > 0 )
+					found.append( ',' );
+				found.append( e.getKey());
+			}
+		return found.toString();
+	}
+
+	/**
+	 * Picks the most preferred of the available codings that the
+	 * accept-encoding header allows, or null for identity.
+	 */
+	static String selectEncoding( String acceptEncoding, String available )
+	{
+		if ( available.length() == 0 )
+			return null;
+		String accept = acceptEncoding.toLowerCase();
+		for ( String coding : ENCODING_SUFFIXES.keySet())
+			if ( available.indexOf( coding ) >= 0 && acceptsCoding( accept, coding ))
+				return coding;
+		return null;
+	}
+
+	/**
+	 * True if the coding is listed in the lower-cased accept-encoding
+	 * value without "q=0".
+	 */
+	private static boolean acceptsCoding( String accept, String coding )
+	{
+		StringTokenizer st = new StringTokenizer( accept, "," );
+		while ( st.hasMoreTokens())
+		{
+			String token = st.nextToken().trim();
+			int semi = token.indexOf( ';' );
+			String name = ( semi >= 0 ? token.substring( 0, semi ) : token ).trim();
+			if ( !name.equals( coding ))
+				continue;
+			if ( semi < 0 )
+				return true;
+			String param = token.substring( semi + 1 ).trim();
+			if ( !param.startsWith( "q=" ))
+				return true;
+			try
+			{
+				return Float.parseFloat( param.substring( 2 ).trim()) > 0;
+			}
+			catch ( NumberFormatException nfe )
+			{
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * File name extensions worth precompressing.
+	 */
+	private static final String PRECOMPRESS_EXTENSIONS = " css htm html js json svg txt xml wasm ";
+
+	/**
+	 * Writes a .gz sibling next to every compressible file under dir
+	 * that is at least 1 KB and shrinks by at least 10%, replacing
+	 * stale ones. Meant for the game/ asset tree before packaging
+	 * (see main()), as the APK's assets are read-only at runtime.
+	 * Returns the number of files written.
+	 */
+	public static int precompress( File dir ) throws IOException
+	{
+		int written = 0;
+		File[] files = dir.listFiles();
+		if ( files == null )
+			return 0;
+		for ( File f : files )
+		{
+			if ( f.isDirectory())
+			{
+				written += precompress( f );
+				continue;
+			}
+			String name = f.getName();
+			int dot = name.lastIndexOf( '.' );
+			if ( dot < 0 || PRECOMPRESS_EXTENSIONS.indexOf( " " + name.substring( dot + 1 ).toLowerCase() + " " ) < 0 )
+				continue;
+			File gz = new File( dir, name + ".gz" );
+			if ( f.length() < 1024 || ( gz.exists() && gz.lastModified() >= f.lastModified()))
+				continue;
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			GZIPOutputStream out = new GZIPOutputStream( bytes )
+			{
+				{ def.setLevel( Deflater.BEST_COMPRESSION ); }
+			};
+			InputStream in = new FileInputStream( f );
+			try
+			{
+				byte[] buf = new byte[theBufferSize];
+				int read;
+				while (( read = in.read( buf )) > 0 )
+					out.write( buf, 0, read );
+				out.close();
+			}
+			finally
+			{
+				in.close();
+			}
+
+			if ( bytes.size() > f.length() * 9 / 10 )
+			{
+				gz.delete();
+				continue;
+			}
+			OutputStream fos = new FileOutputStream( gz );
+			try
+			{
+				bytes.writeTo( fos );
+			}
+			finally
+			{
+				fos.close();
+			}
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * Content codings found by findEncodings() per asset; assets never change.
+	 */
+	private final ConcurrentHashMap<String, String> myVariants = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Directory listings by directory and format, see listDirectory().
+	 */
+	private final ConcurrentHashMap<String, Listing> myListings = new ConcurrentHashMap<String, Listing>();
+
+	/**
+	 * Reads exactly len bytes, or returns null if the stream ends early.
+	 */
+	private static byte[] readFully( InputStream in, int len ) throws IOException
+	{
+		try
+		{
+			byte[] b = new byte[len];
+			int off = 0;
+			while ( off < len )
+			{
+				int read = in.read( b, off, len - off );
+				if ( read < 0 )
+					return null;
+				off += read;
+			}
+			return b;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Sets the cache serveFile() keeps asset responses in,
+	 * or disables caching with null.
+	 */
+	public void setResponseCache( ResponseCache cache )
+	{
+		myCache = cache;
+	}
+
+	/**
+	 * The response cache, e.g. for its hit/miss statistics; null if disabled.
+	 */
+	public ResponseCache getResponseCache()
+	{
+		return myCache;
+	}
+
+	/**
+	 * Drops cached responses; call from Activity.onLowMemory().
+	 */
+	public void onLowMemory()
+	{
+		ResponseCache cache = myCache;
+		if ( cache != null )
+		{
+			Log.i( LOGTAG, "Low memory, dropping " + cache );
+			cache.clear();
+		}
+		myListings.clear();
+	}
+
+	private volatile ResponseCache myCache = new ResponseCache( 8 * 1024 * 1024, 1024 * 1024 );
+
+	/**
+	 * Least recently used cache of complete file responses, keyed by URI.
+	 * The total size of the cached bodies stays below a byte budget,
+	 * and bodies larger than the per-entry limit are never cached.
+	 */
+	public static class ResponseCache
+	{
+		/**
+		 * A cached response: the body with its MIME type and validators.
+		 * The etag is sent as it is, so must be quoted, e.g. "\"3f2a\"".
+		 */
+		public static class Entry
+		{
+			public Entry( byte[] body, String mimeType, String etag )
+			{
+				this( body, mimeType, etag, 0 );
+			}
+
+			/**
+			 * An entry that also keeps the Last-Modified time, 0 if unknown.
+			 */
+			public Entry( byte[] body, String mimeType, String etag, long lastModified )
+			{
+				this.body = body;
+				this.mimeType = mimeType;
+				this.etag = etag;
+				this.lastModified = lastModified;
+			}
+
+			public final byte[] body;
+			public final String mimeType;
+			public final String etag;
+			public final long lastModified;
+		}
+
+		public ResponseCache( long maxBytes, int maxEntryBytes )
+		{
+			myMaxBytes = maxBytes;
+			myMaxEntryBytes = maxEntryBytes;
+		}
+
+		public synchronized Entry get( String key )
+		{
+			Entry e = myEntries.get( key );
+			if ( e != null )
+				myHits++;
+			else
+				myMisses++;
+			return e;
+		}
+
+		public synchronized void put( String key, Entry e )
+		{
+			if ( e.body.length > myMaxEntryBytes || e.body.length > myMaxBytes )
+				return;
+			Entry old = myEntries.put( key, e );
+			if ( old != null )
+				mySize -= old.body.length;
+			mySize += e.body.length;
+			trimToSize( myMaxBytes );
+		}
+
+		/**
+		 * Evicts least recently used entries until at most maxBytes are cached.
+		 */
+		public synchronized void trimToSize( long maxBytes )
+		{
+			Iterator<Map.Entry<String, Entry>> it = myEntries.entrySet().iterator();
+			while ( mySize > maxBytes && it.hasNext())
+			{
+				mySize -= it.next().getValue().body.length;
+				it.remove();
+				myEvictions++;
+			}
+		}
+
+		public synchronized void clear()
+		{
+			trimToSize( 0 );
+		}
+
+		public int getMaxEntryBytes() { return myMaxEntryBytes; }
+		public synchronized long getSize() { return mySize; }
+		public synchronized int getEntryCount() { return myEntries.size(); }
+		public synchronized long getHitCount() { return myHits; }
+		public synchronized long getMissCount() { return myMisses; }
+		public synchronized long getEvictionCount() { return myEvictions; }
+
+		public synchronized String toString()
+		{
+			return "ResponseCache[" + myEntries.size() + " entries, " + mySize + "/" + myMaxBytes + " bytes, "
+					+ myHits + " hits, " + myMisses + " misses, " + myEvictions + " evictions]";
+		}
+
+		private final long myMaxBytes;
+		private final int myMaxEntryBytes;
+		private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<String, Entry>( 64, 0.75f, true );
+		private long mySize;
+		private long myHits;
+		private long myMisses;
+		private long myEvictions;
+	}
+
+	/**
+	 * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE
+	 */
+	@SuppressWarnings("rawtypes")
+	private static Hashtable theMimeTypes = new Hashtable();
+	static
+	{
+		StringTokenizer st = new StringTokenizer(
+				"css		text/css "+
+						"htm		text/html "+
+						"html		text/html "+
+						"xml		text/xml "+
+						"txt		text/plain "+
+						"asc		text/plain "+
+						"gif		image/gif "+
+						"jpg		image/jpeg "+
+						"jpeg		image/jpeg "+
+						"png		image/png "+
+						"mp3		audio/mpeg "+
+						"m3u		audio/mpeg-url " +
+						"mp4		video/mp4 " +
+						"ogv		video/ogg " +
+						"flv		video/x-flv " +
+						"mov		video/quicktime " +
+						"swf		application/x-shockwave-flash " +
+						"js			application/javascript "+
+						"json		application/json "+
+						"svg		image/svg+xml "+
+						"wasm		application/wasm "+
+						"pdf		application/pdf "+
+						"doc		application/msword "+
+						"ogg		application/x-ogg "+
+						"zip		application/octet-stream "+
+						"exe		application/octet-stream "+
+				"class		application/octet-stream " );
+		while ( st.hasMoreTokens())
+			theMimeTypes.put( st.nextToken(), st.nextToken());
+	}
+
+	private static int theBufferSize = 16 * 1024;
+
+	/**
+	 * Buffers of theBufferSize that responses are written with.
+	 */
+	static final BufferPool theBufferPool = new BufferPool( theBufferSize, 64 );
+
+	/**
+	 * Recycles byte arrays of one size, so writing a response does not
+	 * allocate its own buffer. It keeps at most maxPooled; arrays of
+	 * another size, e.g. grown ones, are left to the garbage collector.<p>
+	 *
+	 * The arrays are on the heap: the blocking engine writes them to
+	 * socket streams, and channel writes of heap buffers already go
+	 * through a direct buffer the JDK caches per thread.
+	 */
+	static final class BufferPool
+	{
+		BufferPool( int bufferSize, int maxPooled )
+		{
+			myBufferSize = bufferSize;
+			myMaxPooled = maxPooled;
+		}
+
+		byte[] acquire()
+		{
+			byte[] b = myFree.poll();
+			if ( b == null )
+				return new byte[myBufferSize];
+			myPooled.decrementAndGet();
+			return b;
+		}
+
+		/**
+		 * Returns a buffer to the pool; b may be null. The caller must
+		 * not use it afterwards.
+		 */
+		void release( byte[] b )
+		{
+			if ( b == null || b.length != myBufferSize )
+				return;
+			if ( myPooled.incrementAndGet() > myMaxPooled )
+			{
+				myPooled.decrementAndGet();
+				return;
+			}
+			myFree.offer( b );
+		}
+
+		private final int myBufferSize;
+		private final int myMaxPooled;
+		private final ConcurrentLinkedQueue<byte[]> myFree = new ConcurrentLinkedQueue<byte[]>();
+		private final AtomicInteger myPooled = new AtomicInteger();
+	}
+	
+	/**
+	 * HTTP dates (RFC 7231, 7.1.1.1) without SimpleDateFormat, which is
+	 * neither thread-safe nor cheap. The current date, sent with every
+	 * response, is formatted at most once per second and published
+	 * through a volatile field, so readers never lock or allocate.
+	 */
+	public static class HttpDate
+	{
+		/**
+		 * The current date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+		 */
+		public static String now()
+		{
+			return current().text;
+		}
+
+		/**
+		 * The "Date: ...\r\n" line of a response header, as bytes.
+		 */
+		static byte[] nowHeaderLine()
+		{
+			return current().headerLine;
+		}
+
+		private static Cached current()
+		{
+			long second = System.currentTimeMillis() / 1000;
+			Cached c = theCurrent;
+			if ( c.second != second )
+			{
+				// Several threads may get here at a second's turn; they all
+				// compute the same value, so whichever write wins is fine.
+				c = new Cached( second );
+				theCurrent = c;
+			}
+			return c;
+		}
+
+		/**
+		 * Formats milliseconds since the epoch in the preferred
+		 * IMF-fixdate format, e.g. for Last-Modified or Expires.
+		 * Dates before the epoch are formatted as the epoch.
+		 */
+		public static String format( long millis )
+		{
+			long seconds = Math.max( 0, millis ) / 1000;
+			long days = seconds / 86400;
+			int secondOfDay = (int)( seconds % 86400 );
+
+			// Civil date from days since 1970-01-01 (Howard Hinnant's algorithm)
+			long z = days + 719468;
+			long era = z / 146097;
+			int doe = (int)( z - era * 146097 );
+			int yoe = ( doe - doe / 1460 + doe / 36524 - doe / 146096 ) / 365;
+			int doy = doe - ( 365 * yoe + yoe / 4 - yoe / 100 );
+			int mp = ( 5 * doy + 2 ) / 153;
+			int day = doy - ( 153 * mp + 2 ) / 5 + 1;
+			int month = mp < 10 ? mp + 3 : mp - 9;
+			long year = yoe + era * 400 + ( month <= 2 ? 1 : 0 );
+
+			char[] c = new char[29];
+			String weekday = WEEKDAYS[(int)(( days + 4 ) % 7 )];	// 1970-01-01 was a Thursday
+			weekday.getChars( 0, 3, c, 0 );
+			c[3] = ',';
+			c[4] = ' ';
+			twoDigits( c, 5, day );
+			c[7] = ' ';
+			MONTHS[month - 1].getChars( 0, 3, c, 8 );
+			c[11] = ' ';
+			twoDigits( c, 12, (int)( year / 100 ));
+			twoDigits( c, 14, (int)( year % 100 ));
+			c[16] = ' ';
+			twoDigits( c, 17, secondOfDay / 3600 );
+			c[19] = ':';
+			twoDigits( c, 20, secondOfDay / 60 % 60 );
+			c[22] = ':';
+			twoDigits( c, 23, secondOfDay % 60 );
+			" GMT".getChars( 0, 4, c, 25 );
+			return new String( c );
+		}
+
+		/**
+		 * Parses a date in any of the three formats HTTP allows:
+		 * "Sun, 06 Nov 1994 08:49:37 GMT", "Sunday, 06-Nov-94 08:49:37 GMT"
+		 * and "Sun Nov  6 08:49:37 1994". Returns milliseconds since the
+		 * epoch, or -1 if it is not a valid date.
+		 */
+		public static long parse( String date )
+		{
+			if ( date == null )
+				return -1;
+			int day = -1, month = -1, hour = -1, minute = -1, second = -1;
+			long year = -1;
+			StringTokenizer st = new StringTokenizer( date, " ,-" );
+			while ( st.hasMoreTokens())
+			{
+				String token = st.nextToken();
+				if ( token.indexOf( ':' ) >= 0 )
+				{
+					StringTokenizer time = new StringTokenizer( token, ":" );
+					if ( time.countTokens() != 3 )
+						return -1;
+					hour = number( time.nextToken());
+					minute = number( time.nextToken());
+					second = number( time.nextToken());
+				}
+				else if ( Character.isDigit( token.charAt( 0 )))
+				{
+					int n = number( token );
+					if ( n < 0 )
+						return -1;
+					if ( day < 0 && token.length() <= 2 )
+						day = n;
+					else if ( year < 0 )
+						year = token.length() > 2 ? n : n < 70 ? 2000 + n : 1900 + n;
+					else
+						return -1;
+				}
+				else if ( token.length() == 3 )
+				{
+					for ( int m = 0; m < 12; m++ )
+						if ( MONTHS[m].equalsIgnoreCase( token ))
+							month = m + 1;
+				}
+				// Weekday names and "GMT" carry no information
+			}
+			if ( day < 1 || day > 31 || month < 0 || year < 1970 || hour < 0 || hour > 23
+					|| minute < 0 || minute > 59 || second < 0 || second > 60 )
+				return -1;
+
+			// Days since 1970-01-01 from the civil date (Howard Hinnant's algorithm)
+			long y = month <= 2 ? year - 1 : year;
+			long era = y / 400;
+			int yoe = (int)( y - era * 400 );
+			int doy = ( 153 * ( month > 2 ? month - 3 : month + 9 ) + 2 ) / 5 + day - 1;
+			int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+			long days = era * 146097 + doe - 719468;
+			return (( days * 24 + hour ) * 60 + minute ) * 60000L + second * 1000L;
+		}
+
+		private static int number( String s )
+		{
+			int n = 0;
+			for ( int i = 0; i < s.length(); i++ )
+			{
+				char c = s.charAt( i );
+				if ( c < '0' || c > '9' || i >= 9 )
+					return -1;
+				n = n * 10 + ( c - '0' );
+			}
+			return s.length() > 0 ? n : -1;
+		}
+
+		private static void twoDigits( char[] c, int off, int n )
+		{
+			c[off] = (char)( '0' + n / 10 );
+			c[off + 1] = (char)( '0' + n % 10 );
+		}
+
+		/**
+		 * The date of one second, formatted.
+		 */
+		private static class Cached
+		{
+			Cached( long second )
+			{
+				this.second = second;
+				this.text = format( second * 1000 );
+				byte[] line = new byte[6 + text.length() + 2];
+				System.arraycopy( DATE_PREFIX, 0, line, 0, 6 );
+				for ( int i = 0; i < text.length(); i++ )
+					line[6 + i] = (byte)text.charAt( i );
+				line[line.length - 2] = '\r';
+				line[line.length - 1] = '\n';
+				this.headerLine = line;
+			}
+
+			final long second;
+			final String text;
+			final byte[] headerLine;
+		}
+
+		private static final byte[] DATE_PREFIX = { 'D', 'a', 't', 'e', ':', ' ' };
+		private static final String[] WEEKDAYS = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+		private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+			"Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+		private static volatile Cached theCurrent = new Cached( System.currentTimeMillis() / 1000 );
+	}
+
+	/**
+	 * Counters and latency histograms of the server, see getMetrics().
+	 * They are also served at the path given to setMetricsPath(), if any:
+	 * as JSON, or as Prometheus text with ?format=prometheus. In the JSON,
+	 * a percentile beyond the last bucket bound is given as that bound,
+	 * with p50Overflow or p99Overflow true.<p>
+	 *
+	 * Recording takes no locks. Each counter is a few cells on separate
+	 * cache lines, a thread adds to the one its id picks, and only
+	 * reading sums them up. (LongAdder does the same, but Android only
+	 * has it from API 24 on.)
+	 */
+	public static class Metrics
+	{
+		/**
+		 * A counter that threads add to without contending for one cell.
+		 */
+		public static class Counter
+		{
+			public void add( long n )
+			{
+				myCells.addAndGet( stripe() * PAD, n );
+			}
+
+			public void increment()
+			{
+				add( 1 );
+			}
+
+			public long get()
+			{
+				long sum = 0;
+				for ( int i = 0; i < STRIPES; i++ )
+					sum += myCells.get( i * PAD );
+				return sum;
+			}
+
+			private static final int PAD = 8;	// Longs per 64 byte cache line
+			private final AtomicLongArray myCells = new AtomicLongArray( STRIPES * PAD );
+		}
+
+		/**
+		 * Counts of durations in fixed buckets, see BOUNDS_MICROS, and their sum.
+		 */
+		public static class Histogram
+		{
+			public void record( long nanos )
+			{
+				long micros = nanos / 1000;
+				int bucket = 0;
+				while ( bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket] )
+					bucket++;
+				int row = stripe() * ROW;
+				myCells.incrementAndGet( row + bucket );
+				myCells.addAndGet( row + BUCKETS, micros );
+			}
+
+			/**
+			 * Number of durations in a bucket; the last one has those
+			 * longer than all bounds.
+			 */
+			public long getBucketCount( int bucket )
+			{
+				long sum = 0;
+				for ( int i = 0; i < STRIPES; i++ )
+					sum += myCells.get( i * ROW + bucket );
+				return sum;
+			}
+
+			public long getCount()
+			{
+				long count = 0;
+				for ( int b = 0; b < BUCKETS; b++ )
+					count += getBucketCount( b );
+				return count;
+			}
+
+			public long getSumMicros()
+			{
+				return getBucketCount( BUCKETS );
+			}
+
+			/**
+			 * The upper bound of the bucket the q-quantile (0 to 1) falls in, in
+			 * microseconds; Long.MAX_VALUE if that is the last one, -1 if empty.
+			 */
+			public long getPercentileMicros( double q )
+			{
+				long[] counts = new long[BUCKETS];
+				long total = 0;
+				for ( int b = 0; b < BUCKETS; b++ )
+					total += counts[b] = getBucketCount( b );
+				if ( total == 0 )
+					return -1;
+				long rank = (long)Math.ceil( q * total );
+				long seen = 0;
+				for ( int b = 0; b < BOUNDS_MICROS.length; b++ )
+				{
+					seen += counts[b];
+					if ( seen >= rank )
+						return BOUNDS_MICROS[b];
+				}
+				return Long.MAX_VALUE;
+			}
+
+			// Per stripe: the bucket counts and the sum, padded to whole cache lines
+			private static final int ROW = ( BUCKETS + 1 + 7 ) & ~7;
+			private final AtomicLongArray myCells = new AtomicLongArray( STRIPES * ROW );
+		}
+
+		/**
+		 * Upper bounds of the histogram buckets, in microseconds.
+		 */
+		public static final long[] BOUNDS_MICROS = {
+			50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+			100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000
+		};
+
+		static final int BUCKETS = BOUNDS_MICROS.length + 1;
 
 		/**
-		 * Find byte index separating header from body.
-		 * It must be the last byte of the first two sequential new lines.
-		 **/
-		private int findHeaderEnd(final byte[] buf, int rlen)
+		 * The timeouts and limits of setTimeouts(), setLimits() and
+		 * setKeepAlive() that can end a connection or turn a request away.
+		 */
+		public enum Limit
 		{
-			int splitbyte = 0;
-			while (splitbyte + 3 < rlen)
+			/** A connection sent nothing for the keep-alive timeout; closed. */
+			IDLE_TIMEOUT,
+			/** A request header was not complete within the header timeout; 408. */
+			HEADER_TIMEOUT,
+			/** No request body arrived for the body timeout while serve() waited for it. */
+			BODY_TIMEOUT,
+			/** A request header did not fit the maximum header size; 431. */
+			HEADER_TOO_LARGE,
+			/** A request declared a body longer than the maximum; 413. */
+			BODY_TOO_LARGE,
+			/** A connection arrived with the maximum already open; 503. */
+			CONNECTIONS,
+			/** A persistent connection reached its maximum number of requests; closed after it. */
+			REQUESTS_PER_CONNECTION;
+
+			String metricName()
 			{
-				if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-					return splitbyte + 4;
-				splitbyte++;
+				return name().toLowerCase( Locale.US );
 			}
-			return 0;
 		}
 
 		/**
-		 * Find the byte positions where multipart boundaries start.
-		 **/
-		@SuppressWarnings("rawtypes")
-		public int[] getBoundaryPositions(byte[] b, byte[] boundary)
+		 * Responses sent, of all statuses.
+		 */
+		public long getRequestCount()
 		{
-			int matchcount = 0;
-			int matchbyte = -1;
-			Vector matchbytes = new Vector();
-			for (int i=0; i<b.length; i++)
-			{
-				if (b[i] == boundary[matchcount])
-				{
-					if (matchcount == 0)
-						matchbyte = i;
-					matchcount++;
-					if (matchcount==boundary.length)
-					{
-						matchbytes.addElement(Integer.valueOf(matchbyte));
-						matchcount = 0;
-						matchbyte = -1;
-					}
-				}
-				else
-				{
-					i -= matchcount;
-					matchcount = 0;
-					matchbyte = -1;
-				}
-			}
-			int[] ret = new int[matchbytes.size()];
-			for (int i=0; i < ret.length; i++)
-			{
-				ret[i] = ((Integer)matchbytes.elementAt(i)).intValue();
-			}
-			return ret;
+			long sum = 0;
+			for ( Counter c : myStatuses.values())
+				sum += c.get();
+			return sum;
 		}
 
 		/**
-		 * Retrieves the content of a sent file and saves it
-		 * to a temporary file.
-		 * The full path to the saved file is returned.
-		 **/
-		private String saveTmpFile(byte[] b, int offset, int len)
+		 * Responses sent with the given status code, e.g. 404.
+		 */
+		public long getRequestCount( int status )
 		{
-			String path = "";
-			if (len > 0)
-			{
-				String tmpdir = System.getProperty("java.io.tmpdir");
-				try {
-					File temp = File.createTempFile("NanoHTTPD", "", new File(tmpdir));
-					OutputStream fstream = new FileOutputStream(temp);
-					fstream.write(b, offset, len);
-					fstream.close();
-					path = temp.getAbsolutePath();
-				} catch (Exception e) { // Catch exception if any
-					Log.e(LOGTAG, "Error: " + e.getMessage());
-				}
-			}
-			return path;
+			long sum = 0;
+			for ( Map.Entry<String, Counter> e : myStatuses.entrySet())
+				if ( statusCode( e.getKey()) == status )
+					sum += e.getValue().get();
+			return sum;
 		}
 
-
 		/**
-		 * It returns the offset separating multipart file headers
-		 * from the file's data.
-		 **/
-		private int stripMultipartHeaders(byte[] b, int offset)
+		 * Bytes written to clients, headers included.
+		 */
+		public long getBytesOut()
 		{
-			int i = 0;
-			for (i=offset; i<b.length; i++)
-			{
-				if (b[i] == '\r' && b[++i] == '\n' && b[++i] == '\r' && b[++i] == '\n')
-					break;
-			}
-			return i+1;
+			return myBytesOut.get();
 		}
 
 		/**
-		 * Decodes the percent encoding scheme. <br/>
-		 * For example: "an+example%20string" -> "an example string"
+		 * Connections currently open.
 		 */
-		private String decodePercent( String str ) throws InterruptedException
+		public long getActiveSessions()
 		{
-			try
-			{
-				StringBuffer sb = new StringBuffer();
-				for( int i=0; i<str.length(); i++ )
-				{
-					char c = str.charAt( i );
-					switch ( c )
-					{
-					case '+':
-						sb.append( ' ' );
-						break;
-					case '%':
-						sb.append((char)Integer.parseInt( str.substring(i+1,i+3), 16 ));
-						i += 2;
-						break;
-					default:
-						sb.append( c );
-						break;
-					}
-				}
-				return sb.toString();
-			}
-			catch( Exception e )
-			{
-				sendError( HTTP_BADREQUEST, "BAD REQUEST: Bad percent-encoding." );
-				return null;
-			}
+			return myActiveSessions.get();
 		}
 
 		/**
-		 * Decodes parameters in percent-encoded URI-format
-		 * ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
-		 * adds them to given Properties. NOTE: this doesn't support multiple
-		 * identical keys due to the simplicity of Properties -- if you need multiples,
-		 * you might want to replace the Properties with a Hashtable of Vectors or such.
+		 * How often the given timeout or limit triggered.
 		 */
-		private void decodeParms( String parms, Properties p )
-				throws InterruptedException
-				{
-			if ( parms == null )
-				return;
+		public long getLimitCount( Limit limit )
+		{
+			return myLimits[limit.ordinal()].get();
+		}
 
-			StringTokenizer st = new StringTokenizer( parms, "&" );
-			while ( st.hasMoreTokens())
-			{
-				String e = st.nextToken();
-				int sep = e.indexOf( '=' );
-				if ( sep >= 0 )
-					p.put( decodePercent( e.substring( 0, sep )).trim(),
-							decodePercent( e.substring( sep+1 )));
-			}
-				}
+		/**
+		 * From the end of a request's header to its response header being
+		 * handed to the socket (the NIO engine may send it a little later).
+		 */
+		public Histogram getTimeToFirstByte()
+		{
+			return myTimeToFirstByte;
+		}
 
 		/**
-		 * Returns an error message as a HTTP response and
-		 * throws InterruptedException to stop further request processing.
+		 * Time taken to decode request lines and headers.
 		 */
-		private void sendError( String status, String msg ) throws InterruptedException
+		public Histogram getParseTime()
 		{
-			sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()));
-			throw new InterruptedException();
+			return myParseTime;
 		}
 
 		/**
-		 * Sends given response to the socket.
+		 * The metrics as a JSON object; cache may be null.
 		 */
-		@SuppressWarnings("rawtypes")
-		private void sendResponse( String status, String mime, Properties header, InputStream data )
+		public String toJson( ResponseCache cache )
 		{
-			try
+			StringBuilder sb = new StringBuilder( 1024 );
+			sb.append( "{\"requests\":" ).append( getRequestCount());
+			sb.append( ",\"status\":{" );
+			boolean first = true;
+			for ( Map.Entry<Integer, Long> e : statusCounts().entrySet())
 			{
-				if ( status == null )
-					throw new Error( "sendResponse(): Status can't be null." );
-
-				OutputStream out = mySocket.getOutputStream();
-				PrintWriter pw = new PrintWriter( out );
-				pw.print("HTTP/1.0 " + status + " \r\n");
-
-				if ( mime != null )
-					pw.print("Content-Type: " + mime + "\r\n");
-
-				if ( header == null || header.getProperty( "Date" ) == null )
-					pw.print( "Date: " + gmtFrmt.format( new Date()) + "\r\n");
-
-				if ( header != null )
-				{
-					Enumeration e = header.keys();
-					while ( e.hasMoreElements())
-					{
-						String key = (String)e.nextElement();
-						String value = header.getProperty( key );
-						pw.print( key + ": " + value + "\r\n");
-					}
-				}
-
-				pw.print("\r\n");
-				pw.flush();
-
-				if ( data != null )
-				{
-					int pending = data.available();	// This is to support partial sends, see serveFile()
-					byte[] buff = new byte[theBufferSize];
-					while (pending>0)
-					{
-						int read = data.read( buff, 0, ( (pending>theBufferSize) ?  theBufferSize : pending ));
-						if (read <= 0)	break;
-						out.write( buff, 0, read );
-						pending -= read;
-					}
-				}
-				out.flush();
-				out.close();
-				if ( data != null )
-					data.close();
+				sb.append( first ? "" : "," ).append( '"' ).append( e.getKey()).append( "\":" ).append( e.getValue());
+				first = false;
 			}
-			catch( IOException ioe )
+			sb.append( "},\"bytesOut\":" ).append( getBytesOut());
+			sb.append( ",\"activeSessions\":" ).append( getActiveSessions());
+			sb.append( ",\"limits\":{" );
+			for ( Limit limit : Limit.values())
+				sb.append( limit.ordinal() > 0 ? "," : "" ).append( '"' ).append( limit.metricName())
+					.append( "\":" ).append( getLimitCount( limit ));
+			sb.append( '}' );
+			sb.append( ",\"timeToFirstByte\":" );
+			appendJson( sb, myTimeToFirstByte );
+			sb.append( ",\"parseTime\":" );
+			appendJson( sb, myParseTime );
+			if ( cache != null )
 			{
-				// Couldn't write? No can do.
-				try { mySocket.close(); } catch( Throwable t ) {}
+				long hits = cache.getHitCount();
+				long misses = cache.getMissCount();
+				sb.append( ",\"cache\":{\"hits\":" ).append( hits ).append( ",\"misses\":" ).append( misses );
+				sb.append( ",\"hitRatio\":" ).append( hits + misses > 0 ? (double)hits / ( hits + misses ) : 0 );
+				sb.append( ",\"entries\":" ).append( cache.getEntryCount()).append( ",\"bytes\":" ).append( cache.getSize()).append( '}' );
 			}
+			return sb.append( '}' ).toString();
 		}
 
-		private Socket mySocket;
-	}
-
-	/**
-	 * URL-encodes everything between "/"-characters.
-	 * Encodes spaces as '%20' instead of '+'.
-	 */
-	@SuppressWarnings("deprecation")
-	private String encodeUri( String uri )
-	{
-		String newUri = "";
-		StringTokenizer st = new StringTokenizer( uri, "/ ", true );
-		while ( st.hasMoreTokens())
+		private static void appendJson( StringBuilder sb, Histogram h )
 		{
-			String tok = st.nextToken();
-			if ( tok.equals( "/" ))
-				newUri += "/";
-			else if ( tok.equals( " " ))
-				newUri += "%20";
-			else
+			sb.append( "{\"count\":" ).append( h.getCount());
+			sb.append( ",\"sumMicros\":" ).append( h.getSumMicros());
+			appendPercentile( sb, "p50", h, 0.5 );
+			appendPercentile( sb, "p99", h, 0.99 );
+			sb.append( ",\"buckets\":{" );
+			for ( int b = 0; b < BUCKETS; b++ )
 			{
-				newUri += URLEncoder.encode( tok );
-				// For Java 1.4 you'll want to use this instead:
-				// try { newUri += URLEncoder.encode( tok, "UTF-8" ); } catch ( java.io.UnsupportedEncodingException uee ) {}
+				sb.append( b > 0 ? "," : "" ).append( '"' );
+				sb.append( b < BOUNDS_MICROS.length ? String.valueOf( BOUNDS_MICROS[b] ) : "+Inf" );
+				sb.append( "\":" ).append( h.getBucketCount( b ));
 			}
+			sb.append( "}}" );
 		}
-		return newUri;
-	}
-
-	private int myTcpPort;
-	private final ServerSocket myServerSocket;
-	private Thread myThread;
-	private AndroidFile myRootDir;
-
-	// ==================================================
-	// File server code
-	// ==================================================
-
-	/**
-	 * Serves file from homeDir and its' subdirectories (only).
-	 * Uses only URI, ignores all headers and HTTP parameters.
-	 */
-	public Response serveFile( String uri, Properties header, AndroidFile homeDir,
-			boolean allowDirectoryListing )
-	{
-		Response res = null;
-		
-		// Make sure we won't die of an exception later
-		if ( !homeDir.isDirectory())
-			res = new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT,
-					"INTERNAL ERRROR: serveFile(): given homeDir is not a directory." );
 
-		if ( res == null )
+		private static void appendPercentile( StringBuilder sb, String name, Histogram h, double q )
 		{
-			// Remove URL arguments
-			uri = uri.trim().replace( File.separatorChar, '/' );
-			if ( uri.indexOf( '?' ) >= 0 )
-				uri = uri.substring(0, uri.indexOf( '?' ));
-
-			// Prohibit getting out of current directory
-			if ( uri.startsWith( ".." ) || uri.endsWith( ".." ) || uri.indexOf( "../" ) >= 0 )
-				res = new Response( HTTP_FORBIDDEN, MIME_PLAINTEXT,
-						"FORBIDDEN: Won't serve ../ for security reasons." );
+			long p = h.getPercentileMicros( q );
+			boolean overflow = p == Long.MAX_VALUE;
+			sb.append( ",\"" ).append( name ).append( "Micros\":" ).append( overflow ? BOUNDS_MICROS[BOUNDS_MICROS.length - 1] : p );
+			sb.append( ",\"" ).append( name ).append( "Overflow\":" ).append( overflow );
 		}
 
-		AndroidFile f = new AndroidFile( homeDir, uri );
-		if ( res == null && !f.exists())
-			res = new Response( HTTP_NOTFOUND, MIME_PLAINTEXT,
-					"Error 404, file not found." );
-
-		// List the directory, if necessary
-		if ( res == null && f.isDirectory())
+		/**
+		 * The metrics in the Prometheus text exposition format; cache may be null.
+		 */
+		public String toPrometheus( ResponseCache cache )
 		{
-			// Browsers get confused without '/' after the
-			// directory, send a redirect.
-			if ( !uri.endsWith( "/" ))
+			StringBuilder sb = new StringBuilder( 2048 );
+			sb.append( "# TYPE nanohttpd_requests_total counter\n" );
+			for ( Map.Entry<Integer, Long> e : statusCounts().entrySet())
+				sb.append( "nanohttpd_requests_total{status=\"" ).append( e.getKey()).append( "\"} " ).append( e.getValue()).append( '\n' );
+			sb.append( "# TYPE nanohttpd_bytes_out_total counter\n" );
+			sb.append( "nanohttpd_bytes_out_total " ).append( getBytesOut()).append( '\n' );
+			sb.append( "# TYPE nanohttpd_active_sessions gauge\n" );
+			sb.append( "nanohttpd_active_sessions " ).append( getActiveSessions()).append( '\n' );
+			sb.append( "# TYPE nanohttpd_limit_hits_total counter\n" );
+			for ( Limit limit : Limit.values())
+				sb.append( "nanohttpd_limit_hits_total{limit=\"" ).append( limit.metricName()).append( "\"} " )
+					.append( getLimitCount( limit )).append( '\n' );
+			appendPrometheus( sb, "nanohttpd_time_to_first_byte_seconds", myTimeToFirstByte );
+			appendPrometheus( sb, "nanohttpd_parse_seconds", myParseTime );
+			if ( cache != null )
 			{
-				uri += "/";
-				res = new Response( HTTP_REDIRECT, MIME_HTML,
-						"<html><body>Redirected: <a href=\"" + uri + "\">" +
-								uri + "</a></body></html>");
-				res.addHeader( "Location", uri );
+				sb.append( "# TYPE nanohttpd_cache_hits_total counter\n" );
+				sb.append( "nanohttpd_cache_hits_total " ).append( cache.getHitCount()).append( '\n' );
+				sb.append( "# TYPE nanohttpd_cache_misses_total counter\n" );
+				sb.append( "nanohttpd_cache_misses_total " ).append( cache.getMissCount()).append( '\n' );
 			}
+			return sb.toString();
+		}
 
-			if ( res == null )
+		private static void appendPrometheus( StringBuilder sb, String name, Histogram h )
+		{
+			sb.append( "# TYPE " ).append( name ).append( " histogram\n" );
+			long cumulative = 0;
+			for ( int b = 0; b < BUCKETS; b++ )
 			{
-				// First try index.html and index.htm 
-				if ( new AndroidFile( f, "index.html" ).exists())
-					f = new AndroidFile( homeDir, uri + "/index.html" );
-				else if ( new AndroidFile( f, "index.htm" ).exists())
-					f = new AndroidFile( homeDir, uri + "/index.htm" );
-				// No index file, list the directory if it is readable
-				else if ( allowDirectoryListing && f.canRead() )
-				{
-					String[] files = f.list();
-					String msg = "<html><body><h1>Directory " + uri + "</h1><br/>";
-
-					if ( uri.length() > 1 )
-					{
-						String u = uri.substring( 0, uri.length()-1 );
-						int slash = u.lastIndexOf( '/' );
-						if ( slash >= 0 && slash  < u.length())
-							msg += "<b><a href=\"" + uri.substring(0, slash+1) + "\">..</a></b><br/>";
-					}
-
-					if (files!=null)
-					{
-						for ( int i=0; i<files.length; ++i )
-						{
-							AndroidFile curFile = new AndroidFile( f, files[i] );
-							boolean dir = curFile.isDirectory();
-							if ( dir )
-							{
-								msg += "<b>";
-								files[i] += "/";
-							}
+				cumulative += h.getBucketCount( b );
+				sb.append( name ).append( "_bucket{le=\"" );
+				sb.append( b < BOUNDS_MICROS.length ? seconds( BOUNDS_MICROS[b] ) : "+Inf" );
+				sb.append( "\"} " ).append( cumulative ).append( '\n' );
+			}
+			sb.append( name ).append( "_sum " ).append( seconds( h.getSumMicros())).append( '\n' );
+			sb.append( name ).append( "_count " ).append( cumulative ).append( '\n' );
+		}
 
-							msg += "<a href=\"" + encodeUri( uri + files[i] ) + "\">" +
-									files[i] + "</a>";
+		private static String seconds( long micros )
+		{
+			return java.math.BigDecimal.valueOf( micros, 6 ).stripTrailingZeros().toPlainString();
+		}
 
-							// Show file size
-							if ( curFile.isFile())
-							{
-								long len = curFile.length();
-								msg += " &nbsp;<font size=2>(";
-								if ( len < 1024 )
-									msg += len + " bytes";
-								else if ( len < 1024 * 1024 )
-									msg += len/1024 + "." + (len%1024/10%100) + " KB";
-								else
-									msg += len/(1024*1024) + "." + len%(1024*1024)/10%100 + " MB";
-
-								msg += ")</font>";
-							}
-							msg += "<br/>";
-							if ( dir ) msg += "</b>";
-						}
-					}
-					msg += "</body></html>";
-					res = new Response( HTTP_OK, MIME_HTML, msg );
-				}
-				else
-				{
-					res = new Response( HTTP_FORBIDDEN, MIME_PLAINTEXT,
-							"FORBIDDEN: No directory listing." );
-				}
+		/**
+		 * Response counts by status code, in order.
+		 */
+		private java.util.TreeMap<Integer, Long> statusCounts()
+		{
+			java.util.TreeMap<Integer, Long> counts = new java.util.TreeMap<Integer, Long>();
+			for ( Map.Entry<String, Counter> e : myStatuses.entrySet())
+			{
+				Integer code = Integer.valueOf( statusCode( e.getKey()));
+				Long before = counts.get( code );
+				counts.put( code, Long.valueOf(( before != null ? before.longValue() : 0 ) + e.getValue().get()));
 			}
+			return counts;
 		}
 
-		try
+		/**
+		 * Counts a response by its status line text, e.g. HTTP_OK.
+		 */
+		void countResponse( String status )
 		{
-			if ( res == null )
+			Counter c = myStatuses.get( status );
+			if ( c == null )
 			{
-				// Get MIME type from file name extension, if possible
-				String mime = null;
-				int dot = f.getCanonicalPath().lastIndexOf( '.' );
-				if ( dot >= 0 )
-					mime = (String)theMimeTypes.get( f.getCanonicalPath().substring( dot + 1 ).toLowerCase());
-				if ( mime == null )
-					mime = MIME_DEFAULT_BINARY;
-
-				// Calculate etag
-				String etag = Integer.toHexString((f.getAbsolutePath() + f.lastModified() + "" + f.length()).hashCode());
-				
-				//System.out.println( String.format("mime: %s, etag: %s", mime, etag));
-
-				// Support (simple) skipping:
-				long startFrom = 0;
-				long endAt = -1;
-				String range = header.getProperty( "range" );
-				if ( range != null )
-				{
-					if ( range.startsWith( "bytes=" ))
-					{
-						range = range.substring( "bytes=".length());
-						int minus = range.indexOf( '-' );
-						try {
-							if ( minus > 0 )
-							{
-								startFrom = Long.parseLong( range.substring( 0, minus ));
-								endAt = Long.parseLong( range.substring( minus+1 ));
-							}
-						}
-						catch ( NumberFormatException nfe ) {}
-					}
-				}
-
-				// Change return code and add Content-Range header when skipping is requested
-				long fileLen = f.length();
-				//System.out.println( String.format("file length: %d", fileLen));
-				
-				if (range != null && startFrom >= 0)
-				{
-					if ( startFrom >= fileLen)
-					{
-						res = new Response( HTTP_RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "" );
-						res.addHeader( "Content-Range", "bytes 0-0/" + fileLen);
-						res.addHeader( "ETag", etag);
-					}
-					else
-					{
-						if ( endAt < 0 )
-							endAt = fileLen-1;
-						long newLen = endAt - startFrom + 1;
-						if ( newLen < 0 ) newLen = 0;
-
-						final long dataLen = newLen;
-						//InputStream fis = new FileInputStream( f ) {
-						//	public int available() throws IOException { return (int)dataLen; }
-						//};
-						InputStream fis = f.getInputStream();
-						fis.skip( startFrom );
-
-						res = new Response( HTTP_PARTIALCONTENT, mime, fis );
-						res.addHeader( "Content-Length", "" + dataLen);
-						res.addHeader( "Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-						res.addHeader( "ETag", etag);
-					}
-				}
-				else
-				{
-					if (etag.equals(header.getProperty("if-none-match")))
-						res = new Response( HTTP_NOTMODIFIED, mime, "");
-					else
-					{
-						//res = new Response( HTTP_OK, mime, new FileInputStream( f ));
-						res = new Response( HTTP_OK, mime, f.getInputStream());
-						res.addHeader( "Content-Length", "" + fileLen);
-						res.addHeader( "ETag", etag);
-					}
-				}
+				Counter added = new Counter();
+				c = myStatuses.putIfAbsent( status, added );
+				if ( c == null )
+					c = added;
 			}
+			c.increment();
 		}
-		catch( IOException ioe )
+
+		void countLimit( Limit limit )
 		{
-			res = new Response( HTTP_FORBIDDEN, MIME_PLAINTEXT, "FORBIDDEN: Reading file failed." );
+			myLimits[limit.ordinal()].increment();
 		}
 
-		res.addHeader( "Accept-Ranges", "bytes"); // Announce that the file server accepts partial content requestes
-		return res;
-	}
+		private static int statusCode( String status )
+		{
+			int end = 0;
+			while ( end < status.length() && status.charAt( end ) >= '0' && status.charAt( end ) <= '9' )
+				end++;
+			return end > 0 ? Integer.parseInt( status.substring( 0, end )) : 0;
+		}
 
-	/**
-	 * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE
-	 */
-	@SuppressWarnings("rawtypes")
-	private static Hashtable theMimeTypes = new Hashtable();
-	static
-	{
-		StringTokenizer st = new StringTokenizer(
-				"css		text/css "+
-						"htm		text/html "+
-						"html		text/html "+
-						"xml		text/xml "+
-						"txt		text/plain "+
-						"asc		text/plain "+
-						"gif		image/gif "+
-						"jpg		image/jpeg "+
-						"jpeg		image/jpeg "+
-						"png		image/png "+
-						"mp3		audio/mpeg "+
-						"m3u		audio/mpeg-url " +
-						"mp4		video/mp4 " +
-						"ogv		video/ogg " +
-						"flv		video/x-flv " +
-						"mov		video/quicktime " +
-						"swf		application/x-shockwave-flash " +
-						"js			application/javascript "+
-						"pdf		application/pdf "+
-						"doc		application/msword "+
-						"ogg		application/x-ogg "+
-						"zip		application/octet-stream "+
-						"exe		application/octet-stream "+
-				"class		application/octet-stream " );
-		while ( st.hasMoreTokens())
-			theMimeTypes.put( st.nextToken(), st.nextToken());
-	}
+		private static int stripe()
+		{
+			return (int)Thread.currentThread().getId() & ( STRIPES - 1 );
+		}
 
-	private static int theBufferSize = 16 * 1024;
-	
-	/**
-	 * GMT date formatter
-	 */
-	private static java.text.SimpleDateFormat gmtFrmt;
-	static
-	{
-		gmtFrmt = new java.text.SimpleDateFormat( "E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-		gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+		private static final int STRIPES = 8;
+
+		// The status strings are mostly the HTTP_ constants, so this stays small
+		private final ConcurrentHashMap<String, Counter> myStatuses = new ConcurrentHashMap<String, Counter>();
+		final Counter myBytesOut = new Counter();
+		final Counter myActiveSessions = new Counter();
+		final Histogram myTimeToFirstByte = new Histogram();
+		final Histogram myParseTime = new Histogram();
+		private final Counter[] myLimits = counters( Limit.values().length );
+
+		private static Counter[] counters( int n )
+		{
+			Counter[] c = new Counter[n];
+			for ( int i = 0; i < n; i++ )
+				c[i] = new Counter();
+			return c;
+		}
 	}
 
 	/**
@@ -0,0 +1,158 @@
+package com.moho.wood;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares NanoHTTPD session executors and engines under the burst the game page
+ * produces on launch: many clients fetching small assets at once.<p>
+ *
+ * Runs on a plain JVM, from the jar the pom.xml next to this file builds
+ * with "mvn -B package":
+ * <pre>
+ * java -cp target/benchmarks.jar com.moho.wood.SessionExecutorBench [clients] [requests-per-client] [asset-count] [asset-bytes]
+ * </pre>
+ */
+public class SessionExecutorBench
+{
+	public static void main( String[] args ) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt( args[0] ) : 100;
+		int requests = args.length > 1 ? Integer.parseInt( args[1] ) : 200;
+		int assets = args.length > 2 ? Integer.parseInt( args[2] ) : 100;
+		int assetBytes = args.length > 3 ? Integer.parseInt( args[3] ) : 16 * 1024;
+
+		File root = createAssetTree( assets, assetBytes );
+		System.out.println( String.format( "%d clients x %d requests, %d assets of %d bytes",
+				clients, requests, assets, assetBytes ));
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		run( "thread-per-session", null, root, clients, requests, assets );
+		run( "bounded(" + cpus * 2 + ", 256, BLOCK)",
+				NanoHTTPD.newBoundedSessionExecutor( cpus * 2, 256, NanoHTTPD.RejectionPolicy.BLOCK ),
+				root, clients, requests, assets );
+		if ( NanoHTTPD.isVirtualThreadSupported())
+			run( "virtual(256, BLOCK)",
+					NanoHTTPD.newVirtualThreadSessionExecutor( 256, NanoHTTPD.RejectionPolicy.BLOCK ),
+					root, clients, requests, assets );
+		else
+			System.out.println( "virtual threads: not supported on this JVM" );
+		run( "nio(" + cpus + " workers)", null, NanoHTTPD.Engine.NIO, root, clients, requests, assets );
+	}
+
+	private static void run( String name, Executor executor, File root,
+			final int clients, final int requests, final int assets ) throws Exception
+	{
+		run( name, executor, NanoHTTPD.Engine.BLOCKING, root, clients, requests, assets );
+	}
+
+	private static void run( String name, Executor executor, NanoHTTPD.Engine engine, File root,
+			final int clients, final int requests, final int assets ) throws Exception
+	{
+		NanoHTTPD server = new NanoHTTPD( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ),
+				new AndroidFile( root.getPath()), executor, engine );
+		final int port = server.getListeningPort();
+
+		// Warm up the JIT before measuring
+		burst( port, clients, Math.max( 1, requests / 10 ), assets );
+
+		long start = System.nanoTime();
+		long errors = burst( port, clients, requests, assets );
+		long elapsed = System.nanoTime() - start;
+		server.stop();
+
+		long total = (long)clients * requests;
+		System.out.println( String.format( "%-28s %10.0f req/s %8d ms %6d errors",
+				name, total * 1e9 / elapsed, elapsed / 1000000, errors ));
+	}
+
+	private static long burst( final int port, int clients, final int requests, final int assets )
+			throws InterruptedException
+	{
+		final CountDownLatch go = new CountDownLatch( 1 );
+		final CountDownLatch done = new CountDownLatch( clients );
+		final AtomicLong errors = new AtomicLong();
+		for ( int c = 0; c < clients; c++ )
+		{
+			final int client = c;
+			Thread t = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						go.await();
+						for ( int i = 0; i < requests; i++ )
+							if ( !fetch( port, "/asset" + (( client + i ) % assets ) + ".js" ))
+								errors.incrementAndGet();
+					}
+					catch ( Exception e )
+					{
+						errors.incrementAndGet();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			});
+			t.setDaemon( true );
+			t.start();
+		}
+		go.countDown();
+		done.await();
+		return errors.get();
+	}
+
+	private static boolean fetch( int port, String uri ) throws IOException
+	{
+		Socket s = new Socket( InetAddress.getLoopbackAddress(), port );
+		try
+		{
+			OutputStream out = s.getOutputStream();
+			out.write(( "GET " + uri + " HTTP/1.0\r\n\r\n" ).getBytes( "US-ASCII" ));
+			out.flush();
+			InputStream in = s.getInputStream();
+			byte[] buf = new byte[16 * 1024];
+			int first = in.read( buf );
+			if ( first < 12 )
+				return false;
+			boolean ok = buf[9] == '2';
+			while ( in.read( buf ) >= 0 ) {}
+			return ok;
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	private static File createAssetTree( int assets, int assetBytes ) throws IOException
+	{
+		File root = File.createTempFile( "nanohttpd-bench", "" );
+		root.delete();
+		root.mkdirs();
+		byte[] body = new byte[assetBytes];
+		for ( int i = 0; i < body.length; i++ )
+			body[i] = (byte)( 'a' + i % 26 );
+		for ( int i = 0; i < assets; i++ )
+		{
+			File f = new File( root, "asset" + i + ".js" );
+			OutputStream out = new FileOutputStream( f );
+			out.write( body );
+			out.close();
+			f.deleteOnExit();
+		}
+		root.deleteOnExit();
+		return root;
+	}
+}
@@ -8,6 +8,7 @@ import android.app.DownloadManager.Request;
 import android.os.Environment;
 import android.webkit.CookieManager;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -91,6 +92,8 @@ public class UtilsAwv extends WebView {
 	protected boolean mGeolocationEnabled;
 	protected String mUploadableFileTypes = "*/*";
 	protected final Map<String, String> mHttpHeaders = new HashMap<String, String>();
+	protected NanoHTTPD mLocalServer;
+	protected String mLocalOrigin;
 
 	public UtilsAwv(Context context) {
 		super(context);
@@ -177,6 +180,103 @@ public class UtilsAwv extends WebView {
 		mUploadableFileTypes = mimeType;
 	}
 
+	/**
+	 * Answers requests to the given origin, e.g. "http://localhost:8490",
+	 * with server.serveInProcess() instead of over the server's socket
+	 *
+	 * Requests it cannot answer that way (other methods than GET and HEAD,
+	 * redirects) still go to the socket, so keep the server listening
+	 *
+	 * @param server the server to ask, or null to use the socket for everything
+	 * @param origin scheme, host and port of the URLs the server answers
+	 */
+	public void setLocalServer(final NanoHTTPD server, final String origin) {
+		mLocalServer = server;
+		mLocalOrigin = origin;
+	}
+
+	@SuppressLint("NewApi")
+	protected WebResourceResponse interceptLocalRequest(final WebResourceRequest request) {
+		final NanoHTTPD server = mLocalServer;
+		final String origin = mLocalOrigin;
+		if (server == null || origin == null) {
+			return null;
+		}
+
+		final String url = request.getUrl().toString();
+		if (!url.startsWith(origin) || (url.length() > origin.length() && url.charAt(origin.length()) != '/')) {
+			return null;
+		}
+		String uri = url.length() > origin.length() ? url.substring(origin.length()) : "/";
+		final int hash = uri.indexOf('#');
+		if (hash >= 0) {
+			uri = uri.substring(0, hash);
+		}
+
+		// A WebResourceResponse cannot be a 304, so always ask for the full
+		// answer; nor does the WebView decode one, so ask for the identity
+		// variant instead of a precompressed .gz
+		final Map<String, String> headers = new HashMap<String, String>();
+		for (Map.Entry<String, String> header : request.getRequestHeaders().entrySet()) {
+			final String name = header.getKey();
+			if (!name.equalsIgnoreCase("If-None-Match") && !name.equalsIgnoreCase("If-Modified-Since")
+					&& !name.equalsIgnoreCase("Accept-Encoding")) {
+				headers.put(name, header.getValue());
+			}
+		}
+
+		final NanoHTTPD.Response response = server.serveInProcess(request.getMethod(), uri, headers);
+		if (response == null) {
+			return null;
+		}
+
+		final String status = response.status;
+		final int space = status.indexOf(' ');
+		final int code;
+		try {
+			code = Integer.parseInt(space > 0 ? status.substring(0, space) : status);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		if (code >= 300 && code < 400) {
+			// Not supported by WebResourceResponse, let the socket send the redirect
+			if (response.data != null) {
+				try {
+					response.data.close();
+				}
+				catch (IOException e) {}
+			}
+			return null;
+		}
+		final String reason = space > 0 && space < status.trim().length() ? status.substring(space + 1).trim() : "OK";
+
+		String mimeType = response.mimeType;
+		String encoding = null;
+		if (mimeType != null && mimeType.indexOf(';') >= 0) {
+			final int charset = mimeType.toLowerCase(Locale.US).indexOf("charset=");
+			if (charset >= 0) {
+				encoding = mimeType.substring(charset + 8).trim();
+				final int end = encoding.indexOf(';');
+				if (end >= 0) {
+					encoding = encoding.substring(0, end).trim();
+				}
+			}
+			mimeType = mimeType.substring(0, mimeType.indexOf(';')).trim();
+		}
+
+		final Map<String, String> responseHeaders = new HashMap<String, String>();
+		for (String name : response.header.stringPropertyNames()) {
+			responseHeaders.put(name, response.header.getProperty(name));
+		}
+		if (response.contentLength >= 0 && !responseHeaders.containsKey("Content-Length")) {
+			responseHeaders.put("Content-Length", String.valueOf(response.contentLength));
+		}
+
+		final InputStream data = response.data != null ? response.data : new ByteArrayInputStream(new byte[0]);
+		return new WebResourceResponse(mimeType, encoding, code, reason, responseHeaders, data);
+	}
+
 	/**
 	 * Loads and displays the provided HTML source text
 	 *
@@ -642,6 +742,10 @@ public class UtilsAwv extends WebView {
 							break;
 						}
 					}
+					final WebResourceResponse local = interceptLocalRequest(request);
+					if (local != null) {
+						return local;
+					}
 					if (mCustomWebViewClient != null) {
 						return mCustomWebViewClient.shouldInterceptRequest(view, request);
 					}
@@ -0,0 +1,55 @@
+package android.content.res;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Stand-in for the Android class: a whole file instead of a region of
+ * the APK.
+ */
+public class AssetFileDescriptor implements Closeable
+{
+	AssetFileDescriptor( File file ) throws IOException
+	{
+		myIn = new FileInputStream( file );
+		myLength = file.length();
+	}
+
+	public FileDescriptor getFileDescriptor()
+	{
+		try
+		{
+			return myIn.getFD();
+		}
+		catch ( IOException ioe )
+		{
+			throw new IllegalStateException( ioe );
+		}
+	}
+
+	public long getStartOffset()
+	{
+		return 0;
+	}
+
+	public long getLength()
+	{
+		return myLength;
+	}
+
+	public FileInputStream createInputStream()
+	{
+		return myIn;
+	}
+
+	public void close() throws IOException
+	{
+		myIn.close();
+	}
+
+	private final FileInputStream myIn;
+	private final long myLength;
+}
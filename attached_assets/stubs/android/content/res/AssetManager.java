@@ -0,0 +1,65 @@
+package android.content.res;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stand-in for the Android class, for benchmarks on a plain JVM: the
+ * assets are the files below the directory named by the system property
+ * "assets.root". Like the APK's, its streams are buffered and report
+ * the remaining length in available().
+ */
+public final class AssetManager
+{
+	public static final int ACCESS_UNKNOWN = 0;
+	public static final int ACCESS_RANDOM = 1;
+	public static final int ACCESS_STREAMING = 2;
+	public static final int ACCESS_BUFFER = 3;
+
+	public String[] list( String path ) throws IOException
+	{
+		String[] names = file( path ).list();
+		return names != null ? names : new String[0];
+	}
+
+	public InputStream open( String fileName ) throws IOException
+	{
+		return open( fileName, ACCESS_STREAMING );
+	}
+
+	public InputStream open( String fileName, int accessMode ) throws IOException
+	{
+		File f = file( fileName );
+		if ( !f.isFile())
+			throw new FileNotFoundException( fileName );
+		return new BufferedInputStream( new FileInputStream( f ));
+	}
+
+	/**
+	 * Like aapt, takes media files as stored uncompressed, so only those
+	 * can be opened as a descriptor.
+	 */
+	public AssetFileDescriptor openFd( String fileName ) throws IOException
+	{
+		File f = file( fileName );
+		if ( !f.isFile())
+			throw new FileNotFoundException( fileName );
+		String name = fileName.toLowerCase();
+		for ( String ext : NO_COMPRESS )
+			if ( name.endsWith( ext ))
+				return new AssetFileDescriptor( f );
+		throw new FileNotFoundException( "This file can not be opened as a file descriptor; it is probably compressed" );
+	}
+
+	private static final String[] NO_COMPRESS = {
+		".jpg", ".jpeg", ".png", ".gif", ".webp", ".mp3", ".ogg", ".m4a", ".wav", ".mp4", ".webm" };
+
+	private static File file( String path )
+	{
+		return new File( System.getProperty( "assets.root", "assets" ), path );
+	}
+}
@@ -0,0 +1,41 @@
+package android.util;
+
+/**
+ * Stand-in for the Android class, so that NanoHTTPD and AndroidFile run
+ * on a plain JVM for benchmarks. Warnings and errors go to stderr, the
+ * rest is dropped, as per-request logging would skew the measurements.
+ */
+public final class Log
+{
+	public static int v( String tag, String msg ) { return 0; }
+	public static int d( String tag, String msg ) { return 0; }
+	public static int i( String tag, String msg ) { return 0; }
+
+	public static int w( String tag, String msg )
+	{
+		System.err.println( "W/" + tag + ": " + msg );
+		return 0;
+	}
+
+	public static int w( String tag, String msg, Throwable tr )
+	{
+		System.err.println( "W/" + tag + ": " + msg + ": " + tr );
+		return 0;
+	}
+
+	public static int e( String tag, String msg )
+	{
+		System.err.println( "E/" + tag + ": " + msg );
+		return 0;
+	}
+
+	public static int e( String tag, String msg, Throwable tr )
+	{
+		System.err.println( "E/" + tag + ": " + msg + ": " + tr );
+		return 0;
+	}
+
+	private Log()
+	{
+	}
+}